@@ -0,0 +1,139 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.Locale;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+/**
+ * Compares the {@link RecognizerBackend}s on one training set: train time, predict latency,
+ * accuracy on the prediction images, size of the saved model file and, for backends that support
+ * it, the time to fold new samples in with update().
+ *
+ * Every backend is trained through its {@link BackendModel} and classified through a
+ * {@link FacePredictor} on its default engine, so the latency is that of the same path the
+ * camera uses. Streaming backends read the data set from disk with the loader's split, so their
+ * prediction images are the same. The file size is what {@link ModelCache} stores, not the
+ * memory the model takes once loaded.
+ */
+public class BackendBenchmark {
+
+    private static final String TAG = BackendBenchmark.class.getName();
+    // Samples passed to update() per backend, taken from the prediction images
+    private static final int UPDATE_SAMPLES = 10;
+
+    private BackendBenchmark() {
+    }
+
+    /**
+     * Trains and measures every backend in turn. The set is left untouched.
+     * @param trainingDirectoryPath Directory containing the dataset folder, the set was loaded from.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param trainingSet Set with both training and prediction images loaded.
+     * @param preprocessing Options the set was normalized with.
+     * @param scratchDirectory Directory the models are temporarily saved in.
+     * @return One line per backend.
+     */
+    public static String run(String trainingDirectoryPath, List<String> emotions, TrainingSet trainingSet,
+                             FacePreprocessor.Options preprocessing, File scratchDirectory) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-12s%10s%14s%10s%12s%11s\n",
+                "backend", "train ms", "predict us", "accuracy", "file KB", "update ms"));
+        for (RecognizerBackend backend : RecognizerBackend.values()) {
+            BackendModel model;
+            try {
+                model = backend.newModel(trainingDirectoryPath, emotions, preprocessing);
+            } catch (IllegalArgumentException e) {
+                // Such as a streaming backend at a face size it cannot hold in memory
+                report.append(String.format(Locale.US, "%-12s%s\n", backend, e.getMessage()));
+                continue;
+            }
+            try {
+                measure(backend, model, trainingSet, preprocessing, scratchDirectory, report);
+            } finally {
+                model.release();
+            }
+        }
+        return report.toString();
+    }
+
+    private static void measure(RecognizerBackend backend, BackendModel model, TrainingSet trainingSet,
+                                FacePreprocessor.Options preprocessing, File scratchDirectory,
+                                StringBuilder report) {
+        long start = System.currentTimeMillis();
+        model.train(model.needsTrainingSet() ? trainingSet : null);
+        long trainMs = System.currentTimeMillis() - start;
+
+        FacePredictor predictor = model.newPredictor(preprocessing);
+        EmotionPrediction prediction = new EmotionPrediction();
+        List<Mat> faces = trainingSet.getPredictionImages();
+        int[] labels = trainingSet.getPredictionLabels();
+        int correct = 0;
+        try {
+            start = System.nanoTime();
+            for (int i = 0; i < faces.size(); i++) {
+                predictor.detectEmotion(faces.get(i), prediction);
+                if (prediction.getLabel() == labels[i]) {
+                    correct++;
+                }
+            }
+        } finally {
+            predictor.release();
+        }
+        long predictUs = faces.isEmpty() ? 0 : (System.nanoTime() - start) / 1000 / faces.size();
+        double accuracy = faces.isEmpty() ? 0 : 100.0 * correct / faces.size();
+
+        long fileKb = fileKb(backend, model, scratchDirectory);
+
+        String updateMs = "-";
+        FaceRecognizer recognizer = model.getFaceRecognizer();
+        if (backend.supportsUpdate() && recognizer != null && !faces.isEmpty()) {
+            int count = Math.min(UPDATE_SAMPLES, faces.size());
+            MatVector images = new MatVector(count);
+            Mat updateLabels = new Mat(count, 1, CV_32SC1);
+            IntBuffer labelsBuf = updateLabels.createBuffer();
+            for (int i = 0; i < count; i++) {
+                images.put(i, faces.get(i));
+                labelsBuf.put(i, labels[i]);
+            }
+            start = System.currentTimeMillis();
+            recognizer.update(images, updateLabels);
+            updateMs = (System.currentTimeMillis() - start) + " (" + count + ")";
+            images.deallocate();
+            updateLabels.deallocate();
+        }
+
+        report.append(String.format(Locale.US, "%-12s%10d%14d%9.1f%%%12d%11s\n",
+                backend, trainMs, predictUs, accuracy, fileKb, updateMs));
+    }
+
+    /**
+     * Saves the model to a temporary file.
+     * @return Size of the file, -1 if it could not be saved.
+     */
+    private static long fileKb(RecognizerBackend backend, ModelCache.Storable model, File scratchDirectory) {
+        try {
+            File file = File.createTempFile(backend.getModelName(), ".yml", scratchDirectory);
+            try {
+                model.save(file.getAbsolutePath());
+                return file.length() / 1024;
+            } finally {
+                if (!file.delete()) {
+                    Log.e(TAG, "Could not delete " + file);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not measure the size of the " + backend + " model", e);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.danielzou.emot.emotiontracker;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+/**
+ * The model of a {@link RecognizerBackend}, trained, cached and classified with the same calls
+ * whatever the algorithm behind it. {@link RecognizerBackend#newModel} creates an untrained one;
+ * it is then either trained or loaded through {@link ModelCache}.
+ */
+public interface BackendModel extends ModelCache.Storable {
+
+    /**
+     * @return Whether {@link #train} needs the data set loaded into a {@link TrainingSet}, false
+     * for models that read it from disk themselves.
+     */
+    boolean needsTrainingSet();
+
+    /**
+     * Trains the model on the training images of a set. The set is left untouched.
+     * @param trainingSet Loaded data set, or null if {@link #needsTrainingSet()} is false.
+     */
+    void train(TrainingSet trainingSet);
+
+    /**
+     * @return The trained model as a FaceRecognizer, null if it is not one.
+     */
+    FaceRecognizer getFaceRecognizer();
+
+    /**
+     * @return The trained model as a HOG+SVM classifier, null if it is not one.
+     */
+    HogSvmClassifier getHogSvm();
+
+    /**
+     * @return The trained model's subspace, null for backends without one. Owned by this model.
+     */
+    SubspaceModel getSubspaceModel();
+
+    /**
+     * @param preprocessing Options the training faces were normalized with.
+     * @return A new predictor on the trained model, on the default engine.
+     */
+    FacePredictor newPredictor(FacePreprocessor.Options preprocessing);
+
+    /**
+     * Frees the model. Neither it nor its predictors may be used afterwards.
+     */
+    void release();
+}
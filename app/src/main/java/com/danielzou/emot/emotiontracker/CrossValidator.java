@@ -0,0 +1,251 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+/**
+ * Stratified k-fold cross-validation of a {@link RecognizerBackend}, Fisherfaces unless another
+ * is given.
+ *
+ * Folds are dealt whole {@link DatasetIndex} groups at a time, so near duplicates and frames of
+ * one subject never end up on both sides of a fold. The groups are shuffled with a fixed seed and
+ * each goes to the fold with the fewest samples of the group's most common emotion, which keeps
+ * the class balance of the folds close and lets a run be repeated exactly. Folds train and
+ * predict concurrently on a fork-join pool, each with its own {@link BackendModel} and
+ * {@link FacePredictor}, so a fold is classified exactly like camera faces are. Streaming backends
+ * train from disk on their own split and cannot be cross-validated.
+ */
+public class CrossValidator {
+
+    private static final String TAG = CrossValidator.class.getName();
+
+    private final RecognizerBackend mBackend;
+    private final int mFolds;
+    private final long mSeed;
+    private final int mParallelism;
+
+    /**
+     * @param folds Number of folds, at least 2.
+     * @param seed Seed used to assign samples to folds.
+     */
+    public CrossValidator(int folds, long seed) {
+        this(RecognizerBackend.FISHERFACES, folds, seed);
+    }
+
+    /**
+     * @param backend Backend trained on every fold, not a streaming one.
+     * @param folds Number of folds, at least 2.
+     * @param seed Seed used to assign samples to folds.
+     */
+    public CrossValidator(RecognizerBackend backend, int folds, long seed) {
+        this(backend, folds, seed, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param backend Backend trained on every fold, not a streaming one.
+     * @param folds Number of folds, at least 2.
+     * @param seed Seed used to assign samples to folds.
+     * @param parallelism Number of folds evaluated at the same time.
+     */
+    public CrossValidator(RecognizerBackend backend, int folds, long seed, int parallelism) {
+        if (folds < 2) {
+            throw new IllegalArgumentException("Need at least 2 folds, got " + folds);
+        }
+        if (backend.isStreaming()) {
+            throw new IllegalArgumentException(backend + " trains from disk and cannot be trained on a fold");
+        }
+        mBackend = backend;
+        mFolds = folds;
+        mSeed = seed;
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Loads the whole data set and cross-validates it.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @return The evaluation report.
+     */
+    public EvaluationReport evaluate(String trainingDirectoryPath, List<String> emotions) {
+        return evaluate(trainingDirectoryPath, emotions, FacePreprocessor.Options.DEFAULT);
+    }
+
+    /**
+     * Loads the whole data set, normalized with the given options, and cross-validates it.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param preprocessing Options every face is normalized with.
+     * @return The evaluation report.
+     */
+    public EvaluationReport evaluate(String trainingDirectoryPath, List<String> emotions,
+                                     FacePreprocessor.Options preprocessing) {
+        TrainingSet all = new DatasetLoader(trainingDirectoryPath, emotions,
+                Runtime.getRuntime().availableProcessors(), mSeed, preprocessing).load(1.0);
+        try {
+            return evaluate(all, emotions, preprocessing);
+        } finally {
+            all.release();
+        }
+    }
+
+    /**
+     * Cross-validates the training images of a set.
+     * @param all Set whose training images and labels are split into folds.
+     * @param emotions Name of each label.
+     * @param preprocessing Options the images of the set were normalized with.
+     * @return The evaluation report.
+     */
+    public EvaluationReport evaluate(final TrainingSet all, final List<String> emotions,
+                                     final FacePreprocessor.Options preprocessing) {
+        final MatVector images = all.getImages();
+        IntBuffer labelsBuf = all.getLabels().createBuffer();
+        final int[] labels = new int[all.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = labelsBuf.get(i);
+        }
+        int[] groups = all.getGroups();
+        if (groups == null) {
+            // Without groups every sample stands alone
+            groups = new int[labels.length];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = i;
+            }
+        }
+        final int[] folds = assignFolds(labels, groups, emotions.size());
+        final EvaluationReport report = new EvaluationReport(emotions, mFolds, mSeed);
+
+        ForkJoinPool pool = new ForkJoinPool(mParallelism);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int f = 0; f < mFolds; f++) {
+                final int fold = f;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        runFold(fold, images, labels, folds, emotions, preprocessing, report);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during cross-validation", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cross-validation fold failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Log.i(TAG, report.toString());
+        return report;
+    }
+
+    /**
+     * Shuffles the groups and deals each whole group to the fold with the fewest samples of its
+     * most common label, breaking ties by the fewest samples overall and then the lowest fold.
+     * @param labels Label of every sample.
+     * @param groups Group of every sample, any non-negative ids.
+     * @param classes Number of labels.
+     * @return The fold of every sample.
+     */
+    int[] assignFolds(int[] labels, int[] groups, int classes) {
+        Map<Integer, List<Integer>> byGroup = new TreeMap<>();
+        for (int i = 0; i < labels.length; i++) {
+            List<Integer> members = byGroup.get(groups[i]);
+            if (members == null) {
+                members = new ArrayList<>();
+                byGroup.put(groups[i], members);
+            }
+            members.add(i);
+        }
+        // Ordered by group id before the shuffle, so the seed alone decides the order
+        List<List<Integer>> shuffled = new ArrayList<>(byGroup.values());
+        Collections.shuffle(shuffled, new Random(mSeed));
+
+        int[] folds = new int[labels.length];
+        int[][] labelCounts = new int[mFolds][classes];
+        int[] totals = new int[mFolds];
+        int[] counts = new int[classes];
+        for (List<Integer> members : shuffled) {
+            int label = DatasetIndex.majorityLabel(members, labels, counts);
+            int best = 0;
+            for (int f = 1; f < mFolds; f++) {
+                if (labelCounts[f][label] < labelCounts[best][label]
+                        || labelCounts[f][label] == labelCounts[best][label] && totals[f] < totals[best]) {
+                    best = f;
+                }
+            }
+            for (int sample : members) {
+                folds[sample] = best;
+                labelCounts[best][labels[sample]]++;
+                totals[best]++;
+            }
+        }
+        return folds;
+    }
+
+    private void runFold(int fold, MatVector images, int[] labels, int[] folds, List<String> emotions,
+                         FacePreprocessor.Options preprocessing, EvaluationReport report) {
+        long start = System.currentTimeMillis();
+        int trainingCount = 0;
+        for (int f : folds) {
+            if (f != fold) {
+                trainingCount++;
+            }
+        }
+        MatVector trainingImages = new MatVector(trainingCount);
+        Mat trainingLabels = new Mat(trainingCount, 1, CV_32SC1);
+        IntBuffer labelsBuf = trainingLabels.createBuffer();
+        for (int i = 0, t = 0; i < labels.length; i++) {
+            if (folds[i] != fold) {
+                trainingImages.put(t, images.get(i));
+                labelsBuf.put(t, labels[i]);
+                t++;
+            }
+        }
+
+        TrainingSet trainingSet = new TrainingSet(trainingImages, trainingLabels, null, null, null, null, null);
+        // No training directory: only streaming backends read it, and those are refused
+        BackendModel model = mBackend.newModel(null, emotions, preprocessing);
+        FacePredictor predictor = null;
+        int classes = emotions.size();
+        int[][] confusion = new int[classes][classes];
+        try {
+            model.train(trainingSet);
+            trainingSet.release();
+            predictor = model.newPredictor(preprocessing);
+            EmotionPrediction prediction = new EmotionPrediction();
+            for (int i = 0; i < labels.length; i++) {
+                if (folds[i] == fold) {
+                    predictor.detectEmotion(images.get(i), prediction);
+                    confusion[labels[i]][prediction.getLabel()]++;
+                }
+            }
+        } finally {
+            trainingSet.release();
+            if (predictor != null) {
+                predictor.release();
+            }
+            model.release();
+        }
+        report.addFold(fold, confusion, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,680 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Validated listing of the dataset/(emotion)/ folders, kept in dataset.index next to them.
+ *
+ * Every image is decoded once to record its size, a SHA-1 of its bytes and a 64 bit difference
+ * hash (dHash) of its content. Later opens only revalidate files whose name, length or
+ * modification time changed. From the hashes the index derives:
+ * <ul>
+ * <li>exact duplicates, files with the same SHA-1; only the first of them is used.</li>
+ * <li>groups of samples that must stay on the same side of a split: near duplicates of the same
+ * emotion, whose dHashes differ in at most {@link #NEAR_DUPLICATE_BITS} bits (typically
+ * neighbouring frames of one capture), and files named after the same subject, like CK+'s S005_001_00000011.png.</li>
+ * </ul>
+ * {@link #split} then deals whole groups into the training and prediction sets in an order
+ * decided by the seed alone, so near-identical frames never end up on both sides.
+ */
+public class DatasetIndex {
+
+    private static final String TAG = DatasetIndex.class.getName();
+
+    public static final String FILE_NAME = "dataset.index";
+
+    /**
+     * Largest number of differing dHash bits for two images to count as near duplicates.
+     */
+    public static final int NEAR_DUPLICATE_BITS = 4;
+
+    static final int MAGIC = 0x44494458; // "DIDX"
+    // Version 1 joined near duplicates across emotions
+    static final int VERSION = 2;
+
+    private static final Pattern SUBJECT = Pattern.compile("^(S\\d+)_");
+
+    /**
+     * One image of the data set.
+     */
+    public static class Entry {
+        public final File file;
+        public final int label;
+        public final int width;
+        public final int height;
+        final long length;
+        final long modified;
+        final byte[] sha1;
+        final long dHash;
+        int group;
+        int duplicateOf = -1;
+
+        Entry(File file, int label, long length, long modified, byte[] sha1, long dHash, int width, int height) {
+            this.file = file;
+            this.label = label;
+            this.length = length;
+            this.modified = modified;
+            this.sha1 = sha1;
+            this.dHash = dHash;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return False if the image could not be decoded.
+         */
+        public boolean isValid() {
+            return width > 0 && height > 0;
+        }
+
+        /**
+         * @return Whether an earlier entry has exactly the same bytes.
+         */
+        public boolean isDuplicate() {
+            return duplicateOf >= 0;
+        }
+
+        /**
+         * @return Group of samples this one must share a split with.
+         */
+        public int getGroup() {
+            return group;
+        }
+
+        boolean matches(File file, int label) {
+            return this.label == label && file.length() == length && file.lastModified() == modified;
+        }
+    }
+
+    private final List<String> mEmotions;
+    private final List<Entry> mEntries;
+    private int mGroups;
+
+    private DatasetIndex(List<String> emotions, List<Entry> entries) {
+        mEmotions = emotions;
+        mEntries = entries;
+    }
+
+    /**
+     * Hashes the name, size and modification time of every file under dataset/(emotion)/.
+     * Reading file metadata only keeps this cheap compared to decoding the images, and any added,
+     * removed or rewritten image changes it.
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folders to include, in label order.
+     * @return Hex encoded SHA-1 of the data set listing.
+     */
+    public static String fingerprint(String trainingDir, List<String> emotions) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        for (String emotion : emotions) {
+            digest.update((emotion + "\n").getBytes(utf8));
+            File[] files = new File(trainingDir + "dataset/" + emotion + "/").listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                digest.update((file.getName() + ":" + file.length() + ":" + file.lastModified() + "\n").getBytes(utf8));
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Reads the index of a data set, validates images that are new or changed since it was
+     * written and writes it back if anything changed. A missing or unreadable index is rebuilt.
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param threads Number of threads validating images.
+     * @return The up to date index.
+     */
+    public static DatasetIndex open(String trainingDir, List<String> emotions, int threads) {
+        long start = System.currentTimeMillis();
+        File indexFile = new File(trainingDir, FILE_NAME);
+        Map<String, Entry> previous = new HashMap<>();
+        if (indexFile.isFile()) {
+            try {
+                for (Entry entry : read(indexFile, trainingDir, emotions)) {
+                    previous.put(entry.file.getPath(), entry);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + indexFile + ", rebuilding it", e);
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        List<File> stale = new ArrayList<>();
+        List<Integer> staleLabels = new ArrayList<>();
+        List<Integer> staleSlots = new ArrayList<>();
+        for (int label = 0; label < emotions.size(); label++) {
+            File[] files = new File(trainingDir + "dataset/" + emotions.get(label) + "/").listFiles();
+            if (files == null) {
+                continue;
+            }
+            // listFiles() order is unspecified, sorting keeps entry order and groups reproducible
+            Arrays.sort(files);
+            for (File file : files) {
+                Entry known = previous.remove(file.getPath());
+                if (known != null && known.matches(file, label)) {
+                    entries.add(known);
+                } else {
+                    stale.add(file);
+                    staleLabels.add(label);
+                    staleSlots.add(entries.size());
+                    entries.add(null);
+                }
+            }
+        }
+        validate(stale, staleLabels, staleSlots, entries, threads);
+
+        DatasetIndex index = new DatasetIndex(emotions, entries);
+        boolean changed = !stale.isEmpty() || !previous.isEmpty();
+        if (changed) {
+            index.group();
+            try {
+                index.write(indexFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + indexFile + ", the data set is revalidated next time", e);
+            }
+        } else {
+            index.mGroups = countGroups(entries);
+        }
+        Log.i(TAG, "Indexed " + entries.size() + " images, " + stale.size() + " validated, "
+                + (entries.size() - stale.size()) + " reused, in " + (System.currentTimeMillis() - start)
+                + " ms: " + index);
+        return index;
+    }
+
+    /**
+     * @return Every image of the data set, in label and file name order.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Splits the usable images, whole groups at a time. Groups are shuffled with the seed and each
+     * goes to the training set while the training share of its most common label is below
+     * trainingFraction, so labels stay roughly stratified. Duplicates and images that could not be
+     * decoded are left out.
+     * @param trainingFraction Fraction of each label's samples used for training.
+     * @param seed Seed of the shuffle, the same seed and files give the same split.
+     * @return The training set in the 0 index and the prediction set in the 1 index.
+     */
+    public List<List<Entry>> split(double trainingFraction, long seed) {
+        List<Entry> usable = getUsableEntries();
+        int[] labels = new int[usable.size()];
+        int[] groups = new int[usable.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = usable.get(i).label;
+            groups[i] = usable.get(i).group;
+        }
+        List<List<Entry>> sets = new ArrayList<>();
+        for (List<Integer> samples : split(labels, groups, mGroups, mEmotions.size(), trainingFraction, seed)) {
+            List<Entry> set = new ArrayList<>(samples.size());
+            for (int sample : samples) {
+                set.add(usable.get(sample));
+            }
+            sets.add(set);
+        }
+        return sets;
+    }
+
+    /**
+     * The split of {@link #split(double, long)} on plain arrays, so samples stored elsewhere, such
+     * as in a {@link DatasetPack}, split exactly like the loose images they were written from.
+     * @param labels Label of every sample.
+     * @param groups Group of every sample, each below groupCount.
+     * @param groupCount Number of groups, including groups without samples, since all of them take
+     *                   part in the shuffle.
+     * @param classes Number of labels.
+     * @param trainingFraction Fraction of each label's samples used for training.
+     * @param seed Seed of the shuffle.
+     * @return Indices of the training samples in the 0 index and of the prediction samples in the
+     * 1 index, each in ascending order within a group.
+     */
+    static List<List<Integer>> split(int[] labels, int[] groups, int groupCount, int classes, double trainingFraction,
+                                     long seed) {
+        List<List<Integer>> members = new ArrayList<>();
+        for (int g = 0; g < groupCount; g++) {
+            members.add(new ArrayList<Integer>());
+        }
+        int[] totals = new int[classes];
+        for (int i = 0; i < labels.length; i++) {
+            members.get(groups[i]).add(i);
+            totals[labels[i]]++;
+        }
+        Collections.shuffle(members, new Random(seed));
+
+        List<Integer> training = new ArrayList<>();
+        List<Integer> prediction = new ArrayList<>();
+        int[] trainingCounts = new int[classes];
+        int[] labelCounts = new int[classes];
+        for (List<Integer> group : members) {
+            if (group.isEmpty()) {
+                continue;
+            }
+            int label = majorityLabel(group, labels, labelCounts);
+            boolean toTraining = trainingCounts[label] < trainingFraction * totals[label];
+            for (int sample : group) {
+                if (toTraining) {
+                    training.add(sample);
+                    trainingCounts[labels[sample]]++;
+                } else {
+                    prediction.add(sample);
+                }
+            }
+        }
+        List<List<Integer>> sets = new ArrayList<>();
+        sets.add(0, training);
+        sets.add(1, prediction);
+        return sets;
+    }
+
+    /**
+     * @return The images used for training and prediction, in index order: every decodable image
+     * that is not a duplicate.
+     */
+    public List<Entry> getUsableEntries() {
+        List<Entry> usable = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries) {
+            if (entry.isValid() && !entry.isDuplicate()) {
+                usable.add(entry);
+            }
+        }
+        return usable;
+    }
+
+    public int getGroupCount() {
+        return mGroups;
+    }
+
+    /**
+     * @return Number of images with the same bytes as an earlier one.
+     */
+    public int getDuplicateCount() {
+        int count = 0;
+        for (Entry entry : mEntries) {
+            if (entry.isDuplicate()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of images that could not be decoded.
+     */
+    public int getInvalidCount() {
+        int count = 0;
+        for (Entry entry : mEntries) {
+            if (!entry.isValid()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of decodable images that are not {@link DatasetLoader#IMAGE_SIZE} square.
+     */
+    public int getOddSizeCount() {
+        int count = 0;
+        for (Entry entry : mEntries) {
+            if (entry.isValid() && (entry.width != DatasetLoader.IMAGE_SIZE || entry.height != DatasetLoader.IMAGE_SIZE)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return mEntries.size() + " images in " + mGroups + " groups, " + getDuplicateCount() + " duplicates, "
+                + getInvalidCount() + " undecodable, " + getOddSizeCount() + " not " + DatasetLoader.IMAGE_SIZE
+                + "x" + DatasetLoader.IMAGE_SIZE;
+    }
+
+    /**
+     * Decodes and hashes the given files into their slots of entries.
+     */
+    private static void validate(List<File> files, List<Integer> labels, List<Integer> slots,
+                                 final List<Entry> entries, int threads) {
+        if (files.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Entry>> futures = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                final File file = files.get(i);
+                final int label = labels.get(i);
+                futures.add(executor.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws IOException {
+                        return validate(file, label);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                entries.set(slots.get(i), futures.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while indexing data set", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not index data set", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Entry validate(File file, int label) throws IOException {
+        long length = file.length();
+        long modified = file.lastModified();
+        byte[] bytes = new byte[(int) length];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        byte[] sha1 = digest.digest(bytes);
+
+        MatOfByte encoded = new MatOfByte(bytes);
+        Mat gray = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+        try {
+            if (gray.empty()) {
+                Log.e(TAG, "Could not decode " + file);
+                return new Entry(file, label, length, modified, sha1, 0, 0, 0);
+            }
+            return new Entry(file, label, length, modified, sha1, dHash(gray), gray.cols(), gray.rows());
+        } finally {
+            encoded.release();
+            gray.release();
+        }
+    }
+
+    /**
+     * Difference hash: shrinks the image to 9x8 and sets one bit per horizontally neighbouring
+     * pair of pixels, depending on which is brighter. Robust to scaling and lighting changes, so
+     * frames of one capture hash to nearly the same value.
+     */
+    static long dHash(Mat gray) {
+        Mat small = new Mat();
+        try {
+            Imgproc.resize(gray, small, new Size(9, 8), 0, 0, Imgproc.INTER_AREA);
+            byte[] pixels = new byte[9 * 8];
+            small.get(0, 0, pixels);
+            long hash = 0;
+            for (int y = 0; y < 8; y++) {
+                for (int x = 0; x < 8; x++) {
+                    hash <<= 1;
+                    if ((pixels[y * 9 + x] & 0xff) > (pixels[y * 9 + x + 1] & 0xff)) {
+                        hash |= 1;
+                    }
+                }
+            }
+            return hash;
+        } finally {
+            small.release();
+        }
+    }
+
+    /**
+     * Marks exact duplicates and numbers the groups of near duplicates and shared subjects.
+     */
+    private void group() {
+        int count = mEntries.size();
+        int[] parents = new int[count];
+        for (int i = 0; i < count; i++) {
+            parents[i] = i;
+            mEntries.get(i).duplicateOf = -1;
+        }
+        Map<String, Integer> firstBySha1 = new HashMap<>();
+        Map<String, Integer> firstBySubject = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = mEntries.get(i);
+            if (!entry.isValid()) {
+                continue;
+            }
+            String sha1 = toHex(entry.sha1);
+            Integer original = firstBySha1.get(sha1);
+            if (original != null) {
+                entry.duplicateOf = original;
+                Entry first = mEntries.get(original);
+                if (first.label != entry.label) {
+                    Log.e(TAG, entry.file + " is labeled " + mEmotions.get(entry.label) + " but has the same bytes as "
+                            + first.file + ", labeled " + mEmotions.get(first.label));
+                }
+                union(parents, original, i);
+                continue;
+            }
+            firstBySha1.put(sha1, i);
+            Matcher subject = SUBJECT.matcher(entry.file.getName());
+            if (subject.find()) {
+                Integer other = firstBySubject.get(subject.group(1));
+                if (other != null) {
+                    union(parents, other, i);
+                } else {
+                    firstBySubject.put(subject.group(1), i);
+                }
+            }
+        }
+        // Pairwise, but one xor and bit count per pair is cheap for data sets of a few thousand images.
+        // Only within a label: across labels similar lighting would chain whole emotions into one group
+        for (int i = 0; i < count; i++) {
+            Entry a = mEntries.get(i);
+            if (!a.isValid() || a.isDuplicate()) {
+                continue;
+            }
+            for (int j = i + 1; j < count; j++) {
+                Entry b = mEntries.get(j);
+                if (b.label == a.label && b.isValid() && !b.isDuplicate()
+                        && Long.bitCount(a.dHash ^ b.dHash) <= NEAR_DUPLICATE_BITS) {
+                    union(parents, i, j);
+                }
+            }
+        }
+        // Number the groups in order of their first entry so ids only depend on the files
+        int[] ids = new int[count];
+        Arrays.fill(ids, -1);
+        int[] sizes = new int[count];
+        int groups = 0;
+        int largest = -1;
+        for (int i = 0; i < count; i++) {
+            int root = find(parents, i);
+            if (ids[root] < 0) {
+                ids[root] = groups++;
+            }
+            mEntries.get(i).group = ids[root];
+            sizes[ids[root]]++;
+            if (largest < 0 || sizes[ids[root]] > sizes[largest]) {
+                largest = ids[root];
+            }
+        }
+        mGroups = groups;
+        if (largest >= 0) {
+            Log.i(TAG, "Largest group " + largest + " holds " + sizes[largest] + " of " + count + " images");
+        }
+    }
+
+    private static int countGroups(List<Entry> entries) {
+        int groups = 0;
+        for (Entry entry : entries) {
+            groups = Math.max(groups, entry.group + 1);
+        }
+        return groups;
+    }
+
+    /**
+     * @return The most common label of a group, the first sample's on a tie.
+     */
+    static int majorityLabel(List<Integer> group, int[] labels, int[] counts) {
+        Arrays.fill(counts, 0);
+        int best = labels[group.get(0)];
+        for (int sample : group) {
+            if (++counts[labels[sample]] > counts[best]) {
+                best = labels[sample];
+            }
+        }
+        return best;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        // The smaller index becomes the root, keeping the numbering independent of union order
+        if (rootA < rootB) {
+            parents[rootB] = rootA;
+        } else {
+            parents[rootA] = rootB;
+        }
+    }
+
+    private void write(File indexFile) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEmotions.size());
+            for (String emotion : mEmotions) {
+                out.writeUTF(emotion);
+            }
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries) {
+                out.writeUTF(entry.file.getName());
+                out.writeByte(entry.label);
+                out.writeLong(entry.length);
+                out.writeLong(entry.modified);
+                out.write(entry.sha1);
+                out.writeLong(entry.dHash);
+                out.writeShort(entry.width);
+                out.writeShort(entry.height);
+                out.writeInt(entry.group);
+                out.writeInt(entry.duplicateOf);
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete() || !tmp.renameTo(indexFile)) {
+            tmp.delete();
+            throw new IOException("Could not move index into place at " + indexFile);
+        }
+    }
+
+    /**
+     * Reads the entries of an index written for the same emotions.
+     * @throws IOException If the file is not an index for these emotions or is corrupt.
+     */
+    private static List<Entry> read(File indexFile, String trainingDir, List<String> emotions) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(indexFile + " is not a data set index of version " + VERSION);
+            }
+            int emotionCount = in.readInt();
+            if (emotionCount < 0) {
+                throw new IOException("Corrupt emotion count " + emotionCount + " in " + indexFile);
+            }
+            List<String> indexed = new ArrayList<>(emotionCount);
+            for (int i = 0; i < emotionCount; i++) {
+                indexed.add(in.readUTF());
+            }
+            if (!indexed.equals(emotions)) {
+                throw new IOException(indexFile + " was built for emotions " + indexed);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt entry count " + count + " in " + indexFile);
+            }
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                int label = in.readUnsignedByte();
+                if (label >= emotions.size()) {
+                    throw new IOException("Corrupt label " + label + " of entry " + i + " in " + indexFile);
+                }
+                long length = in.readLong();
+                long modified = in.readLong();
+                byte[] sha1 = new byte[20];
+                in.readFully(sha1);
+                long dHash = in.readLong();
+                int width = in.readUnsignedShort();
+                int height = in.readUnsignedShort();
+                File file = new File(trainingDir + "dataset/" + emotions.get(label) + "/" + name);
+                Entry entry = new Entry(file, label, length, modified, sha1, dHash, width, height);
+                entry.group = in.readInt();
+                entry.duplicateOf = in.readInt();
+                // Groups are numbered by first entry and duplicates point back, so both are bounded by i
+                if (entry.group < 0 || entry.group > i || entry.duplicateOf < -1 || entry.duplicateOf >= i) {
+                    throw new IOException("Corrupt group or duplicate of entry " + i + " in " + indexFile);
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
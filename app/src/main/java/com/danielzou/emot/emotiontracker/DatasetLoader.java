@@ -0,0 +1,430 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Reads the dataset/(emotion)/ folders into a {@link TrainingSet}, decoding the images on all
+ * cores.
+ *
+ * Every file is decoded and run through the same {@link FacePreprocessor} stage used for camera
+ * faces exactly once, straight into its slot, and then handed to the MatVector used for training
+ * without copying pixels, so no second list of images is kept around.
+ */
+public class DatasetLoader {
+
+    private static final String TAG = DatasetLoader.class.getName();
+
+    static final int IMAGE_SIZE = 350;
+
+    /**
+     * Seed used for the training/prediction split unless another one is given, so the same data
+     * set always produces the same split and model.
+     */
+    public static final long DEFAULT_SEED = 1;
+
+    /**
+     * Fraction of each emotion's samples {@link #load()} trains on, the rest is held out.
+     */
+    public static final double DEFAULT_TRAINING_FRACTION = 0.8;
+
+    /**
+     * Wall time spent in each stage of loading and training, in milliseconds.
+     */
+    public static class Timings {
+        public long listingMs;
+        public long decodingMs;
+        public long packingMs;
+        public long trainingMs;
+
+        @Override
+        public String toString() {
+            return "listing " + listingMs + " ms, decoding " + decodingMs + " ms, packing " + packingMs
+                    + " ms, training " + trainingMs + " ms";
+        }
+    }
+
+    private final String mTrainingDir;
+    private final List<String> mEmotions;
+    private final int mThreads;
+    private final long mSeed;
+    private final FacePreprocessor.Options mPreprocessing;
+
+    // Decoding threads each normalize faces with their own stage
+    private final ThreadLocal<FacePreprocessor> mPreprocessors = new ThreadLocal<FacePreprocessor>() {
+        @Override
+        protected FacePreprocessor initialValue() {
+            return new FacePreprocessor(mPreprocessing);
+        }
+    };
+    private final ThreadLocal<MatBridge> mBridges = new ThreadLocal<MatBridge>() {
+        @Override
+        protected MatBridge initialValue() {
+            return new MatBridge();
+        }
+    };
+
+    /**
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     */
+    public DatasetLoader(String trainingDir, List<String> emotions) {
+        this(trainingDir, emotions, Runtime.getRuntime().availableProcessors(), DEFAULT_SEED);
+    }
+
+    /**
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param threads Number of decoding threads.
+     * @param seed Seed for shuffling the samples before they are split.
+     */
+    public DatasetLoader(String trainingDir, List<String> emotions, int threads, long seed) {
+        this(trainingDir, emotions, threads, seed, FacePreprocessor.Options.DEFAULT);
+    }
+
+    /**
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param threads Number of decoding threads.
+     * @param seed Seed for shuffling the samples before they are split.
+     * @param preprocessing Options every face is normalized with.
+     */
+    public DatasetLoader(String trainingDir, List<String> emotions, int threads, long seed,
+                         FacePreprocessor.Options preprocessing) {
+        mTrainingDir = trainingDir;
+        mEmotions = emotions;
+        mThreads = Math.max(1, threads);
+        mSeed = seed;
+        mPreprocessing = preprocessing;
+    }
+
+    /**
+     * Loads the data set, split 80-20 into training and prediction sets.
+     * @return The loaded set. The caller owns it and must release it.
+     */
+    public TrainingSet load() {
+        return load(DEFAULT_TRAINING_FRACTION);
+    }
+
+    /**
+     * Loads the data set, split per emotion into training and prediction sets with
+     * {@link DatasetIndex#split}, whole groups at a time. A {@link DatasetPack} in the training
+     * directory is used when it was written from the current images with the same preprocessing
+     * options. Otherwise the loose images are decoded and written into a new pack for the next
+     * load. Either way the same seed gives the same split. Images that cannot be decoded are
+     * skipped.
+     * @param trainingFraction Fraction of each emotion's samples used for training, 1 to put every
+     *                         sample into the training set.
+     * @return The loaded set. The caller owns it and must release it.
+     */
+    public TrainingSet load(double trainingFraction) {
+        File packFile = new File(mTrainingDir, DatasetPack.FILE_NAME);
+        if (packFile.isFile()) {
+            try {
+                return loadPack(packFile, trainingFraction);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not use " + packFile + ", decoding loose images and rebuilding it", e);
+            }
+        }
+        return loadImages(trainingFraction, packFile);
+    }
+
+    /**
+     * Wraps the samples of a data set pack. Nothing is decoded or copied, the returned set keeps
+     * the pack mapped until it is released.
+     * @param packFile Pack file written by {@link DatasetPackWriter}.
+     * @return The loaded set. The caller owns it and must release it.
+     * @throws IOException If the pack cannot be read or was written for other images, emotions or
+     * preprocessing.
+     */
+    TrainingSet loadPack(File packFile, double trainingFraction) throws IOException {
+        Timings timings = new Timings();
+
+        long start = System.currentTimeMillis();
+        final DatasetPack pack = new DatasetPack(packFile);
+        MatVector images;
+        Mat labels;
+        int[] groups;
+        List<Integer> trainingSamples;
+        List<Mat> prediction;
+        int[] predictionLabels;
+        // The mapping outlives the file, which is closed once every sample is wrapped
+        try {
+            if (!pack.getPreprocessing().equals(mPreprocessing.getKey())) {
+                throw new IOException("Pack was preprocessed with " + pack.getPreprocessing() + ", expected "
+                        + mPreprocessing.getKey());
+            }
+            // The split must match the loose images', which only works for the same emotions
+            if (!Arrays.asList(pack.getLabelNames()).equals(mEmotions)) {
+                throw new IOException("Pack holds emotions " + Arrays.toString(pack.getLabelNames()) + ", expected "
+                        + mEmotions);
+            }
+            if (!pack.getFingerprint().equals(DatasetIndex.fingerprint(mTrainingDir, mEmotions))) {
+                throw new IOException("Pack is out of date, images were added, removed or changed since");
+            }
+            int[] sampleLabels = new int[pack.size()];
+            int[] sampleGroups = new int[pack.size()];
+            for (int i = 0; i < pack.size(); i++) {
+                sampleLabels[i] = pack.getLabel(i);
+                sampleGroups[i] = pack.getGroup(i);
+            }
+            List<List<Integer>> sets = DatasetIndex.split(sampleLabels, sampleGroups, pack.getGroupCount(),
+                    mEmotions.size(), trainingFraction, mSeed);
+            trainingSamples = sets.get(0);
+            List<Integer> predictionSamples = sets.get(1);
+            timings.listingMs = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            images = new MatVector(trainingSamples.size());
+            labels = new Mat(trainingSamples.size(), 1, CV_32SC1);
+            IntBuffer labelsBuf = labels.createBuffer();
+            groups = new int[trainingSamples.size()];
+            for (int i = 0; i < trainingSamples.size(); i++) {
+                int sample = trainingSamples.get(i);
+                Mat image = pack.wrap(sample);
+                images.put(i, image);
+                image.deallocate();
+                labelsBuf.put(i, sampleLabels[sample]);
+                groups[i] = sampleGroups[sample];
+            }
+            prediction = new ArrayList<>(predictionSamples.size());
+            predictionLabels = new int[predictionSamples.size()];
+            for (int i = 0; i < predictionSamples.size(); i++) {
+                int sample = predictionSamples.get(i);
+                prediction.add(pack.wrap(sample));
+                predictionLabels[i] = sampleLabels[sample];
+            }
+            timings.packingMs = System.currentTimeMillis() - start;
+        } finally {
+            pack.close();
+        }
+
+        Log.i(TAG, "Mapped " + trainingSamples.size() + " training and " + prediction.size()
+                + " prediction images from " + packFile.getName());
+        return new TrainingSet(images, labels, groups, prediction, predictionLabels, timings, pack);
+    }
+
+    /**
+     * Lists, decodes and packs the loose images under dataset/(emotion)/ and writes them into a
+     * data set pack. The listing and split come from the {@link DatasetIndex}, which is brought up
+     * to date first. A pack that cannot be written is logged and left out.
+     * @param packFile Pack file to write, null to write none.
+     * @return The loaded set. The caller owns it and must release it.
+     */
+    TrainingSet loadImages(double trainingFraction, File packFile) {
+        Timings timings = new Timings();
+
+        long start = System.currentTimeMillis();
+        // Taken before indexing, so images changing meanwhile make the pack stale rather than wrong
+        String fingerprint = DatasetIndex.fingerprint(mTrainingDir, mEmotions);
+        List<File> trainingFiles = new ArrayList<>();
+        List<Integer> trainingFileLabels = new ArrayList<>();
+        List<Integer> trainingFileGroups = new ArrayList<>();
+        List<File> predictionFiles = new ArrayList<>();
+        List<Integer> predictionFileLabels = new ArrayList<>();
+        // Duplicates are dropped and near duplicates kept on one side of the split
+        DatasetIndex index = DatasetIndex.open(mTrainingDir, mEmotions, mThreads);
+        List<List<DatasetIndex.Entry>> sets = index.split(trainingFraction, mSeed);
+        for (DatasetIndex.Entry entry : sets.get(0)) {
+            trainingFiles.add(entry.file);
+            trainingFileLabels.add(entry.label);
+            trainingFileGroups.add(entry.getGroup());
+        }
+        for (DatasetIndex.Entry entry : sets.get(1)) {
+            predictionFiles.add(entry.file);
+            predictionFileLabels.add(entry.label);
+        }
+        timings.listingMs = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        Mat[] trainingImages = new Mat[trainingFiles.size()];
+        Mat[] predictionImages = new Mat[predictionFiles.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(trainingImages.length + predictionImages.length);
+            submitDecodes(executor, trainingFiles, trainingImages, futures);
+            submitDecodes(executor, predictionFiles, predictionImages, futures);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            releaseAll(trainingImages);
+            releaseAll(predictionImages);
+            throw new IllegalStateException("Interrupted while decoding data set", e);
+        } catch (ExecutionException e) {
+            releaseAll(trainingImages);
+            releaseAll(predictionImages);
+            throw new IllegalStateException("Could not decode data set", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        timings.decodingMs = System.currentTimeMillis() - start;
+
+        if (packFile != null) {
+            writePack(packFile, index, fingerprint, sets, trainingImages, predictionImages);
+        }
+
+        start = System.currentTimeMillis();
+        int trainingCount = 0;
+        for (Mat image : trainingImages) {
+            if (image != null) {
+                trainingCount++;
+            }
+        }
+        MatVector images = new MatVector(trainingCount);
+        Mat labels = new Mat(trainingCount, 1, CV_32SC1);
+        IntBuffer labelsBuf = labels.createBuffer();
+        int[] groups = new int[trainingCount];
+        int counter = 0;
+        for (int i = 0; i < trainingImages.length; i++) {
+            if (trainingImages[i] == null) {
+                continue;
+            }
+            // The vector takes its own reference to the pixels, the decoded header can go
+            images.put(counter, trainingImages[i]);
+            trainingImages[i].deallocate();
+            trainingImages[i] = null;
+            labelsBuf.put(counter, trainingFileLabels.get(i));
+            groups[counter] = trainingFileGroups.get(i);
+            counter++;
+        }
+        List<Mat> prediction = new ArrayList<>(predictionImages.length);
+        List<Integer> predictionLabelList = new ArrayList<>(predictionImages.length);
+        for (int i = 0; i < predictionImages.length; i++) {
+            if (predictionImages[i] != null) {
+                prediction.add(predictionImages[i]);
+                predictionLabelList.add(predictionFileLabels.get(i));
+            }
+        }
+        int[] predictionLabels = new int[predictionLabelList.size()];
+        for (int i = 0; i < predictionLabels.length; i++) {
+            predictionLabels[i] = predictionLabelList.get(i);
+        }
+        timings.packingMs = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "Loaded " + trainingCount + " training and " + prediction.size() + " prediction images with "
+                + mThreads + " threads");
+        return new TrainingSet(images, labels, groups, prediction, predictionLabels, timings, null);
+    }
+
+    /**
+     * Splits data set in training set and prediction set.
+     * @param emotion
+     * @param trainingFraction Fraction of the files used for training.
+     * @param random Source of the shuffle.
+     * @return Returns the training set in the 0 index and the prediction set in the 1 index.
+     */
+    public List<List<File>> getFiles(String emotion, double trainingFraction, Random random) {
+        String emotionDirectoryPath = mTrainingDir + "dataset/" + emotion + "/"; // File path on Mac, Android uses forward slashes.
+        Log.e(TAG, "Root directory: " + emotionDirectoryPath);
+        File emotionDir = new File(emotionDirectoryPath);
+        File filesArr[] = emotionDir.listFiles();
+        Log.e(TAG, "Number of files in this dir: " + filesArr.length);
+        // listFiles() order is unspecified, sort so the seed alone decides the split
+        Arrays.sort(filesArr);
+        List<List<File>> sets = split(Arrays.asList(filesArr), trainingFraction, random);
+        Log.e(TAG, "Training set size: " + sets.get(0).size());
+        Log.e(TAG, "Prediction set size: " + sets.get(1).size());
+        return sets;
+    }
+
+    /**
+     * Shuffles the given samples and splits them in two. Every sample ends up in exactly one set.
+     * @param items Samples of one emotion.
+     * @param trainingFraction Fraction of the samples in the training set.
+     * @param random Source of the shuffle.
+     * @return Returns the training set in the 0 index and the prediction set in the 1 index.
+     */
+    static <T> List<List<T>> split(List<T> items, double trainingFraction, Random random) {
+        List<T> shuffled = new ArrayList<>(items);
+        Collections.shuffle(shuffled, random);
+
+        int trainingSize = (int) (trainingFraction * shuffled.size());
+        List<T> training = shuffled.subList(0, trainingSize);
+        List<T> prediction = shuffled.subList(trainingSize, shuffled.size());
+        List<List<T>> sets = new ArrayList<>();
+        sets.add(0, training);
+        sets.add(1, prediction);
+        return sets;
+    }
+
+    private void submitDecodes(ExecutorService executor, List<File> files, final Mat[] slots,
+                               List<Future<?>> futures) {
+        for (int i = 0; i < files.size(); i++) {
+            final int slot = i;
+            final String path = files.get(i).getAbsolutePath();
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    org.opencv.core.Mat gray = Imgcodecs.imread(path, Imgcodecs.IMREAD_GRAYSCALE);
+                    try {
+                        if (gray.empty()) {
+                            return;
+                        }
+                        MatBridge bridge = mBridges.get();
+                        Mat face = new Mat(mPreprocessing.faceSize, mPreprocessing.faceSize, CV_8UC1);
+                        bridge.wrap(mPreprocessors.get().process(gray)).copyTo(face);
+                        bridge.release();
+                        slots[slot] = face;
+                    } finally {
+                        gray.release();
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Writes the decoded faces into a pack, logging instead of failing the load if it cannot be
+     * written.
+     */
+    private void writePack(File packFile, DatasetIndex index, String fingerprint, List<List<DatasetIndex.Entry>> sets,
+                           Mat[] trainingImages, Mat[] predictionImages) {
+        long start = System.currentTimeMillis();
+        Map<DatasetIndex.Entry, Mat> faces = new IdentityHashMap<>();
+        for (int i = 0; i < trainingImages.length; i++) {
+            faces.put(sets.get(0).get(i), trainingImages[i]);
+        }
+        for (int i = 0; i < predictionImages.length; i++) {
+            faces.put(sets.get(1).get(i), predictionImages[i]);
+        }
+        try {
+            int count = DatasetPackWriter.write(index, mEmotions, fingerprint, mPreprocessing, faces, packFile);
+            Log.i(TAG, "Packed " + count + " images into " + packFile.getName() + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + packFile, e);
+        }
+    }
+
+    private static void releaseAll(Mat[] images) {
+        for (int i = 0; i < images.length; i++) {
+            if (images[i] != null) {
+                images[i].deallocate();
+                images[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Read-only view of a data set pack written by {@link DatasetPackWriter}.
+ *
+ * A pack stores every face pre-decoded and preprocessed as 8-bit grayscale, so opening one is a
+ * single mmap instead of a directory listing plus one open, JPEG decode and {@link FacePreprocessor}
+ * pass per image. Layout, big endian:
+ * <pre>
+ * int magic "EMOT", int version, int rows, int cols, int labelCount, int sampleCount, long indexOffset,
+ * int groupCount
+ * labelCount x (int byteLength, UTF-8 name)
+ * int byteLength, UTF-8 preprocessing key
+ * int byteLength, UTF-8 data set fingerprint
+ * sampleCount x (rows * cols pixels)
+ * sampleCount x (int label, int group, long pixelOffset)   at indexOffset
+ * </pre>
+ * Samples are the usable images of the {@link DatasetIndex} in its order, each with its group, so
+ * a pack splits exactly like the loose images. The {@link DatasetIndex#fingerprint} of the images
+ * it was written from tells whether it still matches them. Version 2 packs had no groups and
+ * version 3 packs no fingerprint, both are refused.
+ * Packs are limited to {@link #MAX_SIZE}, the most a single mapping can hold; every length and
+ * offset is checked against the file before anything is read through it.
+ * Mats returned by {@link #wrap(int)} point straight into the mapping and must not be used after
+ * the pack is no longer referenced.
+ */
+public class DatasetPack implements Closeable {
+
+    static final int MAGIC = 0x454d4f54;
+    // Version 4 packs carry groups that joined near duplicates across emotions
+    static final int VERSION = 5;
+    static final int HEADER_SIZE = 6 * 4 + 8 + 4;
+    static final int INDEX_ENTRY_SIZE = 4 + 4 + 8;
+
+    /**
+     * Largest pack that can be opened, in bytes.
+     */
+    public static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Name of the pack file inside the training directory.
+     */
+    public static final String FILE_NAME = "dataset.pack";
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mRows;
+    private final int mCols;
+    private final String[] mLabelNames;
+    private final String mPreprocessing;
+    private final String mFingerprint;
+    private final int[] mLabels;
+    private final int[] mGroups;
+    private final int mGroupCount;
+    // Below MAX_SIZE, so positions in the mapping
+    private final int[] mOffsets;
+
+    /**
+     * Maps the given pack file and reads its label table and index.
+     * @param file Pack file.
+     * @throws IOException If the file cannot be mapped or is not a valid pack.
+     */
+    public DatasetPack(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            long length = mFile.length();
+            if (length > MAX_SIZE) {
+                throw new IOException(file + " is " + length + " bytes, packs are limited to " + MAX_SIZE);
+            }
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int capacity = mBuffer.capacity();
+            if (capacity < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a data set pack");
+            }
+            int version = mBuffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported data set pack version " + version);
+            }
+            mRows = mBuffer.getInt(8);
+            mCols = mBuffer.getInt(12);
+            int labelCount = mBuffer.getInt(16);
+            int sampleCount = mBuffer.getInt(20);
+            long indexOffset = mBuffer.getLong(24);
+            mGroupCount = mBuffer.getInt(32);
+            if (mRows <= 0 || mCols <= 0 || labelCount < 0 || sampleCount < 0 || mGroupCount < 0) {
+                throw new IOException("Corrupt header in " + file);
+            }
+
+            mLabelNames = new String[labelCount];
+            long position = HEADER_SIZE;
+            for (int i = 0; i < labelCount; i++) {
+                mLabelNames[i] = readString(file, position);
+                position += 4 + mBuffer.getInt((int) position);
+            }
+            mPreprocessing = readString(file, position);
+            position += 4 + mBuffer.getInt((int) position);
+            mFingerprint = readString(file, position);
+            position += 4 + mBuffer.getInt((int) position);
+
+            // The pixels run from the end of the key to the index, which runs to the end of the file
+            long sampleSize = (long) mRows * mCols;
+            if (indexOffset < position || indexOffset + (long) sampleCount * INDEX_ENTRY_SIZE != capacity) {
+                throw new IOException("Corrupt index offset " + indexOffset + " in " + file);
+            }
+            mLabels = new int[sampleCount];
+            mGroups = new int[sampleCount];
+            mOffsets = new int[sampleCount];
+            long previousEnd = position;
+            for (int i = 0; i < sampleCount; i++) {
+                int entry = (int) (indexOffset + (long) i * INDEX_ENTRY_SIZE);
+                mLabels[i] = mBuffer.getInt(entry);
+                mGroups[i] = mBuffer.getInt(entry + 4);
+                long offset = mBuffer.getLong(entry + 8);
+                // Samples are written one after the other, so each starts past the end of the last
+                if (mLabels[i] < 0 || mLabels[i] >= labelCount || mGroups[i] < 0 || mGroups[i] >= mGroupCount
+                        || offset < previousEnd || offset + sampleSize > indexOffset) {
+                    throw new IOException("Corrupt index entry " + i + " in " + file);
+                }
+                mOffsets[i] = (int) offset;
+                previousEnd = offset + sampleSize;
+            }
+        } catch (IOException | RuntimeException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getCols() {
+        return mCols;
+    }
+
+    public int size() {
+        return mLabels.length;
+    }
+
+    /**
+     * @return {@link FacePreprocessor.Options#getKey()} of the options the faces were processed with.
+     */
+    public String getPreprocessing() {
+        return mPreprocessing;
+    }
+
+    /**
+     * @return {@link DatasetIndex#fingerprint} of the images the pack was written from.
+     */
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return Label names, indexed by the labels returned from {@link #getLabel(int)}.
+     */
+    public String[] getLabelNames() {
+        return mLabelNames;
+    }
+
+    public int getLabel(int index) {
+        return mLabels[index];
+    }
+
+    /**
+     * @return {@link DatasetIndex} group of a sample.
+     */
+    public int getGroup(int index) {
+        return mGroups[index];
+    }
+
+    /**
+     * @return Number of groups of the index the pack was written from, see
+     * {@link DatasetIndex#getGroupCount()}.
+     */
+    public int getGroupCount() {
+        return mGroupCount;
+    }
+
+    /**
+     * Wraps a sample as a CV_8UC1 Mat without copying or decoding it.
+     * @param index Sample index.
+     * @return A Mat backed by the mapped file.
+     */
+    public Mat wrap(int index) {
+        ByteBuffer pixels = mBuffer.duplicate();
+        pixels.position(mOffsets[index]);
+        pixels.limit(mOffsets[index] + mRows * mCols);
+        return new Mat(mRows, mCols, CV_8UC1, new BytePointer(pixels.slice()));
+    }
+
+    /**
+     * Copies a sample's pixels.
+     * @param index Sample index.
+     * @param pixels Receives rows * cols pixels.
+     */
+    public void getPixels(int index, byte[] pixels) {
+        ByteBuffer sample = mBuffer.duplicate();
+        sample.position(mOffsets[index]);
+        sample.get(pixels, 0, mRows * mCols);
+    }
+
+    /**
+     * Reads a length prefixed UTF-8 string.
+     * @throws IOException If the string does not fit in the file.
+     */
+    private String readString(File file, long position) throws IOException {
+        int capacity = mBuffer.capacity();
+        if (position + 4 > capacity) {
+            throw new IOException("Truncated string at " + position + " in " + file);
+        }
+        int length = mBuffer.getInt((int) position);
+        if (length < 0 || position + 4 + length > capacity) {
+            throw new IOException("Corrupt string length " + length + " at " + position + " in " + file);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = mBuffer.duplicate();
+        slice.position((int) position + 4);
+        slice.get(bytes);
+        return new String(bytes, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Closes the file. The mapping itself stays valid until this pack is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
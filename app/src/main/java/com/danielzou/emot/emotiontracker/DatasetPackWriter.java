@@ -0,0 +1,175 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Writes the faces {@link DatasetLoader} decoded from the dataset/(emotion)/ folders into a single
+ * {@link DatasetPack}, so the next load maps them instead of decoding every image again. The
+ * {@link DatasetIndex} decides which images are written and their groups, so duplicates are left
+ * out and the pack splits like the loose images.
+ */
+public class DatasetPackWriter {
+
+    private DatasetPackWriter() {
+    }
+
+    /**
+     * Writes the usable images of an index into a pack file, in index order.
+     * @param index Index of the data set, listing the images and their groups.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param fingerprint {@link DatasetIndex#fingerprint} of the images, taken before they were
+     *                    indexed and decoded.
+     * @param options Preprocessing the faces went through.
+     * @param faces Normalized CV_8UC1 face of each entry, entries without one are skipped.
+     * @param out Pack file to write, replaced if it exists.
+     * @return Number of samples written.
+     * @throws IOException If the pack cannot be written.
+     */
+    public static int write(DatasetIndex index, List<String> emotions, String fingerprint,
+                            FacePreprocessor.Options options, Map<DatasetIndex.Entry, Mat> faces, File out)
+            throws IOException {
+        int size = options.faceSize;
+        Output output = new Output(out, size, size, emotions, index.getGroupCount(), options.getKey(), fingerprint);
+        try {
+            byte[] pixels = new byte[size * size];
+            for (DatasetIndex.Entry entry : index.getUsableEntries()) {
+                Mat face = faces.get(entry);
+                if (face == null) {
+                    continue;
+                }
+                face.data().get(pixels);
+                output.add(entry.label, entry.getGroup(), pixels);
+            }
+            return output.finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * A pack being written to a temporary file next to its destination, moved into place by
+     * {@link #finish()}. Closing it before that deletes the temporary file.
+     */
+    static class Output implements Closeable {
+        private final File mOut;
+        private final File mTmp;
+        private final RandomAccessFile mFile;
+        private final int mSampleSize;
+        private final List<Integer> mLabels = new ArrayList<>();
+        private final List<Integer> mGroups = new ArrayList<>();
+        private final List<Long> mOffsets = new ArrayList<>();
+        private boolean mClosed;
+
+        /**
+         * Starts a pack by writing its header, label names, preprocessing key and fingerprint.
+         * @param out Pack file to write, replaced once the pack is finished.
+         * @param rows Height of every sample.
+         * @param cols Width of every sample.
+         * @param labelNames Name of every label.
+         * @param groupCount Number of {@link DatasetIndex} groups.
+         * @param key {@link FacePreprocessor.Options#getKey()} of the samples' preprocessing.
+         * @param fingerprint {@link DatasetIndex#fingerprint} of the images the samples come from.
+         * @throws IOException If the file cannot be written.
+         */
+        Output(File out, int rows, int cols, List<String> labelNames, int groupCount, String key,
+               String fingerprint) throws IOException {
+            mOut = out;
+            mTmp = new File(out.getPath() + ".tmp");
+            mFile = new RandomAccessFile(mTmp, "rw");
+            mSampleSize = rows * cols;
+            try {
+                mFile.setLength(0);
+                mFile.writeInt(DatasetPack.MAGIC);
+                mFile.writeInt(DatasetPack.VERSION);
+                mFile.writeInt(rows);
+                mFile.writeInt(cols);
+                mFile.writeInt(labelNames.size());
+                mFile.writeInt(0); // Sample count, patched by finish
+                mFile.writeLong(0); // Index offset, patched by finish
+                mFile.writeInt(groupCount);
+                Charset utf8 = Charset.forName("UTF-8");
+                for (String labelName : labelNames) {
+                    byte[] name = labelName.getBytes(utf8);
+                    mFile.writeInt(name.length);
+                    mFile.write(name);
+                }
+                byte[] keyBytes = key.getBytes(utf8);
+                mFile.writeInt(keyBytes.length);
+                mFile.write(keyBytes);
+                byte[] fingerprintBytes = fingerprint.getBytes(utf8);
+                mFile.writeInt(fingerprintBytes.length);
+                mFile.write(fingerprintBytes);
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Appends a sample.
+         * @param label Label of the sample.
+         * @param group {@link DatasetIndex} group of the sample.
+         * @param pixels 8-bit pixels, rows * cols of them.
+         * @throws IOException If the file cannot be written or the pack would exceed
+         * {@link DatasetPack#MAX_SIZE}.
+         */
+        void add(int label, int group, byte[] pixels) throws IOException {
+            if (mFile.getFilePointer() + mSampleSize + (mLabels.size() + 1L) * DatasetPack.INDEX_ENTRY_SIZE
+                    > DatasetPack.MAX_SIZE) {
+                throw new IOException("The data set does not fit in a pack of " + DatasetPack.MAX_SIZE + " bytes");
+            }
+            mLabels.add(label);
+            mGroups.add(group);
+            mOffsets.add(mFile.getFilePointer());
+            mFile.write(pixels, 0, mSampleSize);
+        }
+
+        /**
+         * Writes the index and moves the pack into place.
+         * @return Number of samples written.
+         * @throws IOException If the pack cannot be written or moved.
+         */
+        int finish() throws IOException {
+            long indexOffset = mFile.getFilePointer();
+            ByteBuffer index = ByteBuffer.allocate(mLabels.size() * DatasetPack.INDEX_ENTRY_SIZE);
+            for (int i = 0; i < mLabels.size(); i++) {
+                index.putInt(mLabels.get(i));
+                index.putInt(mGroups.get(i));
+                index.putLong(mOffsets.get(i));
+            }
+            mFile.write(index.array());
+            mFile.seek(20);
+            mFile.writeInt(mLabels.size());
+            mFile.writeLong(indexOffset);
+            mClosed = true;
+            mFile.close();
+            if (mOut.exists() && !mOut.delete() || !mTmp.renameTo(mOut)) {
+                mTmp.delete();
+                throw new IOException("Could not move pack into place at " + mOut);
+            }
+            return mLabels.size();
+        }
+
+        /**
+         * Abandons the pack unless it was finished.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mFile.close();
+                mTmp.delete();
+            }
+        }
+    }
+}
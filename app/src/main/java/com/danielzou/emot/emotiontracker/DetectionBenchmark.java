@@ -0,0 +1,181 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Compares the speed and recall of every {@link FaceDetector.Preset} on the same frames.
+ *
+ * Recall is measured against {@link FaceDetector.Preset#FULL}, the cascade's defaults at full
+ * resolution: a face it finds counts as found by another preset if one of that preset's boxes
+ * overlaps it with an intersection over union of at least {@link FaceDetector#MIN_IOU}. Every
+ * preset gets an untimed warm-up pass. A last line times {@link FaceDetector.Preset#BALANCED}
+ * scanning only the regions around the reference faces, as the tracker does between whole frame scans.
+ */
+public class DetectionBenchmark {
+
+    /**
+     * Size of the preview frames the data set's face crops are placed into.
+     */
+    static final int FRAME_WIDTH = 640;
+    static final int FRAME_HEIGHT = 480;
+
+    /**
+     * Side of a face in those frames, a face held at arm's length in a 640x480 preview.
+     */
+    static final int FRAME_FACE_SIZE = 200;
+
+    private DetectionBenchmark() {
+    }
+
+    /**
+     * Times every preset on preview sized frames made from the images of the data set. The images
+     * are 350x350 face crops, far smaller than a preview frame and almost entirely face, so each is
+     * shrunk to {@link #FRAME_FACE_SIZE} and placed in the middle of a
+     * {@link #FRAME_WIDTH}x{@link #FRAME_HEIGHT} frame of its mean grey. Prefer
+     * {@link #run(CascadeClassifier, List, int)} with recorded preview frames where they exist.
+     * @param cascade Loaded face cascade.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param emotions Emotion folder names.
+     * @param maxFrames Most images to use.
+     * @param rounds Timed passes over the images per preset.
+     * @return One line per preset.
+     */
+    public static String run(CascadeClassifier cascade, String trainingDirectoryPath, List<String> emotions,
+                             int maxFrames, int rounds) {
+        List<Mat> frames = new ArrayList<>();
+        try {
+            for (DatasetIndex.Entry entry : DatasetIndex.open(trainingDirectoryPath, emotions,
+                    Runtime.getRuntime().availableProcessors()).getEntries()) {
+                if (frames.size() >= maxFrames) {
+                    break;
+                }
+                if (!entry.isValid() || entry.isDuplicate()) {
+                    continue;
+                }
+                Mat gray = Imgcodecs.imread(entry.file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+                if (gray.empty()) {
+                    gray.release();
+                    continue;
+                }
+                frames.add(toFrame(gray));
+                gray.release();
+            }
+            return run(cascade, frames, rounds);
+        } finally {
+            for (Mat frame : frames) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Times every preset on the given frames.
+     * @param cascade Loaded face cascade.
+     * @param frames 8-bit grayscale frames.
+     * @param rounds Timed passes over the frames per preset.
+     * @return One line per preset and one for region scans.
+     */
+    public static String run(CascadeClassifier cascade, List<Mat> frames, int rounds) {
+        if (frames.isEmpty()) {
+            return "No frames to benchmark";
+        }
+        // Reference faces of every frame
+        List<Rect[]> reference = new ArrayList<>(frames.size());
+        FaceDetector full = new FaceDetector(cascade, FaceDetector.Preset.FULL);
+        for (Mat frame : frames) {
+            reference.add(full.detect(frame).toArray());
+        }
+        full.release();
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-10s%8s%12s%8s%10s\n", "preset", "width", "ms/frame", "faces",
+                "recall"));
+        for (FaceDetector.Preset preset : FaceDetector.Preset.values()) {
+            report.append(measure(cascade, preset, false, frames, reference, rounds));
+        }
+        report.append(measure(cascade, FaceDetector.Preset.BALANCED, true, frames, reference, rounds));
+        return report.toString();
+    }
+
+    /**
+     * @return The report line of one preset, scanning whole frames or the regions around the
+     * reference faces.
+     */
+    private static String measure(CascadeClassifier cascade, FaceDetector.Preset preset, boolean regions,
+                                  List<Mat> frames, List<Rect[]> reference, int rounds) {
+        FaceDetector detector = new FaceDetector(cascade, preset);
+        try {
+            int faces = 0;
+            int found = 0;
+            int expected = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                Rect[] boxes = detect(detector, frames.get(i), regions ? reference.get(i) : null).toArray();
+                faces += boxes.length;
+                for (Rect face : reference.get(i)) {
+                    expected++;
+                    if (matches(face, boxes)) {
+                        found++;
+                    }
+                }
+            }
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < frames.size(); i++) {
+                    detect(detector, frames.get(i), regions ? reference.get(i) : null);
+                }
+            }
+            double msPerFrame = (System.nanoTime() - start) / 1e6 / Math.max(1, rounds * frames.size());
+            return String.format(Locale.US, "%-10s%8s%12.2f%8d%9.1f%%\n", regions ? "roi" : preset.toString(),
+                    preset.width == 0 ? "full" : String.valueOf(preset.width), msPerFrame, faces,
+                    expected == 0 ? 100.0 : 100.0 * found / expected);
+        } finally {
+            detector.release();
+        }
+    }
+
+    /**
+     * @return A new preview sized frame with the crop shrunk into its middle.
+     */
+    private static Mat toFrame(Mat crop) {
+        Mat frame = new Mat(FRAME_HEIGHT, FRAME_WIDTH, CvType.CV_8UC1, Core.mean(crop));
+        Mat face = frame.submat(new Rect((FRAME_WIDTH - FRAME_FACE_SIZE) / 2, (FRAME_HEIGHT - FRAME_FACE_SIZE) / 2,
+                FRAME_FACE_SIZE, FRAME_FACE_SIZE));
+        Imgproc.resize(crop, face, face.size(), 0, 0, Imgproc.INTER_AREA);
+        face.release();
+        return frame;
+    }
+
+    private static MatOfRect detect(FaceDetector detector, Mat frame, Rect[] around) {
+        if (around == null) {
+            return detector.detect(frame);
+        }
+        int[] boxes = new int[4 * around.length];
+        for (int i = 0; i < around.length; i++) {
+            boxes[4 * i] = around[i].x;
+            boxes[4 * i + 1] = around[i].y;
+            boxes[4 * i + 2] = around[i].width;
+            boxes[4 * i + 3] = around[i].height;
+        }
+        return detector.detect(frame, boxes, around.length);
+    }
+
+    private static boolean matches(Rect face, Rect[] boxes) {
+        for (Rect box : boxes) {
+            if (TrackManager.iou(face, box) >= FaceDetector.MIN_IOU) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
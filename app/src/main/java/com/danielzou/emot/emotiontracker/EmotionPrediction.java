@@ -0,0 +1,141 @@
+package com.danielzou.emot.emotiontracker;
+
+/**
+ * The outcome of classifying one face: the predicted label, its distance and the distance of
+ * every other emotion class, ranked from nearest to farthest.
+ *
+ * Distances are measured in the model's projected space, so lower means more confident. The
+ * margin between the best and the second best class is a cheap way to reject uncertain frames.
+ * Instances are meant to be owned by the caller and refilled on every classification.
+ */
+public class EmotionPrediction {
+
+    private int mLabel = -1;
+    private double mDistance = Double.NaN;
+    private double[] mDistances = new double[0];
+    private int[] mRanking = new int[0];
+
+    /**
+     * @return Index into {@link EmotionRecognizer#emotionsArr}, -1 if nothing was classified yet.
+     */
+    public int getLabel() {
+        return mLabel;
+    }
+
+    /**
+     * @return Distance to the predicted class.
+     */
+    public double getDistance() {
+        return mDistance;
+    }
+
+    /**
+     * @param label Emotion label.
+     * @return Distance to the given class, infinite if the model has no samples of it.
+     */
+    public double getDistance(int label) {
+        return mDistances[label];
+    }
+
+    /**
+     * @return Number of classes distances are reported for.
+     */
+    public int getClassCount() {
+        return mDistances.length;
+    }
+
+    /**
+     * @param rank 0 for the predicted label, 1 for the runner-up and so on.
+     * @return Label at the given rank.
+     */
+    public int getRankedLabel(int rank) {
+        return mRanking[rank];
+    }
+
+    /**
+     * @param rank 0 for the predicted label, 1 for the runner-up and so on.
+     * @return Distance of the label at the given rank.
+     */
+    public double getRankedDistance(int rank) {
+        return mDistances[mRanking[rank]];
+    }
+
+    /**
+     * @return Distance of the runner-up minus distance of the prediction. Small margins mean the
+     * face sits between two classes.
+     */
+    public double getMargin() {
+        if (mRanking.length < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return mDistances[mRanking[1]] - mDistances[mRanking[0]];
+    }
+
+    /**
+     * Copies another prediction into this one.
+     * @param other Prediction to copy.
+     */
+    public void set(EmotionPrediction other) {
+        reset(other.mDistances.length);
+        System.arraycopy(other.mDistances, 0, mDistances, 0, mDistances.length);
+        System.arraycopy(other.mRanking, 0, mRanking, 0, mRanking.length);
+        mLabel = other.mLabel;
+        mDistance = other.mDistance;
+    }
+
+    /**
+     * Prepares for a new classification over the given number of classes. Every class starts out
+     * at an infinite distance.
+     * @param classes Number of classes.
+     */
+    void reset(int classes) {
+        if (mDistances.length != classes) {
+            mDistances = new double[classes];
+            mRanking = new int[classes];
+        }
+        for (int k = 0; k < classes; k++) {
+            mDistances[k] = Double.POSITIVE_INFINITY;
+        }
+        mLabel = -1;
+        mDistance = Double.NaN;
+    }
+
+    /**
+     * Lowers the distance of a class if the given one is nearer. Distances are offered squared so
+     * classifiers can skip the square root for every candidate.
+     * @param label Class.
+     * @param squaredDistance Candidate distance, squared.
+     */
+    void offerSquared(int label, double squaredDistance) {
+        if (squaredDistance < mDistances[label]) {
+            mDistances[label] = squaredDistance;
+        }
+    }
+
+    /**
+     * Ranks the classes by distance and picks the nearest as the label. Call after every class
+     * has been offered its distances.
+     */
+    void rank() {
+        int classes = mDistances.length;
+        for (int k = 0; k < classes; k++) {
+            mDistances[k] = Math.sqrt(mDistances[k]);
+        }
+        // Insertion sort, there are only a handful of classes
+        for (int k = 0; k < classes; k++) {
+            int j = k;
+            while (j > 0 && compare(k, mRanking[j - 1]) < 0) {
+                mRanking[j] = mRanking[j - 1];
+                j--;
+            }
+            mRanking[j] = k;
+        }
+        mLabel = classes == 0 ? -1 : mRanking[0];
+        mDistance = classes == 0 ? Double.NaN : mDistances[mLabel];
+    }
+
+    private int compare(int a, int b) {
+        // Classes without samples are infinitely far and sort last
+        return Double.compare(mDistances[a], mDistances[b]);
+    }
+}
@@ -4,22 +4,21 @@ import android.util.Log;
 
 import java.io.File;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
-import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
-import static org.bytedeco.javacpp.opencv_face.createFisherFaceRecognizer;
-import static org.bytedeco.javacpp.opencv_imgcodecs.CV_LOAD_IMAGE_GRAYSCALE;
-import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
 
-import org.bytedeco.javacpp.Pointer;
-import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_core.MatVector;
-import org.bytedeco.javacpp.opencv_imgproc;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
 
 /**
  * An EmotionRecognizer can recognize anger, disgust, fear, happy, neutral, sadness, and surprise
@@ -29,132 +28,735 @@ import org.bytedeco.javacpp.opencv_imgproc;
  * http://pcbje.com/2012/12/doing-face-recognition-with-javacv/.
  * As well as instructions from Paul Vangent at
  * http://www.paulvangent.com/2016/04/01/emotion-recognition-with-python-opencv-and-a-face-dataset/.
+ *
+ * The trained model can be replaced while the camera is running with {@link #swapModel}: the new
+ * model is loaded and warmed up in the background and published with a single reference swap.
+ * Calls already classifying finish on the old model, which is freed when the last of them returns.
  */
 public class EmotionRecognizer {
 
     private static final String TAG = EmotionRecognizer.class.getName();
+    // Percentage points of held-out accuracy the int8 engine may lose against the float one
+    private static final double MAX_QUANTIZATION_LOSS = 1.0;
+    // Camera path classifications run on a new model before it is published
+    private static final int WARM_UP_ROUNDS = 5;
 
-    FaceRecognizer mFaceRecognizer = createFisherFaceRecognizer();
-    final String[] emotionsArr = {"anger", "disgust", "fear", "happy", "neutral", "sadness", "surprise"};
+    private final String mTrainingDirectoryPath;
+    private final File mModelDirectory;
+    // The model classifying faces, replaced as a whole by swapModel()
+    private final AtomicReference<RecognizerModel> mActive;
+    // Builds models for swapModel() one at a time, its thread exits when idle
+    private final ThreadPoolExecutor mSwapExecutor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final EmotionPrediction mPrediction = new EmotionPrediction();
+    // Emotion folder names, the index of each is its label
+    static final List<String> EMOTIONS = Arrays.asList("anger", "disgust", "fear", "happy", "neutral", "sadness",
+            "surprise");
+    final String[] emotionsArr = EMOTIONS.toArray(new String[EMOTIONS.size()]);
     final List<String> emotions = Arrays.asList(emotionsArr);
-    List<Mat> trainingData = new ArrayList<>();
-    List<Integer> trainingLabels = new ArrayList<>();
-    List<Mat> predictionData = new ArrayList<>();
-    List<Integer> predictionLabels = new ArrayList<>();
 
+    /**
+     * Creates a recognizer, caching the trained model under trainingDirectoryPath/models/.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     */
     public EmotionRecognizer(String trainingDirectoryPath) {
+        this(trainingDirectoryPath, new File(trainingDirectoryPath, "models"));
+    }
+
+    /**
+     * Loads the model trained on the current data set from modelDirectory, or trains and saves it
+     * if the data set changed since the model was saved.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     */
+    public EmotionRecognizer(String trainingDirectoryPath, File modelDirectory) {
+        this(trainingDirectoryPath, modelDirectory, RecognizerBackend.FISHERFACES);
+    }
+
+    /**
+     * Loads the model of the given backend trained on the current data set from modelDirectory,
+     * or trains and saves it if the data set changed since the model was saved.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     * @param backend Face recognition algorithm to use.
+     */
+    public EmotionRecognizer(String trainingDirectoryPath, File modelDirectory, RecognizerBackend backend) {
+        this(trainingDirectoryPath, modelDirectory, backend, FacePreprocessor.Options.DEFAULT);
+    }
+
+    /**
+     * Like {@link #EmotionRecognizer(String, File, RecognizerBackend)}, with every training and
+     * camera face normalized with the given options.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     * @param backend Face recognition algorithm to use.
+     * @param preprocessing Face normalization shared by training and detection.
+     */
+    public EmotionRecognizer(String trainingDirectoryPath, File modelDirectory, RecognizerBackend backend,
+                             FacePreprocessor.Options preprocessing) {
+        mTrainingDirectoryPath = trainingDirectoryPath;
+        mModelDirectory = modelDirectory;
+        mActive = new AtomicReference<>(build(backend, preprocessing));
+    }
+
+    /**
+     * Loads the model of the given backend trained on the current data set from the model
+     * directory, or trains and saves it if the data set changed since the model was saved.
+     * @param backend Face recognition algorithm to use.
+     * @param preprocessing Face normalization shared by training and detection.
+     * @return The model, holding the caller's reference.
+     */
+    private RecognizerModel build(RecognizerBackend backend, FacePreprocessor.Options preprocessing) {
+        BackendModel trained = backend.newModel(mTrainingDirectoryPath, emotions, preprocessing);
+        // Variants of other face sizes are cached side by side instead of replacing each other
+        ModelCache modelCache = new ModelCache(mModelDirectory, backend.getModelName() + "-" + preprocessing.faceSize);
+        String datasetHash = ModelCache.hashDataset(mTrainingDirectoryPath, emotions, preprocessing.getKey());
+        TrainingSet trainingSet = null;
+        boolean cached;
+        RecognizerModel loaded;
+        try {
+            cached = modelCache.load(trained, datasetHash);
+            if (cached) {
+                Log.i(TAG, "Using cached " + backend + " classifier, skipping training");
+            } else if (!trained.needsTrainingSet()) {
+                Log.e(TAG, "Training " + backend + " classifier from disk...");
+                trained.train(null);
+                modelCache.save(trained, datasetHash);
+            } else {
+                trainingSet = train(backend, preprocessing, trained);
+                modelCache.save(trained, datasetHash);
+            }
+            if (!cached) {
+                // Models cached before the face size was part of the name are never loaded again
+                ModelCache.deleteUnsized(mModelDirectory, backend.getModelName());
+            }
+            loaded = new RecognizerModel(backend, preprocessing, trained);
+        } catch (RuntimeException e) {
+            if (trainingSet != null) {
+                trainingSet.release();
+            }
+            trained.release();
+            throw e;
+        }
+        FacePredictor predictor = loaded.mPredictor;
+        StreamingFisherTrainer streamingTrainer = trained instanceof StreamingFisherTrainer
+                ? (StreamingFisherTrainer) trained : null;
+        if (streamingTrainer != null && !cached) {
+            // The prediction images were never loaded, so they are read back one at a time
+            FacePredictor.Engine engine = predictor.getEngine();
+            for (FacePredictor.Engine candidate : FacePredictor.Engine.values()) {
+                predictor.setEngine(candidate);
+                Log.i(TAG, "Classifier accuracy (" + candidate + ") is: " + (int) streamingTrainer.evaluate(predictor));
+            }
+            predictor.setEngine(engine);
+        }
+        if (trainingSet != null) {
+            try {
+                evaluate(loaded, trainingSet);
+            } finally {
+                trainingSet.release();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads the data set and trains the classifier on 80% of it.
+     * The training images are released as soon as train() returns.
+     * @param backend Backend being trained.
+     * @param preprocessing Face normalization to load the data set with.
+     * @param trained Model to train.
+     * @return The loaded set, still holding the prediction images. The caller must release it.
+     */
+    private TrainingSet train(RecognizerBackend backend, FacePreprocessor.Options preprocessing,
+                              BackendModel trained) {
+        TrainingSet trainingSet = newLoader(mTrainingDirectoryPath, preprocessing).load();
+        try {
+            Log.e(TAG, "Training " + backend + " classifier...");
+            Log.e(TAG, "The size of training data set is: " + trainingSet.size() + " images");
+
+            long start = System.currentTimeMillis();
+            trained.train(trainingSet);
+            trainingSet.getTimings().trainingMs = System.currentTimeMillis() - start;
+            trainingSet.releaseTrainingData();
+            Log.i(TAG, "Data set timings: " + trainingSet.getTimings());
+            return trainingSet;
+        } catch (RuntimeException e) {
+            trainingSet.release();
+            throw e;
+        }
+    }
 
-        // Load the training data into memory
-        String trainingDir = trainingDirectoryPath;
-        for (String emotion : emotions) {
-            List<List<File>> files = getFiles(trainingDir, emotion);
-            List<File> training = files.get(0);
-            List<File> prediction = files.get(1);
-            for (File item : training) {
-                Mat gray = imread(item.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
-                if (gray.rows() == 350 && gray.cols() == 350) {
-                    trainingData.add(gray);
-                    trainingLabels.add(emotions.indexOf(emotion));
+    /**
+     * Logs the accuracy of every engine on the prediction set, and their latency if debug logging
+     * is enabled for this class.
+     * @param loaded Model to evaluate.
+     * @param trainingSet Set holding the prediction images.
+     */
+    private void evaluate(RecognizerModel loaded, TrainingSet trainingSet) {
+        FacePredictor predictor = loaded.mPredictor;
+        // Test the accuracy of the emotion classifier
+        Log.e(TAG, "Predicting classification set...");
+        List<Mat> predictionData = trainingSet.getPredictionImages();
+        int[] predictionLabels = trainingSet.getPredictionLabels();
+        if (predictionData.isEmpty()) {
+            return;
+        }
+        FacePredictor.Engine engine = predictor.getEngine();
+        EmotionPrediction prediction = new EmotionPrediction();
+        // Without a subspace the engine is ignored, so there is only one path to measure
+        FacePredictor.Engine[] candidates = loaded.mModel != null ? FacePredictor.Engine.values()
+                : new FacePredictor.Engine[] {engine};
+        for (FacePredictor.Engine candidate : candidates) {
+            predictor.setEngine(candidate);
+            int correct = 0;
+            for (int i = 0; i < predictionData.size(); i++) {
+                predictor.detectEmotion(predictionData.get(i), prediction);
+                if (prediction.getLabel() == predictionLabels[i]) {
+                    correct++;
                 }
             }
-            for (File item : prediction) {
-                Mat gray = imread(item.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
-                if (gray.rows() == 350 && gray.cols() == 350) {
-                    predictionData.add(gray);
-                    predictionLabels.add(emotions.indexOf(emotion));
+            Log.i(TAG, "Classifier accuracy (" + candidate + ") is: " + ((100 * correct) / predictionData.size()));
+        }
+        predictor.setEngine(engine);
+
+        if (loaded.mModel != null) {
+            QuantizedProjection.Calibration calibration =
+                    loaded.mModel.getQuantizedProjection().calibrate(predictionData, predictionLabels);
+            if (calibration.getAccuracyLoss() > MAX_QUANTIZATION_LOSS) {
+                Log.w(TAG, "int8 engine loses too much accuracy, falling back to the Java engine: " + calibration);
+                loaded.mModel.rejectQuantization();
+                if (predictor.getEngine() == FacePredictor.Engine.INT8) {
+                    predictor.setEngine(FacePredictor.Engine.JAVA);
+                }
+            } else {
+                Log.i(TAG, "int8 calibration: " + calibration);
+            }
+        }
+
+        if (loaded.mFaceRecognizer != null && loaded.mModel != null && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Prediction latency:\n"
+                    + PredictionBenchmark.run(loaded.mFaceRecognizer, predictor, predictionData, 3));
+        }
+    }
+
+    /**
+     * Replaces the model with one of another backend, keeping the face normalization. See
+     * {@link #swapModel(RecognizerBackend, FacePreprocessor.Options)}.
+     * @param backend Face recognition algorithm to switch to.
+     * @return A future completing once the new model is published.
+     */
+    public Future<Void> swapModel(RecognizerBackend backend) {
+        return swapModel(backend, getPreprocessing());
+    }
+
+    /**
+     * Replaces the model without interrupting detection. The new model is loaded from the model
+     * cache or trained on a background thread and warmed up on the camera path, then published
+     * with a single reference swap; detection never waits for it. Calls already classifying
+     * finish on the old model, whose native memory is freed as soon as the last of them returns,
+     * or when pools created from it are shut down. The current engine is kept; ensemble mode and
+     * personalization apply to the old model only and end with it. Swaps run one at a time in the
+     * order they were requested.
+     * @param backend Face recognition algorithm of the new model.
+     * @param preprocessing Face normalization of the new model.
+     * @return A future completing once the new model is published, or failing with the error
+     * that kept it from loading, in which case the old model stays.
+     */
+    public Future<Void> swapModel(final RecognizerBackend backend, final FacePreprocessor.Options preprocessing) {
+        return mSwapExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                long start = System.currentTimeMillis();
+                RecognizerModel fresh = build(backend, preprocessing);
+                long warmMicros;
+                try {
+                    fresh.mPredictor.setEngine(mActive.get().mPredictor.getEngine());
+                    org.opencv.core.Mat face = PredictionBenchmark.syntheticFace(ResolutionBenchmark.CROP_SIZE);
+                    try {
+                        // The first classifications allocate the predictor's buffers and fault the model in
+                        warmMicros = PredictionBenchmark.cameraLatencyMicros(fresh.mPredictor, face, WARM_UP_ROUNDS);
+                    } finally {
+                        face.release();
+                    }
+                } catch (RuntimeException e) {
+                    fresh.release();
+                    throw e;
                 }
+                RecognizerModel old = mActive.getAndSet(fresh);
+                old.release();
+                Log.i(TAG, "Swapped " + old.mBackend + " at " + old.mPreprocessing.faceSize + "px for " + backend
+                        + " at " + preprocessing.faceSize + "px after " + (System.currentTimeMillis() - start)
+                        + " ms, " + warmMicros + " us per face when warm");
+                return null;
+            }
+        });
+    }
 
+    /**
+     * Takes a reference to the active model, which stays usable until it is released even if it
+     * is swapped out meanwhile.
+     * @return The model, to be released by the caller.
+     */
+    private RecognizerModel acquireModel() {
+        while (true) {
+            RecognizerModel model = mActive.get();
+            // Fails only if the model was swapped out and freed since it was read
+            if (model.acquire()) {
+                return model;
             }
         }
-        Log.e(TAG, "Training fisher face classifier...");
-        Log.e(TAG, "The size of training data set (data) is: " + trainingData.size() + " images");
-        Log.e(TAG, "The size of training data set (labels) is: " + trainingLabels.size() + " images");
-        //Log the emotion labels loaded into memory
-//        for (int label: trainingLabels) {
-//            Log.e(TAG, emotionsArr[label]);
-//        }
+    }
+
+    /**
+     * @return A new predictor on this recognizer's current model, on the default engine.
+     */
+    FacePredictor newPredictor() {
+        return mActive.get().newPredictor();
+    }
+
+    /**
+     * Switches to ensemble mode: every face is classified by cheap first and only faces whose
+     * cheap margin is below minMargin are classified by this recognizer, see
+     * {@link EnsemblePredictor}. Both recognizers' current engines are used. Takes effect on the
+     * next detectEmotion(s) call and lasts until this recognizer's model is swapped. Cheap's
+     * current model is kept alive for the ensemble even if cheap swaps its model.
+     * @param cheap Faster recognizer trained on the same emotions, such as a smaller
+     *              {@link RecognizerVariants} variant on the Java engine.
+     * @param minMargin Margin from which cheap's prediction is trusted, see
+     *                  {@link #calibrateEnsemble}.
+     * @return The ensemble, to read its early exit statistics from.
+     */
+    public EnsemblePredictor setEnsemble(EmotionRecognizer cheap, double minMargin) {
+        return setEnsemble(cheap, null, minMargin);
+    }
 
-        /*
-         * Move training data into mat and mat vector
-         *
-         * Developed with the help of the JavaCV OpenCVFaceRecognizer sample
-         */
-        opencv_core.MatVector matVectorOfTrainingData = new MatVector(trainingData.size());
-        opencv_core.Mat matOfTrainingLabels = new Mat(trainingLabels.size(), 1, CV_32SC1);
-        IntBuffer labelsBuf = matOfTrainingLabels.createBuffer();
-        int counter = 0;
-        for (Mat image : trainingData) {
-            matVectorOfTrainingData.put(counter, image);
-            counter++;
+    /**
+     * Like {@link #setEnsemble(EmotionRecognizer, double)}, with the ensemble's copy of cheap's
+     * predictor on the given engine. Cheap itself keeps its engine.
+     * @param cheap Faster recognizer trained on the same emotions.
+     * @param cheapEngine Engine of the ensemble's cheap predictor, null for cheap's current one.
+     * @param minMargin Margin from which cheap's prediction is trusted, calibrated on the same
+     *                  engine.
+     * @return The ensemble, to read its early exit statistics from.
+     */
+    public EnsemblePredictor setEnsemble(EmotionRecognizer cheap, FacePredictor.Engine cheapEngine,
+                                         double minMargin) {
+        RecognizerModel model = acquireModel();
+        try {
+            RecognizerModel cheapModel = cheap.acquireModel();
+            FacePredictor cheapPredictor = cheapModel.newPredictor();
+            cheapPredictor.setEngine(cheapEngine != null ? cheapEngine : cheapModel.mPredictor.getEngine());
+            FacePredictor fullPredictor = model.newPredictor();
+            fullPredictor.setEngine(model.mPredictor.getEngine());
+            fullPredictor.setAdapter(model.mPredictor.getAdapter());
+            EnsemblePredictor ensemble = new EnsemblePredictor(cheapPredictor, fullPredictor, minMargin);
+            // Frees the ensemble replaced, with its predictors and cheap model, once no call uses it
+            model.setEnsemble(new RecognizerModel.Ensemble(ensemble, cheapModel));
+            Log.i(TAG, "Ensemble of " + cheapModel.mBackend + " at " + cheapModel.mPreprocessing.faceSize
+                    + "px and " + model.mBackend + " at " + model.mPreprocessing.faceSize + "px, minimum margin "
+                    + minMargin);
+            return ensemble;
+        } finally {
+            model.release();
         }
-        counter = 0;
-        for (int label : trainingLabels) {
-            labelsBuf.put(counter, label);
-            counter++;
+    }
+
+    /**
+     * @return The ensemble classifying faces, null when this recognizer classifies alone.
+     */
+    public EnsemblePredictor getEnsemble() {
+        return mActive.get().getEnsemble();
+    }
+
+    /**
+     * Leaves ensemble mode, classifying every face with this recognizer alone again. The
+     * ensemble's predictors and its hold on cheap's model are freed once no call uses them.
+     */
+    public void clearEnsemble() {
+        RecognizerModel model = acquireModel();
+        try {
+            model.setEnsemble(null);
+        } finally {
+            model.release();
         }
+    }
 
-        mFaceRecognizer.train(matVectorOfTrainingData, matOfTrainingLabels);
+    /**
+     * Finds the minimum margin for {@link #setEnsemble} on this recognizer's held-out faces. Does
+     * not touch either recognizer's model.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param cheap Faster recognizer trained on the same data set split.
+     * @param maxAccuracyLoss Percentage points of held-out accuracy the ensemble may lose against
+     *                        this recognizer alone.
+     * @return The smallest margin within the loss, positive infinity if there is none.
+     */
+    public double calibrateEnsemble(String trainingDirectoryPath, EmotionRecognizer cheap, double maxAccuracyLoss) {
+        return calibrateEnsemble(trainingDirectoryPath, cheap, null, maxAccuracyLoss);
+    }
 
-        // Test the accuracy of the emotion classifier
-        Log.e(TAG, "Predicting classification set...");
-        int count = 0;
-        int correct = 0;
-        int incorrect = 0;
-        for (Mat image : predictionData) {
-            int prediction = detectEmotion(image);
-            if (prediction == predictionLabels.get(count)) {
-                correct++;
-                count++;
-            } else {
-                incorrect++;
-                count++;
+    /**
+     * Like {@link #calibrateEnsemble(String, EmotionRecognizer, double)}, with cheap classifying
+     * on the given engine.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param cheap Faster recognizer trained on the same data set split.
+     * @param cheapEngine Engine to classify with cheap's model, null for cheap's current one.
+     * @param maxAccuracyLoss Percentage points of held-out accuracy the ensemble may lose against
+     *                        this recognizer alone.
+     * @return The smallest margin within the loss, positive infinity if there is none.
+     */
+    public double calibrateEnsemble(String trainingDirectoryPath, EmotionRecognizer cheap,
+                                    FacePredictor.Engine cheapEngine, double maxAccuracyLoss) {
+        RecognizerModel model = acquireModel();
+        RecognizerModel cheapModel = cheap.acquireModel();
+        TrainingSet trainingSet = null;
+        FacePredictor cheapPredictor = null;
+        FacePredictor fullPredictor = null;
+        try {
+            trainingSet = newLoader(trainingDirectoryPath, model.mPreprocessing).load();
+            cheapPredictor = cheapModel.newPredictor();
+            cheapPredictor.setEngine(cheapEngine != null ? cheapEngine : cheapModel.mPredictor.getEngine());
+            fullPredictor = model.newPredictor();
+            fullPredictor.setEngine(model.mPredictor.getEngine());
+            double minMargin = EnsemblePredictor.chooseMinMargin(cheapPredictor, fullPredictor,
+                    trainingSet.getPredictionImages(), trainingSet.getPredictionLabels(), maxAccuracyLoss);
+            Log.i(TAG, "Ensemble minimum margin for " + maxAccuracyLoss + "% loss: " + minMargin);
+            return minMargin;
+        } finally {
+            if (trainingSet != null) {
+                trainingSet.release();
+            }
+            if (cheapPredictor != null) {
+                cheapPredictor.release();
+            }
+            if (fullPredictor != null) {
+                fullPredictor.release();
+            }
+            cheapModel.release();
+            model.release();
+        }
+    }
+
+    /**
+     * Evaluates this recognizer's backend with stratified k-fold cross-validation, running the
+     * folds concurrently. Does not touch this recognizer's model. Streaming backends cannot be
+     * cross-validated and throw IllegalArgumentException.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param folds Number of folds.
+     * @param seed Seed for assigning samples to folds, the same seed gives the same folds.
+     * @return Confusion matrix, per-class precision and recall and per-fold wall time.
+     */
+    public EvaluationReport crossValidate(String trainingDirectoryPath, int folds, long seed) {
+        return new CrossValidator(getBackend(), folds, seed).evaluate(trainingDirectoryPath, emotions,
+                getPreprocessing());
+    }
+
+    private DatasetLoader newLoader(String trainingDirectoryPath, FacePreprocessor.Options preprocessing) {
+        return new DatasetLoader(trainingDirectoryPath, emotions, Runtime.getRuntime().availableProcessors(),
+                DatasetLoader.DEFAULT_SEED, preprocessing);
+    }
+
+    /**
+     * Trains every backend on the same split of the data set and compares their train time,
+     * predict latency, accuracy and saved model size. Does not touch this recognizer's model.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param scratchDirectory Directory the models are temporarily saved in to measure their size.
+     * @return One line per backend.
+     */
+    public String benchmarkBackends(String trainingDirectoryPath, File scratchDirectory) {
+        FacePreprocessor.Options preprocessing = getPreprocessing();
+        TrainingSet trainingSet = newLoader(trainingDirectoryPath, preprocessing).load();
+        try {
+            String report = BackendBenchmark.run(trainingDirectoryPath, emotions, trainingSet, preprocessing,
+                    scratchDirectory);
+            Log.i(TAG, "Backend benchmark:\n" + report);
+            return report;
+        } finally {
+            trainingSet.release();
+        }
+    }
+
+    /**
+     * Trains the backend of this recognizer at several face sizes and compares their accuracy and
+     * camera latency, so a size can be picked for a latency budget. Does not touch this
+     * recognizer's model.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param sizes Face sizes to compare.
+     * @return One line per size.
+     */
+    public String benchmarkResolutions(String trainingDirectoryPath, int[] sizes) {
+        String report = ResolutionBenchmark.run(trainingDirectoryPath, emotions, getBackend(), getPreprocessing(),
+                sizes);
+        Log.i(TAG, "Resolution benchmark:\n" + report);
+        return report;
+    }
+
+    /**
+     * Times the full camera path, preprocessing included, on a synthetic face. Not thread safe.
+     * @param rounds Timed classifications.
+     * @return Mean latency per face in microseconds.
+     */
+    public long measureLatencyMicros(int rounds) {
+        org.opencv.core.Mat face = PredictionBenchmark.syntheticFace(ResolutionBenchmark.CROP_SIZE);
+        try {
+            return measureLatencyMicros(face, rounds);
+        } finally {
+            face.release();
+        }
+    }
+
+    /**
+     * Times the full camera path, preprocessing included. Not thread safe.
+     * @param face 8-bit grayscale face crop, see {@link PredictionBenchmark#sampleFace}.
+     * @param rounds Timed classifications.
+     * @return Mean latency per face in microseconds.
+     */
+    public long measureLatencyMicros(org.opencv.core.Mat face, int rounds) {
+        RecognizerModel model = acquireModel();
+        try {
+            return PredictionBenchmark.cameraLatencyMicros(model.mPredictor, face, rounds);
+        } finally {
+            model.release();
+        }
+    }
+
+    /**
+     * Frees the model once the calls classifying with it have returned. Pools created before keep
+     * it alive until they are shut down. Must not be called while a swap is pending; the
+     * recognizer cannot be used afterwards.
+     */
+    public void release() {
+        mSwapExecutor.shutdown();
+        mActive.get().release();
+    }
+
+    /**
+     * @return The face normalization this recognizer was trained with.
+     */
+    public FacePreprocessor.Options getPreprocessing() {
+        return mActive.get().mPreprocessing;
+    }
+
+    /**
+     * @return The face recognition algorithm this recognizer was built on.
+     */
+    public RecognizerBackend getBackend() {
+        return mActive.get().mBackend;
+    }
+
+    /**
+     * Folds new labeled faces into the trained model without retraining, for example samples of
+     * the current user. Only backends that {@link RecognizerBackend#supportsUpdate()} can do this.
+     * The update is not written to the model cache, so a recognizer created later starts again
+     * from the data set. Safe to call while another thread is detecting emotions.
+     * @param faces 8-bit grayscale faces of any size, cropped with a margin like the data set
+     *              images and normalized like them.
+     * @param labels Emotion label of each face.
+     */
+    public void update(List<org.opencv.core.Mat> faces, int[] labels) {
+        if (faces.size() != labels.length) {
+            throw new IllegalArgumentException(faces.size() + " faces but " + labels.length + " labels");
+        }
+        RecognizerModel model = acquireModel();
+        try {
+            update(model, faces, labels);
+        } finally {
+            model.release();
+        }
+    }
+
+    private void update(RecognizerModel model, List<org.opencv.core.Mat> faces, int[] labels) {
+        if (!model.mBackend.supportsUpdate()) {
+            throw new UnsupportedOperationException(model.mBackend + " cannot be updated, it must be retrained");
+        }
+        long start = System.currentTimeMillis();
+        FacePreprocessor preprocessor = new FacePreprocessor(model.mPreprocessing);
+        MatBridge bridge = new MatBridge();
+        MatVector images = new MatVector(faces.size());
+        Mat labelsMat = new Mat(labels.length, 1, CV_32SC1);
+        IntBuffer labelsBuf = labelsMat.createBuffer();
+        try {
+            for (int i = 0; i < labels.length; i++) {
+                Mat face = new Mat();
+                bridge.wrap(preprocessor.process(faces.get(i))).copyTo(face);
+                images.put(i, face);
+                labelsBuf.put(i, labels[i]);
             }
+            bridge.release();
+            synchronized (model.mFaceRecognizer) {
+                model.mFaceRecognizer.update(images, labelsMat);
+            }
+        } finally {
+            images.deallocate();
+            labelsMat.deallocate();
         }
-        Log.i(TAG, "Classifier accuracy is: " + ((100 * correct)/(correct + incorrect)));
+        Log.i(TAG, "Updated " + model.mBackend + " with " + labels.length + " faces in "
+                + (System.currentTimeMillis() - start) + " ms");
     }
 
     /**
-     * Splits data set in training set and prediction set 80-20.
-     * @param trainingDir
-     * @param emotion
-     * @return Returns the training set in the 0 index and the prediction set in the 1 index.
+     * Creates a pool for classifying faces from several threads at once. The pool shares this
+     * recognizer's current model, which it keeps alive across swaps until the caller shuts it
+     * down.
+     * @param threads Maximum number of faces classified at the same time.
+     * @return A new pool using this recognizer's engine.
      */
-    public List<List<File>> getFiles(String trainingDir, String emotion) {
-        String emotionDirectoryPath = trainingDir + "dataset/" + emotion + "/"; // File path on Mac, Android uses forward slashes.
-        Log.e(TAG, "Root directory: " + emotionDirectoryPath);
-        File emotionDir = new File(emotionDirectoryPath);
-        File filesArr[] = emotionDir.listFiles();
-        Log.e(TAG, "Number of files in this dir: " + filesArr.length);
-        List<File> files = Arrays.asList(filesArr);
+    public RecognizerPool createPool(int threads) {
+        final RecognizerModel model = acquireModel();
+        RecognizerPool pool;
+        if (model.mHogSvm != null) {
+            pool = new RecognizerPool(model.mHogSvm, model.mPreprocessing, threads);
+        } else if (model.mModel != null) {
+            pool = new RecognizerPool(model.mModel, model.mPreprocessing, threads);
+        } else {
+            pool = new RecognizerPool(model.mFaceRecognizer, emotions.size(), model.mPreprocessing, threads);
+        }
+        pool.setEngine(model.mPredictor.getEngine());
+        pool.setAdapter(model.mPredictor.getAdapter());
+        pool.setOnShutdown(new Runnable() {
+            @Override
+            public void run() {
+                model.release();
+            }
+        });
+        return pool;
+    }
 
-        Collections.shuffle(files);
+    /**
+     * Starts adapting this recognizer to one user. Corrections recorded with
+     * {@link Personalizer#record} are stored under userDirectory and shift the emotion classes
+     * towards the user's faces in the background, without blocking detection. Replaces any
+     * personalizer started before, which the caller should shut down. Adapts the current model
+     * only, a swapped in model starts without personalization.
+     * @param userDirectory Directory the user's samples are kept in.
+     * @return The personalizer to record corrections with.
+     */
+    public Personalizer personalize(File userDirectory) {
+        RecognizerModel model = acquireModel();
+        try {
+            if (model.mModel == null) {
+                throw new UnsupportedOperationException(model.mBackend + " has no subspace to adapt");
+            }
+            Personalizer personalizer = new Personalizer(model.mModel, model.mPreprocessing, userDirectory);
+            model.mPredictor.setAdapter(personalizer.getAdapter());
+            return personalizer;
+        } finally {
+            model.release();
+        }
+    }
 
-        List<File> training = files.subList(0, (int)(.8 * files.size()));
-        Log.e(TAG, "Training set size: " + training.size());
-        List<File> prediction = files.subList((int)(.8 * files.size()) + 1, files.size());
-        Log.e(TAG, "Prediction set size: " + prediction.size());
-        List<List<File>> sets = new ArrayList<>();
-        sets.add(0, training);
-        sets.add(1, prediction);
-        return sets;
+    /**
+     * Stops adapting to a user, classifying with the data set alone again.
+     */
+    public void stopPersonalizing() {
+        mActive.get().mPredictor.setAdapter(null);
     }
 
     /**
-     * Conversion from OpenCV to JavaCV mat
-     * https://github.com/bytedeco/javacpp/issues/38
-     * @param image
-     * @return
+     * @return The engine used by {@link #detectEmotions}.
+     */
+    public FacePredictor.Engine getEngine() {
+        return mActive.get().mPredictor.getEngine();
+    }
+
+    /**
+     * Switches between the native, the pure Java and the int8 prediction engine. Takes effect on
+     * the next {@link #detectEmotions} call. The int8 engine falls back to the Java one if
+     * calibration found it too inaccurate.
+     * @param engine Engine to use.
+     */
+    public void setEngine(FacePredictor.Engine engine) {
+        mActive.get().mPredictor.setEngine(engine);
+    }
+
+    /**
+     * Detects the emotion of a cropped face. The face is normalized by a {@link FacePreprocessor}
+     * into reused buffers, so nothing is allocated per call. Not thread safe.
+     * @param image Grayscale face of any size.
+     * @return Integer representing the recognized emotion.
      */
     public int detectEmotion(org.opencv.core.Mat image) {
-        final org.opencv.core.Mat image2 = image;
-        Mat imageJavaCV = new Mat((Pointer)null) { { address = image2.getNativeObjAddr(); } };
-        //Reshape needs clone - http://answers.opencv.org/question/22042/reshape-function-problem/
-        Mat imageJavaCVResized = new Mat();
-        opencv_imgproc.resize(imageJavaCV, imageJavaCVResized, new opencv_core.Size(350,350));
+        return detectEmotion(image, mPrediction).getLabel();
+    }
+
+    /**
+     * Detects the emotion of a cropped face, including the distance to every emotion class so
+     * callers can drop uncertain frames. Not thread safe.
+     * @param image Grayscale face of any size.
+     * @param prediction Caller-owned prediction that is overwritten with the result.
+     * @return prediction, for chaining.
+     */
+    public EmotionPrediction detectEmotion(org.opencv.core.Mat image, EmotionPrediction prediction) {
+        RecognizerModel model = acquireModel();
+        try {
+            RecognizerModel.Ensemble ensemble = model.acquireEnsemble();
+            if (ensemble != null) {
+                try {
+                    ensemble.mPredictor.detectEmotion(image, prediction);
+                } finally {
+                    ensemble.release();
+                }
+            } else {
+                model.mPredictor.detectEmotion(image, prediction);
+            }
+            return prediction;
+        } finally {
+            model.release();
+        }
+    }
 
-        int predictedLabel = mFaceRecognizer.predict(imageJavaCVResized);
+    /**
+     * Detects the emotions of all faces in a frame with one projection for the whole batch.
+     * Not thread safe.
+     * @param faces Face rectangles inside frame.
+     * @param frame Grayscale frame the faces were detected in.
+     * @param results Reusable holder receiving one prediction per face.
+     * @return results, for chaining.
+     */
+    public EmotionResults detectEmotions(MatOfRect faces, org.opencv.core.Mat frame, EmotionResults results) {
+        RecognizerModel model = acquireModel();
+        try {
+            RecognizerModel.Ensemble ensemble = model.acquireEnsemble();
+            if (ensemble != null) {
+                try {
+                    ensemble.mPredictor.detectEmotions(faces, frame, results);
+                } finally {
+                    ensemble.release();
+                }
+            } else {
+                model.mPredictor.detectEmotions(faces, frame, results);
+            }
+            return results;
+        } finally {
+            model.release();
+        }
+    }
 
-        return predictedLabel;
+    /**
+     * Detects the emotions of all faces in a frame with one projection for the whole batch.
+     * Not thread safe.
+     * @param faces Face rectangles inside frame.
+     * @param frame Grayscale frame the faces were detected in.
+     * @param results Reusable holder receiving one prediction per face.
+     * @return results, for chaining.
+     */
+    public EmotionResults detectEmotions(List<Rect> faces, org.opencv.core.Mat frame, EmotionResults results) {
+        RecognizerModel model = acquireModel();
+        try {
+            RecognizerModel.Ensemble ensemble = model.acquireEnsemble();
+            if (ensemble != null) {
+                try {
+                    ensemble.mPredictor.detectEmotions(faces, frame, results);
+                } finally {
+                    ensemble.release();
+                }
+            } else {
+                model.mPredictor.detectEmotions(faces, frame, results);
+            }
+            return results;
+        } finally {
+            model.release();
+        }
     }
 
     /**
@@ -163,8 +765,22 @@ public class EmotionRecognizer {
      * @return Integer representing the recognized emotion.
      */
     public int detectEmotion(Mat image) {
-        int predictedLabel = mFaceRecognizer.predict(image);
+        RecognizerModel model = acquireModel();
+        try {
+            if (model.mFaceRecognizer == null) {
+                synchronized (model.mPredictor) {
+                    model.mPredictor.detectEmotion(image, mPrediction);
+                    return mPrediction.getLabel();
+                }
+            }
+            int predictedLabel;
+            synchronized (model.mFaceRecognizer) {
+                predictedLabel = model.mFaceRecognizer.predict(image);
+            }
 
-        return predictedLabel;
+            return predictedLabel;
+        } finally {
+            model.release();
+        }
     }
 }
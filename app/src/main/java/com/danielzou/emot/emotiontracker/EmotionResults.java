@@ -0,0 +1,59 @@
+package com.danielzou.emot.emotiontracker;
+
+/**
+ * Reusable holder for the emotions detected in one frame, one {@link EmotionPrediction} per face
+ * in the order the faces were passed in. Keep one instance per caller and pass it to every
+ * {@link EmotionRecognizer#detectEmotions} call so nothing is allocated per frame.
+ */
+public class EmotionResults {
+
+    private int mSize;
+    private EmotionPrediction[] mPredictions = new EmotionPrediction[0];
+
+    /**
+     * @return Number of faces in the last classified frame.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index Face index.
+     * @return The full prediction for the face, including the distance to every class.
+     */
+    public EmotionPrediction get(int index) {
+        return mPredictions[index];
+    }
+
+    /**
+     * @param index Face index.
+     * @return Index into {@link EmotionRecognizer#emotionsArr}.
+     */
+    public int getLabel(int index) {
+        return mPredictions[index].getLabel();
+    }
+
+    /**
+     * @param index Face index.
+     * @return Distance to the predicted class, lower is more confident.
+     */
+    public double getConfidence(int index) {
+        return mPredictions[index].getDistance();
+    }
+
+    /**
+     * Resets the holder for a frame with the given number of faces, growing it if needed.
+     * @param size Number of faces.
+     */
+    void reset(int size) {
+        if (mPredictions.length < size) {
+            EmotionPrediction[] predictions = new EmotionPrediction[size];
+            System.arraycopy(mPredictions, 0, predictions, 0, mPredictions.length);
+            for (int i = mPredictions.length; i < size; i++) {
+                predictions[i] = new EmotionPrediction();
+            }
+            mPredictions = predictions;
+        }
+        mSize = size;
+    }
+}
@@ -0,0 +1,108 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+
+/**
+ * Turns the noisy predictions of one face into a steady emotion.
+ *
+ * Every prediction casts a vote for its label into an exponential moving vote: between two
+ * predictions dt milliseconds apart the old votes decay by 0.5^(dt / half-life), so a face that
+ * is only classified every few hundred milliseconds still follows a real change of expression
+ * within about one half-life. The reported label only switches to another class once that class
+ * leads the current one by the minimum lead, which stops it flickering between two close classes.
+ */
+public class EmotionSmoother {
+
+    /**
+     * Time for a vote to lose half its weight unless another half-life is given.
+     */
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 400;
+
+    /**
+     * Share of the votes another class must lead by to replace the label unless another lead is
+     * given.
+     */
+    public static final double DEFAULT_MIN_LEAD = 0.15;
+
+    private final long mHalfLifeMillis;
+    private final double mMinLead;
+    private double[] mVotes = new double[0];
+    private int mLabel = -1;
+    private long mLastMillis = -1;
+
+    public EmotionSmoother() {
+        this(DEFAULT_HALF_LIFE_MILLIS, DEFAULT_MIN_LEAD);
+    }
+
+    /**
+     * @param halfLifeMillis Time for a vote to lose half its weight.
+     * @param minLead Share of the votes, between 0 and 1, another class must lead by to replace
+     *                the label.
+     */
+    public EmotionSmoother(long halfLifeMillis, double minLead) {
+        if (halfLifeMillis <= 0) {
+            throw new IllegalArgumentException("Half-life must be positive, got " + halfLifeMillis);
+        }
+        mHalfLifeMillis = halfLifeMillis;
+        mMinLead = minLead;
+    }
+
+    /**
+     * Adds the vote of a prediction. Predictions without a label are ignored.
+     * @param prediction Latest prediction of the face.
+     * @param timeMillis Time of the prediction, never before the previous one.
+     * @return The smoothed label.
+     */
+    public int add(EmotionPrediction prediction, long timeMillis) {
+        int label = prediction.getLabel();
+        if (label < 0) {
+            return mLabel;
+        }
+        int classes = Math.max(prediction.getClassCount(), label + 1);
+        if (mVotes.length < classes) {
+            mVotes = Arrays.copyOf(mVotes, classes);
+        }
+        // Votes are shares of one, the old ones keep decay and the new one gets the rest
+        double decay = mLastMillis < 0 ? 0 : Math.pow(0.5, Math.max(0, timeMillis - mLastMillis)
+                / (double) mHalfLifeMillis);
+        for (int k = 0; k < mVotes.length; k++) {
+            mVotes[k] *= decay;
+        }
+        mVotes[label] += 1 - decay;
+        mLastMillis = timeMillis;
+
+        int leader = 0;
+        for (int k = 1; k < mVotes.length; k++) {
+            if (mVotes[k] > mVotes[leader]) {
+                leader = k;
+            }
+        }
+        if (mLabel < 0 || mVotes[leader] - mVotes[mLabel] >= mMinLead) {
+            mLabel = leader;
+        }
+        return mLabel;
+    }
+
+    /**
+     * @return The smoothed label, -1 before the first vote.
+     */
+    public int getLabel() {
+        return mLabel;
+    }
+
+    /**
+     * @return Share of the votes, between 0 and 1, held by the smoothed label.
+     */
+    public double getConfidence() {
+        return mLabel < 0 ? 0 : mVotes[mLabel];
+    }
+
+    /**
+     * Forgets every vote.
+     */
+    public void reset() {
+        Arrays.fill(mVotes, 0);
+        mLabel = -1;
+        mLastMillis = -1;
+    }
+}
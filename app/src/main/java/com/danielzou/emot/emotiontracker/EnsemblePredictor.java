@@ -0,0 +1,281 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+
+/**
+ * Classifies faces with a cheap model first and only asks an expensive one about the faces the
+ * cheap model is unsure of.
+ *
+ * The cheap model is typically a low resolution variant on the {@link FacePredictor.Engine#JAVA}
+ * or {@link FacePredictor.Engine#INT8} engine, the expensive one the full size Fisherfaces or
+ * HOG+SVM model. A face whose cheap {@link EmotionPrediction#getMargin()} reaches the minimum
+ * margin exits early with the cheap prediction; all others of the frame are batched into one call
+ * of the expensive model, whose predictions replace the cheap ones. {@link #chooseMinMargin}
+ * picks the smallest margin that keeps the held-out accuracy within a given loss of the expensive
+ * model alone.
+ *
+ * Counters of faces, early exits and time spent are kept for {@link #toString()}. Like
+ * {@link FacePredictor} an ensemble is not thread safe, the counters may be read from any thread.
+ */
+public class EnsemblePredictor {
+
+    private final FacePredictor mCheap;
+    private final FacePredictor mFull;
+    private final double mMinMargin;
+    private final EmotionResults mFullResults = new EmotionResults();
+    private final List<Rect> mRects = new ArrayList<>();
+    private final List<Rect> mHardRects = new ArrayList<>();
+    private int[] mHardIndices = new int[0];
+
+    // Written by the classifying thread only
+    private volatile long mFaces;
+    private volatile long mEarlyExits;
+    private volatile long mCheapNanos;
+    private volatile long mFullNanos;
+
+    /**
+     * @param cheap Predictor asked about every face.
+     * @param full Predictor asked about the faces the cheap one is unsure of, trained on the same
+     *             emotion classes.
+     * @param minMargin Margin from which a cheap prediction is trusted.
+     */
+    public EnsemblePredictor(FacePredictor cheap, FacePredictor full, double minMargin) {
+        mCheap = cheap;
+        mFull = full;
+        mMinMargin = minMargin;
+    }
+
+    /**
+     * Classifies every face of a frame.
+     * @param faces Face rectangles inside frame.
+     * @param frame 8-bit grayscale frame.
+     * @param results Receives one prediction per face.
+     */
+    public void detectEmotions(MatOfRect faces, org.opencv.core.Mat frame, EmotionResults results) {
+        mRects.clear();
+        Collections.addAll(mRects, faces.toArray());
+        detectEmotions(mRects, frame, results);
+    }
+
+    /**
+     * Classifies every face of a frame.
+     * @param faces Face rectangles inside frame.
+     * @param frame 8-bit grayscale frame.
+     * @param results Receives one prediction per face.
+     */
+    public void detectEmotions(List<Rect> faces, org.opencv.core.Mat frame, EmotionResults results) {
+        long start = System.nanoTime();
+        mCheap.detectEmotions(faces, frame, results);
+        long cheapDone = System.nanoTime();
+
+        int count = results.size();
+        if (mHardIndices.length < count) {
+            mHardIndices = new int[count];
+        }
+        mHardRects.clear();
+        for (int i = 0; i < count; i++) {
+            if (!isSure(results.get(i))) {
+                mHardIndices[mHardRects.size()] = i;
+                mHardRects.add(faces.get(i));
+            }
+        }
+        int hard = mHardRects.size();
+        if (hard > 0) {
+            mFull.detectEmotions(mHardRects, frame, mFullResults);
+            for (int h = 0; h < hard; h++) {
+                results.get(mHardIndices[h]).set(mFullResults.get(h));
+            }
+        }
+        count(count, count - hard, cheapDone - start, System.nanoTime() - cheapDone);
+    }
+
+    /**
+     * Classifies a single cropped face, normalizing it like the training faces.
+     * @param face 8-bit grayscale face of any size.
+     * @param prediction Receives the label and the distance to every class.
+     */
+    public void detectEmotion(org.opencv.core.Mat face, EmotionPrediction prediction) {
+        long start = System.nanoTime();
+        mCheap.detectEmotion(face, prediction);
+        long cheapDone = System.nanoTime();
+        boolean sure = isSure(prediction);
+        if (!sure) {
+            mFull.detectEmotion(face, prediction);
+        }
+        count(1, sure ? 1 : 0, cheapDone - start, System.nanoTime() - cheapDone);
+    }
+
+    /**
+     * Classifies a face that is already normalized, such as the prediction images of a
+     * {@link TrainingSet}.
+     * @param face 8-bit grayscale face.
+     * @param prediction Receives the label and the distance to every class.
+     */
+    public void detectEmotion(Mat face, EmotionPrediction prediction) {
+        long start = System.nanoTime();
+        mCheap.detectEmotion(face, prediction);
+        long cheapDone = System.nanoTime();
+        boolean sure = isSure(prediction);
+        if (!sure) {
+            mFull.detectEmotion(face, prediction);
+        }
+        count(1, sure ? 1 : 0, cheapDone - start, System.nanoTime() - cheapDone);
+    }
+
+    /**
+     * Frees both predictors. The ensemble cannot be used afterwards.
+     */
+    public void release() {
+        mCheap.release();
+        mFull.release();
+    }
+
+    public double getMinMargin() {
+        return mMinMargin;
+    }
+
+    /**
+     * @return Faces classified since the counters were last reset.
+     */
+    public long getFaces() {
+        return mFaces;
+    }
+
+    /**
+     * @return Faces that were settled by the cheap model alone.
+     */
+    public long getEarlyExits() {
+        return mEarlyExits;
+    }
+
+    /**
+     * @return Fraction of faces settled by the cheap model alone.
+     */
+    public double getEarlyExitRate() {
+        long faces = mFaces;
+        return faces == 0 ? 0 : (double) mEarlyExits / faces;
+    }
+
+    /**
+     * @return Mean time per face in microseconds, both models included.
+     */
+    public double getMicrosPerFace() {
+        long faces = mFaces;
+        return faces == 0 ? 0 : (mCheapNanos + mFullNanos) / 1000.0 / faces;
+    }
+
+    /**
+     * Zeroes the counters.
+     */
+    public void resetStats() {
+        mFaces = 0;
+        mEarlyExits = 0;
+        mCheapNanos = 0;
+        mFullNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        long faces = mFaces;
+        return String.format(Locale.US, "%d faces, %.1f%% early exits, %.0f us/face (cheap %.0f, full %.0f)",
+                faces, 100 * getEarlyExitRate(), getMicrosPerFace(),
+                faces == 0 ? 0 : mCheapNanos / 1000.0 / faces, faces == 0 ? 0 : mFullNanos / 1000.0 / faces);
+    }
+
+    private boolean isSure(EmotionPrediction prediction) {
+        return prediction.getLabel() >= 0 && prediction.getMargin() >= mMinMargin;
+    }
+
+    private void count(int faces, int earlyExits, long cheapNanos, long fullNanos) {
+        mFaces += faces;
+        mEarlyExits += earlyExits;
+        mCheapNanos += cheapNanos;
+        mFullNanos += fullNanos;
+    }
+
+    /**
+     * Finds the smallest minimum margin, so the most early exits, that keeps the ensemble's
+     * accuracy on labeled faces within maxAccuracyLoss of the full predictor alone.
+     * @param cheap Predictor asked about every face.
+     * @param full Predictor asked about the faces the cheap one is unsure of.
+     * @param faces Normalized faces held out from training, such as the prediction images of a
+     *              {@link TrainingSet}.
+     * @param labels Label of each face.
+     * @param maxAccuracyLoss Percentage points of accuracy the ensemble may lose.
+     * @return The margin, positive infinity if no margin keeps the accuracy and the ensemble
+     * should always ask the full predictor.
+     */
+    public static double chooseMinMargin(FacePredictor cheap, FacePredictor full, List<Mat> faces, int[] labels,
+                                         double maxAccuracyLoss) {
+        int count = faces.size();
+        if (count == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double[] margins = new double[count];
+        // Change in correct answers when a face exits early: +1, 0 or -1
+        int[] gains = new int[count];
+        int fullCorrect = 0;
+        EmotionPrediction prediction = new EmotionPrediction();
+        for (int i = 0; i < count; i++) {
+            full.detectEmotion(faces.get(i), prediction);
+            boolean fullRight = prediction.getLabel() == labels[i];
+            cheap.detectEmotion(faces.get(i), prediction);
+            boolean cheapRight = prediction.getLabel() == labels[i];
+            margins[i] = prediction.getLabel() < 0 ? Double.NEGATIVE_INFINITY : prediction.getMargin();
+            gains[i] = (cheapRight ? 1 : 0) - (fullRight ? 1 : 0);
+            if (fullRight) {
+                fullCorrect++;
+            }
+        }
+        return chooseMinMargin(margins, gains, fullCorrect, maxAccuracyLoss);
+    }
+
+    /**
+     * The search of {@link #chooseMinMargin(FacePredictor, FacePredictor, List, int[], double)} on
+     * the outcome of both predictors.
+     * @param margins Margin of the cheap prediction of each face, negative infinity if it has none.
+     * @param gains Change in correct answers when each face exits early: +1, 0 or -1.
+     * @param fullCorrect Number of faces the full predictor gets right.
+     * @param maxAccuracyLoss Percentage points of accuracy the ensemble may lose.
+     * @return The margin, positive infinity if no margin keeps the accuracy.
+     */
+    static double chooseMinMargin(final double[] margins, int[] gains, int fullCorrect, double maxAccuracyLoss) {
+        int count = margins.length;
+        // Lower the margin one face at a time, from the surest down, and keep the lowest that passes
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(margins[b], margins[a]);
+            }
+        });
+        double minCorrect = fullCorrect - maxAccuracyLoss * count / 100;
+        double best = Double.POSITIVE_INFINITY;
+        int correct = fullCorrect;
+        for (int k = 0; k < count; k++) {
+            int i = order[k];
+            if (margins[i] == Double.NEGATIVE_INFINITY) {
+                break;
+            }
+            correct += gains[i];
+            // A threshold can only sit between distinct margins, equal ones exit together
+            boolean lastOfValue = k + 1 == count || margins[order[k + 1]] != margins[i];
+            if (lastOfValue && correct >= minCorrect) {
+                best = margins[i];
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,117 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Confusion matrix, per-class precision and recall and per-fold wall time of a cross-validation
+ * run.
+ */
+public class EvaluationReport {
+
+    private final List<String> mClassNames;
+    private final int[][] mConfusion;
+    private final long[] mFoldMillis;
+    private final long mSeed;
+
+    /**
+     * @param classNames Name of each label.
+     * @param folds Number of folds.
+     * @param seed Seed the folds were drawn with.
+     */
+    EvaluationReport(List<String> classNames, int folds, long seed) {
+        mClassNames = classNames;
+        mConfusion = new int[classNames.size()][classNames.size()];
+        mFoldMillis = new long[folds];
+        mSeed = seed;
+    }
+
+    /**
+     * Adds the confusion matrix and wall time of one fold.
+     */
+    synchronized void addFold(int fold, int[][] confusion, long millis) {
+        for (int actual = 0; actual < confusion.length; actual++) {
+            for (int predicted = 0; predicted < confusion.length; predicted++) {
+                mConfusion[actual][predicted] += confusion[actual][predicted];
+            }
+        }
+        mFoldMillis[fold] = millis;
+    }
+
+    /**
+     * @return Counts indexed by [actual label][predicted label], summed over all folds.
+     */
+    public int[][] getConfusionMatrix() {
+        return mConfusion;
+    }
+
+    public long getFoldMillis(int fold) {
+        return mFoldMillis[fold];
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public double getAccuracy() {
+        int correct = 0;
+        int total = 0;
+        for (int actual = 0; actual < mConfusion.length; actual++) {
+            for (int predicted = 0; predicted < mConfusion.length; predicted++) {
+                total += mConfusion[actual][predicted];
+                if (actual == predicted) {
+                    correct += mConfusion[actual][predicted];
+                }
+            }
+        }
+        return total == 0 ? 0 : (double) correct / total;
+    }
+
+    /**
+     * @param label Class.
+     * @return Fraction of faces predicted as label that really are label.
+     */
+    public double getPrecision(int label) {
+        int predicted = 0;
+        for (int actual = 0; actual < mConfusion.length; actual++) {
+            predicted += mConfusion[actual][label];
+        }
+        return predicted == 0 ? 0 : (double) mConfusion[label][label] / predicted;
+    }
+
+    /**
+     * @param label Class.
+     * @return Fraction of faces of label that were predicted as label.
+     */
+    public double getRecall(int label) {
+        int actual = 0;
+        for (int predicted = 0; predicted < mConfusion.length; predicted++) {
+            actual += mConfusion[label][predicted];
+        }
+        return actual == 0 ? 0 : (double) mConfusion[label][label] / actual;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d-fold cross-validation, seed %d, accuracy %.1f%%\n",
+                mFoldMillis.length, mSeed, 100 * getAccuracy()));
+        report.append(String.format(Locale.US, "%-10s", "actual"));
+        for (String name : mClassNames) {
+            report.append(String.format(Locale.US, "%9s", name));
+        }
+        report.append(String.format(Locale.US, "%11s%9s\n", "precision", "recall"));
+        for (int actual = 0; actual < mConfusion.length; actual++) {
+            report.append(String.format(Locale.US, "%-10s", mClassNames.get(actual)));
+            for (int predicted = 0; predicted < mConfusion.length; predicted++) {
+                report.append(String.format(Locale.US, "%9d", mConfusion[actual][predicted]));
+            }
+            report.append(String.format(Locale.US, "%10.1f%%%8.1f%%\n",
+                    100 * getPrecision(actual), 100 * getRecall(actual)));
+        }
+        for (int fold = 0; fold < mFoldMillis.length; fold++) {
+            report.append("fold ").append(fold).append(": ").append(mFoldMillis[fold]).append(" ms\n");
+        }
+        return report.toString();
+    }
+}
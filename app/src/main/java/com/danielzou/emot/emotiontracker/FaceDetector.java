@@ -0,0 +1,360 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Runs the face cascade on a downscaled copy of the frame and maps the faces back to the frame.
+ *
+ * The cascade scans every window size from its minimum up, and on a full resolution preview
+ * frame most of those windows are far smaller than any face held in front of the camera. A
+ * {@link Preset} shrinks the frame to a fixed width into a reused buffer and only scans the face
+ * sizes it allows, relative to the frame so they do not depend on the preview resolution. The
+ * returned boxes are in full resolution coordinates, so faces are still cropped and classified
+ * from the full resolution frame.
+ *
+ * Once faces are known, {@link #detect(Mat, int[], int)} only scans windows around them, each box
+ * grown by {@link #ROI_EXPANSION} of its size on every side, so the cost follows the area of the
+ * faces instead of the frame. It cannot find new faces elsewhere; callers are expected to scan
+ * the whole frame every so often.
+ *
+ * Boxes are handled as x, y, width and height interleaved in int arrays, the layout of a
+ * MatOfRect, and every buffer and region header is reused, so a detection allocates nothing once
+ * the buffers have grown to the number of faces. Not thread safe.
+ */
+public class FaceDetector {
+
+    /**
+     * Detection resolution and face sizes, from the fastest to the most thorough.
+     */
+    public enum Preset {
+        FAST(160, 1.2, 3, 0.2),
+        BALANCED(240, 1.15, 3, 0.12),
+        ACCURATE(480, 1.1, 3, 0.08),
+        // The cascade's defaults at full resolution, the reference the others are measured against
+        FULL(0, 1.1, 3, 0);
+
+        /**
+         * Width the frame is shrunk to, 0 for full resolution.
+         */
+        public final int width;
+        public final double scaleFactor;
+        public final int minNeighbors;
+        /**
+         * Smallest face as a fraction of the frame's shorter side.
+         */
+        public final double minFace;
+
+        Preset(int width, double scaleFactor, int minNeighbors, double minFace) {
+            this.width = width;
+            this.scaleFactor = scaleFactor;
+            this.minNeighbors = minNeighbors;
+            this.minFace = minFace;
+        }
+    }
+
+    /**
+     * Fraction of a face's width and height a region of interest extends beyond it on every side.
+     */
+    public static final double ROI_EXPANSION = 0.5;
+
+    /**
+     * Overlap from which two boxes are taken to be the same face.
+     */
+    public static final double MIN_IOU = 0.5;
+
+    private final CascadeClassifier mCascade;
+    private final Preset mPreset;
+    private final Size mWindow;
+    private final Mat mSmall = new Mat();
+    private final MatOfRect mSmallFaces = new MatOfRect();
+    private final MatOfRect mFaces = new MatOfRect();
+    private final Size mSmallSize = new Size();
+    private final Size mMinSize = new Size();
+    private final Size mMaxSize = new Size();
+    private final MatBridge mBridge = new MatBridge();
+    // Header retargeted to every region of interest
+    private final Mat mRoi = new Mat();
+    // Boxes of the last cascade run, then the faces found in all regions
+    private int[] mBoxes = new int[0];
+    private int[] mFound = new int[0];
+    private int[] mRegions = new int[0];
+    private double mScannedFraction = 1;
+
+    /**
+     * @param cascade Loaded face cascade.
+     * @param preset Detection resolution and face sizes.
+     */
+    public FaceDetector(CascadeClassifier cascade, Preset preset) {
+        mCascade = cascade;
+        mPreset = preset;
+        mWindow = cascade.getOriginalWindowSize();
+    }
+
+    /**
+     * Finds the faces of a frame.
+     * @param gray 8-bit grayscale frame.
+     * @return The faces in frame coordinates, valid until the next call.
+     */
+    public MatOfRect detect(Mat gray) {
+        mScannedFraction = 1;
+        double scale = scale(gray.cols());
+        Mat image = gray;
+        if (scale < 1) {
+            mSmallSize.width = Math.round(gray.cols() * scale);
+            mSmallSize.height = Math.round(gray.rows() * scale);
+            // Reuses mSmall's memory as long as the preview size does not change
+            Imgproc.resize(gray, mSmall, mSmallSize, 0, 0, Imgproc.INTER_AREA);
+            image = mSmall;
+        }
+        int shorter = Math.min(image.cols(), image.rows());
+        mMinSize.width = Math.max(mWindow.width, Math.round(shorter * mPreset.minFace));
+        mMinSize.height = Math.max(mWindow.height, Math.round(shorter * mPreset.minFace));
+        mMaxSize.width = shorter;
+        mMaxSize.height = shorter;
+        if (scale >= 1) {
+            mCascade.detectMultiScale(image, mFaces, mPreset.scaleFactor, mPreset.minNeighbors, 0, mMinSize,
+                    mMaxSize);
+            return mFaces;
+        }
+        mCascade.detectMultiScale(image, mSmallFaces, mPreset.scaleFactor, mPreset.minNeighbors, 0, mMinSize,
+                mMaxSize);
+        int count = readSmallFaces();
+        double up = gray.cols() / (double) image.cols();
+        for (int i = 0; i < count; i++) {
+            scaleBox(mBoxes, 4 * i, up, gray.cols(), gray.rows());
+        }
+        write(mBoxes, count, mFaces);
+        return mFaces;
+    }
+
+    /**
+     * Finds the faces near the given boxes only, at the same resolution and face sizes as
+     * {@link #detect(Mat)}. Scans the whole frame if there are no boxes.
+     * @param gray 8-bit grayscale frame.
+     * @param around Last known face boxes in frame coordinates, x, y, width and height interleaved.
+     * @param count Number of boxes in around.
+     * @return The faces in frame coordinates, valid until the next call.
+     */
+    public MatOfRect detect(Mat gray, int[] around, int count) {
+        if (count == 0) {
+            return detect(gray);
+        }
+        int cols = gray.cols();
+        int rows = gray.rows();
+        mRegions = grow(mRegions, count);
+        int regions = regions(around, count, cols, rows, mRegions);
+        double scale = scale(cols);
+        // Face sizes stay relative to the whole frame, not to the region
+        double shorter = Math.min(cols, rows) * scale;
+        mMinSize.width = Math.max(mWindow.width, Math.round(shorter * mPreset.minFace));
+        mMinSize.height = Math.max(mWindow.height, Math.round(shorter * mPreset.minFace));
+        int found = 0;
+        long scanned = 0;
+        for (int r = 0; r < regions; r++) {
+            int x = mRegions[4 * r];
+            int y = mRegions[4 * r + 1];
+            int width = mRegions[4 * r + 2];
+            int height = mRegions[4 * r + 3];
+            scanned += (long) width * height;
+            mBridge.point(gray, x, y, width, height, mRoi);
+            Mat image = mRoi;
+            if (scale < 1) {
+                mSmallSize.width = Math.max(1, Math.round(width * scale));
+                mSmallSize.height = Math.max(1, Math.round(height * scale));
+                Imgproc.resize(mRoi, mSmall, mSmallSize, 0, 0, Imgproc.INTER_AREA);
+                image = mSmall;
+            }
+            int side = Math.min(image.cols(), image.rows());
+            if (side < mMinSize.width || side < mMinSize.height) {
+                continue;
+            }
+            mMaxSize.width = side;
+            mMaxSize.height = side;
+            mCascade.detectMultiScale(image, mSmallFaces, mPreset.scaleFactor, mPreset.minNeighbors, 0,
+                    mMinSize, mMaxSize);
+            int faces = readSmallFaces();
+            double up = width / (double) image.cols();
+            mFound = grow(mFound, found + faces);
+            for (int i = 0; i < faces; i++) {
+                scaleBox(mBoxes, 4 * i, up, width, height);
+                mBoxes[4 * i] += x;
+                mBoxes[4 * i + 1] += y;
+                if (isUnique(mBoxes, 4 * i, mFound, found)) {
+                    System.arraycopy(mBoxes, 4 * i, mFound, 4 * found, 4);
+                    found++;
+                }
+            }
+        }
+        // Drop the reference to the frame's pixels
+        mRoi.release();
+        mScannedFraction = scanned / ((double) cols * rows);
+        write(mFound, found, mFaces);
+        return mFaces;
+    }
+
+    /**
+     * Grows every box into its region of interest and merges overlapping regions.
+     * @param boxes Face boxes in frame coordinates, x, y, width and height interleaved.
+     * @param count Number of boxes.
+     * @param cols Frame width.
+     * @param rows Frame height.
+     * @param regions Receives the regions in the same layout, none of which overlap. Holds at
+     *                least count boxes.
+     * @return Number of regions.
+     */
+    static int regions(int[] boxes, int count, int cols, int rows, int[] regions) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int x = boxes[4 * i];
+            int y = boxes[4 * i + 1];
+            int width = boxes[4 * i + 2];
+            int height = boxes[4 * i + 3];
+            int dx = (int) Math.round(width * ROI_EXPANSION);
+            int dy = (int) Math.round(height * ROI_EXPANSION);
+            int left = Math.max(0, x - dx);
+            int top = Math.max(0, y - dy);
+            int right = Math.min(cols, x + width + dx);
+            int bottom = Math.min(rows, y + height + dy);
+            if (right > left && bottom > top) {
+                set(regions, size++, left, top, right, bottom);
+            }
+        }
+        // Merge until no two regions overlap, so no pixel is scanned twice
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < size && !merged; i++) {
+                for (int j = i + 1; j < size; j++) {
+                    if (overlap(regions, 4 * i, regions, 4 * j) > 0) {
+                        int left = Math.min(regions[4 * i], regions[4 * j]);
+                        int top = Math.min(regions[4 * i + 1], regions[4 * j + 1]);
+                        int right = Math.max(regions[4 * i] + regions[4 * i + 2], regions[4 * j] + regions[4 * j + 2]);
+                        int bottom = Math.max(regions[4 * i + 1] + regions[4 * i + 3],
+                                regions[4 * j + 1] + regions[4 * j + 3]);
+                        set(regions, i, left, top, right, bottom);
+                        System.arraycopy(regions, 4 * (j + 1), regions, 4 * j, 4 * (size - j - 1));
+                        size--;
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private static void set(int[] boxes, int index, int left, int top, int right, int bottom) {
+        boxes[4 * index] = left;
+        boxes[4 * index + 1] = top;
+        boxes[4 * index + 2] = right - left;
+        boxes[4 * index + 3] = bottom - top;
+    }
+
+    /**
+     * @return Area shared by the boxes at offsets a and b, 0 if they do not overlap.
+     */
+    private static long overlap(int[] boxesA, int a, int[] boxesB, int b) {
+        int left = Math.max(boxesA[a], boxesB[b]);
+        int top = Math.max(boxesA[a + 1], boxesB[b + 1]);
+        int right = Math.min(boxesA[a] + boxesA[a + 2], boxesB[b] + boxesB[b + 2]);
+        int bottom = Math.min(boxesA[a + 1] + boxesA[a + 3], boxesB[b + 1] + boxesB[b + 3]);
+        return right <= left || bottom <= top ? 0 : (long) (right - left) * (bottom - top);
+    }
+
+    /**
+     * @return Whether the box at offset face overlaps none of the first count found boxes by
+     * {@link #MIN_IOU} or more.
+     */
+    private static boolean isUnique(int[] boxes, int face, int[] found, int count) {
+        double area = (double) boxes[face + 2] * boxes[face + 3];
+        for (int i = 0; i < count; i++) {
+            double intersection = overlap(boxes, face, found, 4 * i);
+            double union = area + (double) found[4 * i + 2] * found[4 * i + 3] - intersection;
+            if (intersection / union >= MIN_IOU) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the boxes of mSmallFaces into mBoxes.
+     * @return Number of boxes.
+     */
+    private int readSmallFaces() {
+        int count = (int) mSmallFaces.total();
+        mBoxes = grow(mBoxes, count);
+        if (count > 0) {
+            mSmallFaces.get(0, 0, mBoxes);
+        }
+        return count;
+    }
+
+    /**
+     * @return boxes if it holds count boxes, otherwise a larger copy.
+     */
+    static int[] grow(int[] boxes, int count) {
+        return boxes.length >= 4 * count ? boxes : Arrays.copyOf(boxes, 4 * Math.max(count, boxes.length / 2));
+    }
+
+    /**
+     * Replaces the contents of faces with the first count boxes. The Mat keeps its memory while
+     * the number of faces stays the same.
+     */
+    static void write(int[] boxes, int count, MatOfRect faces) {
+        // fromArray leaves an empty array unwritten, so it would keep the last frame's faces
+        faces.create(count, 1, CvType.CV_32SC4);
+        if (count > 0) {
+            faces.put(0, 0, boxes);
+        }
+    }
+
+    /**
+     * @return Fraction of the frame the last detection scanned, 1 for a whole frame scan.
+     */
+    public double getScannedFraction() {
+        return mScannedFraction;
+    }
+
+    /**
+     * @return The factor frames of the given width are shrunk by, 1 for none.
+     */
+    private double scale(int cols) {
+        return mPreset.width <= 0 || cols <= mPreset.width ? 1 : mPreset.width / (double) cols;
+    }
+
+    /**
+     * Scales a box up by factor and cuts it to the frame, in place.
+     * @param boxes Boxes, x, y, width and height interleaved.
+     * @param offset Index of the box's x.
+     */
+    static void scaleBox(int[] boxes, int offset, double factor, int cols, int rows) {
+        int x = (int) Math.round(boxes[offset] * factor);
+        int y = (int) Math.round(boxes[offset + 1] * factor);
+        int right = Math.min(cols, (int) Math.round((boxes[offset] + boxes[offset + 2]) * factor));
+        int bottom = Math.min(rows, (int) Math.round((boxes[offset + 1] + boxes[offset + 3]) * factor));
+        set(boxes, offset / 4, x, y, right, bottom);
+    }
+
+    public Preset getPreset() {
+        return mPreset;
+    }
+
+    /**
+     * Frees the buffers. The detector cannot be used afterwards, the cascade is left alone.
+     */
+    public void release() {
+        mSmall.release();
+        mSmallFaces.release();
+        mFaces.release();
+        mRoi.release();
+        mBridge.release();
+    }
+}
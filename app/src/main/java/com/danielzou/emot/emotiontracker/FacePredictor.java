@@ -0,0 +1,392 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_core.CV_64F;
+import static org.bytedeco.javacpp.opencv_core.CV_64FC1;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+import static org.bytedeco.javacpp.opencv_core.gemm;
+import static org.bytedeco.javacpp.opencv_core.subtract;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+
+/**
+ * Classifies all faces of a frame against a {@link SubspaceModel} in one pass.
+ *
+ * Every face is normalized by a {@link FacePreprocessor} with the options the model was trained
+ * with and written as one row of a batch matrix, the whole batch is projected with a single gemm
+ * and each projected row is matched against the training samples. All buffers, including the
+ * preprocessing stage and the headers used to read its output through a {@link MatBridge}, are
+ * kept between calls and only grow when a frame has more faces than any before it.
+ *
+ * The {@link Engine#JAVA} and {@link Engine#INT8} engines skip the native projection and classify
+ * each face right away with a {@link JavaProjection} or a {@link QuantizedProjection} instead.
+ *
+ * Backends without a subspace, such as LBPH, have no projection to batch. A predictor built on
+ * such a recognizer resizes each face into the same reused buffer and calls its predict right
+ * away, ignoring the engine. The recognizer is locked while predicting so it can be updated from
+ * another thread.
+ *
+ * A predictor built on a {@link HogSvmClassifier} batches like the native engine: each face's HOG
+ * descriptor is written into a batch row and all rows are scored against the SVM's decision
+ * functions with one gemm. The engine is ignored.
+ *
+ * A {@link PersonalizationAdapter} can be attached to shift the classes towards one user; both
+ * engines then measure distances to the shifted classes.
+ *
+ * A predictor is not thread safe, use one per thread.
+ */
+public class FacePredictor {
+
+    /**
+     * How faces are projected and classified.
+     */
+    public enum Engine {
+        /**
+         * Native gemm projection, nearest training sample. Same labels as FaceRecognizer.predict.
+         */
+        NATIVE,
+        /**
+         * Pure Java float projection, nearest class centroid.
+         */
+        JAVA,
+        /**
+         * Integer dot products over int8 weights, nearest class centroid.
+         */
+        INT8
+    }
+
+    private final SubspaceModel mModel;
+    private final FaceRecognizer mRecognizer;
+    private final HogSvmClassifier.Batch mHogBatch;
+    private final int mClasses;
+    private final IntPointer mLabel = new IntPointer(1);
+    private final DoublePointer mConfidence = new DoublePointer(1);
+    private final int mFaceSize;
+    private final opencv_core.Size mSize;
+    private final Mat mResized;
+    // 1 x dimensions header over mResized's pixels, so a face can be converted into a batch row in place
+    private final Mat mResizedRow;
+    private final Mat mNoMat = new Mat();
+    private final MatBridge mBridge = new MatBridge();
+    private final FacePreprocessor mPreprocessor;
+    private final byte[] mPixels;
+    // Created on first use of the engine that needs them
+    private float[] mProjection;
+    private QuantizedProjection.Scratch mQuantizedScratch;
+    private volatile Engine mEngine = Engine.NATIVE;
+    private volatile PersonalizationAdapter mAdapter;
+
+    private int mCapacity;
+    private Mat mBatch;
+    private Mat[] mBatchRows;
+    private Mat[] mBatchViews;
+    private Mat mOutput;
+    private Mat[] mOutputViews;
+    private DoubleBuffer mOutputBuffer;
+
+    /**
+     * @param model Trained model to classify against.
+     * @param preprocessing Options the model's training faces were normalized with.
+     */
+    public FacePredictor(SubspaceModel model, FacePreprocessor.Options preprocessing) {
+        this(model, null, null, model.getClasses(), preprocessing);
+    }
+
+    /**
+     * @param recognizer Trained recognizer without a subspace, every face is classified with its
+     * predict.
+     * @param classes Number of emotion classes.
+     * @param preprocessing Options the recognizer's training faces were normalized with.
+     */
+    public FacePredictor(FaceRecognizer recognizer, int classes, FacePreprocessor.Options preprocessing) {
+        this(null, recognizer, null, classes, preprocessing);
+    }
+
+    /**
+     * @param classifier Trained HOG+SVM classifier.
+     * @param preprocessing Options the classifier's training faces were normalized with.
+     */
+    public FacePredictor(HogSvmClassifier classifier, FacePreprocessor.Options preprocessing) {
+        this(null, null, classifier.newBatch(), classifier.getClasses(), preprocessing);
+    }
+
+    private FacePredictor(SubspaceModel model, FaceRecognizer recognizer, HogSvmClassifier.Batch hogBatch,
+                          int classes, FacePreprocessor.Options preprocessing) {
+        int faceSize = preprocessing.faceSize;
+        mPreprocessor = new FacePreprocessor(preprocessing);
+        mModel = model;
+        mRecognizer = recognizer;
+        mHogBatch = hogBatch;
+        mClasses = classes;
+        mFaceSize = faceSize;
+        mSize = new opencv_core.Size(faceSize, faceSize);
+        mResized = new Mat(faceSize, faceSize, CV_8UC1);
+        mResizedRow = new Mat(1, faceSize * faceSize, CV_8UC1, mResized.data());
+        mPixels = new byte[faceSize * faceSize];
+        ensureCapacity(1);
+    }
+
+    /**
+     * Classifies every face of a frame.
+     * @param faces Face rectangles inside frame.
+     * @param frame 8-bit grayscale frame.
+     * @param results Receives one prediction per face.
+     */
+    public void detectEmotions(MatOfRect faces, org.opencv.core.Mat frame, EmotionResults results) {
+        // Read once, so a concurrent setEngine() cannot load the batch on one engine and classify on another
+        Engine engine = mEngine;
+        Rect[] rects = faces.toArray();
+        results.reset(rects.length);
+        ensureCapacity(rects.length);
+        for (int i = 0; i < rects.length; i++) {
+            loadFace(frame, rects[i], i, engine, results.get(i));
+        }
+        classify(results, engine);
+    }
+
+    /**
+     * Classifies every face of a frame.
+     * @param faces Face rectangles inside frame.
+     * @param frame 8-bit grayscale frame.
+     * @param results Receives one prediction per face.
+     */
+    public void detectEmotions(List<Rect> faces, org.opencv.core.Mat frame, EmotionResults results) {
+        Engine engine = mEngine;
+        results.reset(faces.size());
+        ensureCapacity(faces.size());
+        for (int i = 0; i < faces.size(); i++) {
+            loadFace(frame, faces.get(i), i, engine, results.get(i));
+        }
+        classify(results, engine);
+    }
+
+    /**
+     * Classifies a single face cropped with a margin like the data set images, normalizing it
+     * like the training faces.
+     * @param face 8-bit grayscale face of any size.
+     * @param prediction Receives the label and the distance to every class.
+     */
+    public void detectEmotion(org.opencv.core.Mat face, EmotionPrediction prediction) {
+        detectEmotion(mBridge.wrap(mPreprocessor.process(face)), prediction);
+        mBridge.release();
+    }
+
+    /**
+     * Classifies a face that is already normalized, such as the prediction images of a
+     * {@link TrainingSet}. It is only resized, not preprocessed again.
+     * @param face 8-bit grayscale face.
+     * @param prediction Receives the label and the distance to every class.
+     */
+    public void detectEmotion(Mat face, EmotionPrediction prediction) {
+        Engine engine = mEngine;
+        loadFace(face, 0, engine, prediction);
+        if (mHogBatch != null) {
+            mHogBatch.score(1);
+            mHogBatch.result(0, prediction);
+        } else if (mModel != null && engine == Engine.NATIVE) {
+            project(1);
+            mModel.nearest(mOutputBuffer, 0, offsets(), prediction);
+        }
+    }
+
+    public Engine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Attaches a per-user adapter, or detaches it with null. Ignored by recognizers without a
+     * subspace.
+     * @param adapter Adapter of the same model, or null.
+     */
+    public void setAdapter(PersonalizationAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    public PersonalizationAdapter getAdapter() {
+        return mAdapter;
+    }
+
+    /**
+     * Selects the engine used by following calls. {@link Engine#INT8} falls back to
+     * {@link Engine#JAVA} once calibration rejected the model's int8 export.
+     * @param engine Engine to use.
+     */
+    public void setEngine(Engine engine) {
+        if (engine == Engine.INT8 && mModel != null && mModel.isQuantizationRejected()) {
+            engine = Engine.JAVA;
+        }
+        mEngine = engine;
+    }
+
+    private void loadFace(org.opencv.core.Mat frame, Rect rect, int index, Engine engine,
+                          EmotionPrediction prediction) {
+        loadFace(mBridge.wrap(mPreprocessor.process(frame, rect)), index, engine, prediction);
+        mBridge.release();
+    }
+
+    /**
+     * Resizes a face and either classifies it right away (Java engines or no subspace) or writes
+     * it into the batch row at index (native engine, HOG+SVM).
+     */
+    private void loadFace(Mat face, int index, Engine engine, EmotionPrediction prediction) {
+        opencv_imgproc.resize(face, mResized, mSize);
+        if (mHogBatch != null) {
+            mResized.data().get(mPixels);
+            mHogBatch.load(mPixels, index);
+            return;
+        }
+        if (mModel == null) {
+            predict(prediction);
+            return;
+        }
+        if (engine == Engine.INT8 && mModel.isQuantizationRejected()) {
+            // Rejected after this predictor switched to int8
+            engine = Engine.JAVA;
+        }
+        if (engine == Engine.JAVA) {
+            if (mProjection == null) {
+                mProjection = new float[mModel.getComponents()];
+            }
+            mResized.data().get(mPixels);
+            mModel.getJavaProjection().classify(mPixels, mProjection, offsets(), prediction);
+            return;
+        }
+        if (engine == Engine.INT8) {
+            if (mQuantizedScratch == null) {
+                mQuantizedScratch = mModel.getQuantizedProjection().newScratch();
+            }
+            mResized.data().get(mPixels);
+            mModel.getQuantizedProjection().classify(mPixels, mQuantizedScratch, offsets(), prediction);
+            return;
+        }
+        mResizedRow.convertTo(mBatchRows[index], CV_64F);
+        subtract(mBatchRows[index], mModel.getMean(), mBatchRows[index]);
+    }
+
+    /**
+     * Classifies mResized with the recognizer's own predict. Only the predicted class gets a
+     * distance, every other class stays infinitely far.
+     */
+    private void predict(EmotionPrediction prediction) {
+        synchronized (mRecognizer) {
+            mRecognizer.predict(mResized, mLabel, mConfidence);
+        }
+        prediction.reset(mClasses);
+        int label = mLabel.get(0);
+        if (label >= 0 && label < mClasses) {
+            double confidence = mConfidence.get(0);
+            prediction.offerSquared(label, confidence * confidence);
+        }
+        prediction.rank();
+    }
+
+    private void classify(EmotionResults results, Engine engine) {
+        int count = results.size();
+        if (count > 0 && mHogBatch != null) {
+            mHogBatch.score(count);
+            for (int i = 0; i < count; i++) {
+                mHogBatch.result(i, results.get(i));
+            }
+            return;
+        }
+        if (count == 0 || mModel == null || engine != Engine.NATIVE) {
+            return;
+        }
+        project(count);
+        int components = mModel.getComponents();
+        float[] offsets = offsets();
+        for (int i = 0; i < count; i++) {
+            mModel.nearest(mOutputBuffer, i * components, offsets, results.get(i));
+        }
+    }
+
+    /**
+     * @return The attached adapter's current class offsets, null if there are none.
+     */
+    private float[] offsets() {
+        PersonalizationAdapter adapter = mAdapter;
+        return adapter == null ? null : adapter.getOffsets();
+    }
+
+    /**
+     * Projects the first count batch rows into mOutput with one matrix product.
+     */
+    private void project(int count) {
+        gemm(mBatchViews[count], mModel.getEigenvectors(), 1.0, mNoMat, 0.0, mOutputViews[count]);
+    }
+
+    private void ensureCapacity(int count) {
+        if (mHogBatch != null) {
+            mHogBatch.ensureCapacity(count);
+            return;
+        }
+        if (count <= mCapacity || mModel == null) {
+            return;
+        }
+        int capacity = Math.max(count, mCapacity * 2);
+        int dimensions = mModel.getDimensions();
+        releaseBatch();
+        mBatch = new Mat(capacity, dimensions, CV_64FC1);
+        mOutput = new Mat(capacity, mModel.getComponents(), CV_64FC1);
+        mBatchRows = new Mat[capacity];
+        mBatchViews = new Mat[capacity + 1];
+        mOutputViews = new Mat[capacity + 1];
+        for (int i = 0; i < capacity; i++) {
+            mBatchRows[i] = mBatch.row(i);
+            mBatchViews[i + 1] = mBatch.rowRange(0, i + 1);
+            mOutputViews[i + 1] = mOutput.rowRange(0, i + 1);
+        }
+        mOutputBuffer = mOutput.createBuffer();
+        mCapacity = capacity;
+    }
+
+    /**
+     * Frees the batch, its output and their row headers.
+     */
+    private void releaseBatch() {
+        for (int i = 0; i < mCapacity; i++) {
+            mBatchRows[i].deallocate();
+            mBatchViews[i + 1].deallocate();
+            mOutputViews[i + 1].deallocate();
+        }
+        if (mBatch != null) {
+            mBatch.deallocate();
+            mOutput.deallocate();
+            mBatch = null;
+            mOutput = null;
+        }
+        mCapacity = 0;
+    }
+
+    public int getFaceSize() {
+        return mFaceSize;
+    }
+
+    /**
+     * Frees the native buffers. The predictor cannot be used afterwards, the model it classifies
+     * against is left alone.
+     */
+    public void release() {
+        if (mHogBatch != null) {
+            mHogBatch.release();
+        }
+        releaseBatch();
+        mResizedRow.deallocate();
+        mResized.deallocate();
+        mNoMat.deallocate();
+        mSize.deallocate();
+        mLabel.deallocate();
+        mConfidence.deallocate();
+        mBridge.release();
+    }
+}
@@ -0,0 +1,302 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.CLAHE;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Turns a detected face into the normalized square the recognizer is trained on. Training and
+ * prediction both go through this stage, so a face from the camera reaches the model in the same
+ * format the data set did.
+ *
+ * The steps are:
+ * <ol>
+ * <li>Pad the face rectangle by a fraction of its size and make it square around the face's
+ * centre. Parts outside the frame are filled by replicating the edge. Whole images, the data
+ * set's crops, are not padded: they already hold a margin of real context around the face, so
+ * they stand for the padded square as they are. Only camera faces, which come with the
+ * surrounding frame, are padded, and that with real pixels rather than replicated ones.</li>
+ * <li>Resize the square to the face size. Width and height are scaled by the same factor, so
+ * faces are never stretched.</li>
+ * <li>Equalize the lighting with CLAHE (contrast limited adaptive histogram equalization).</li>
+ * <li>Optionally find the eyes and rotate the face so they are level.</li>
+ * </ol>
+ * Every intermediate image is a preallocated Mat or a header into one, so processing a face
+ * allocates no pixel buffers. The returned Mat is overwritten by the next call; a preprocessor
+ * belongs to one thread.
+ */
+public class FacePreprocessor {
+
+    /**
+     * Settings of the stage. A model is only valid for faces processed with the options it was
+     * trained with, {@link #getKey()} identifies them in cache keys and data set packs.
+     */
+    public static class Options {
+
+        /**
+         * Defaults the bundled data set is trained with.
+         */
+        public static final Options DEFAULT = new Options(DatasetLoader.IMAGE_SIZE, 0.1, 2.0, 8, null);
+
+        public final int faceSize;
+        public final double padding;
+        public final double clipLimit;
+        public final int tileGrid;
+        public final String eyeCascadePath;
+
+        // CRC32 of the eye cascade's contents, read on the first getKey()
+        private volatile String mEyeCascadeHash;
+
+        /**
+         * @param faceSize Width and height of the output face.
+         * @param padding Margin added on every side of a face found in a frame, as a fraction of the
+         *                face rectangle's longer side. Whole images are not padded.
+         * @param clipLimit CLAHE contrast limit.
+         * @param tileGrid Number of CLAHE tiles along each side.
+         * @param eyeCascadePath Haar cascade for eyes used for alignment, null to skip alignment.
+         */
+        public Options(int faceSize, double padding, double clipLimit, int tileGrid, String eyeCascadePath) {
+            this.faceSize = faceSize;
+            this.padding = padding;
+            this.clipLimit = clipLimit;
+            this.tileGrid = tileGrid;
+            this.eyeCascadePath = eyeCascadePath;
+        }
+
+        /**
+         * @param size Width and height of the output face.
+         * @return These options with another face size.
+         */
+        public Options withFaceSize(int size) {
+            return new Options(size, padding, clipLimit, tileGrid, eyeCascadePath);
+        }
+
+        /**
+         * @return The options that change the output, as a stable string. The eye cascade is
+         * identified by a checksum of its contents, so another cascade at the same path changes
+         * the key. Padding is marked as applying to frames only, so models and packs built from padded
+         * whole images are not reused.
+         */
+        public String getKey() {
+            return String.format(Locale.US, "size=%d,padding=%.3f/frame,clahe=%.2f/%d,align=%s",
+                    faceSize, padding, clipLimit, tileGrid, eyeCascadePath == null ? "none" : getEyeCascadeHash());
+        }
+
+        private String getEyeCascadeHash() {
+            String hash = mEyeCascadeHash;
+            if (hash != null) {
+                return hash;
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[8192];
+            try {
+                InputStream in = new FileInputStream(eyeCascadePath);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        crc.update(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not read eye cascade " + eyeCascadePath, e);
+            }
+            hash = String.format(Locale.US, "%08x", crc.getValue());
+            mEyeCascadeHash = hash;
+            return hash;
+        }
+    }
+
+    // Eye pairs tilted more than this are more likely false detections than a tilted head
+    private static final double MAX_TILT_DEGREES = 20;
+    private static final double MIN_TILT_DEGREES = 1;
+    private static final int MAX_EYES = 8;
+
+    private final Options mOptions;
+    private final int mFaceSize;
+    private final Size mOutputSize;
+    private final Size mScaledSize = new Size();
+    private final CLAHE mClahe;
+    private final CascadeClassifier mEyeDetector;
+
+    // Header into the caller's frame, retargeted for every face
+    private final Mat mRoi = new Mat();
+    // The scaled face is resized into the top-left corner of mScratch through mScaled
+    private final Mat mScratch;
+    private final Mat mScaled = new Mat();
+    private final Mat mCanvas;
+    private final Mat mEqualized;
+    private final Mat mAligned;
+    private final Mat mUpperHalf = new Mat();
+    private final MatOfRect mEyes = new MatOfRect();
+    private final int[] mEyeRects = new int[4 * MAX_EYES];
+    private final Mat mRotation = new Mat(2, 3, CvType.CV_64FC1);
+    private final double[] mRotationValues = new double[6];
+    private final Scalar mBorderValue = Scalar.all(0);
+    private final Size mMinEyeSize;
+    private final Size mMaxEyeSize;
+
+    /**
+     * @param options Settings of the stage.
+     */
+    public FacePreprocessor(Options options) {
+        mOptions = options;
+        mFaceSize = options.faceSize;
+        mOutputSize = new Size(mFaceSize, mFaceSize);
+        mClahe = Imgproc.createCLAHE(options.clipLimit, new Size(options.tileGrid, options.tileGrid));
+        if (options.eyeCascadePath != null) {
+            mEyeDetector = new CascadeClassifier(options.eyeCascadePath);
+            if (mEyeDetector.empty()) {
+                throw new IllegalArgumentException("Could not load eye cascade " + options.eyeCascadePath);
+            }
+        } else {
+            mEyeDetector = null;
+        }
+        mScratch = new Mat(mFaceSize, mFaceSize, CvType.CV_8UC1);
+        mCanvas = new Mat(mFaceSize, mFaceSize, CvType.CV_8UC1);
+        mEqualized = new Mat(mFaceSize, mFaceSize, CvType.CV_8UC1);
+        mAligned = new Mat(mFaceSize, mFaceSize, CvType.CV_8UC1);
+        mMinEyeSize = new Size(mFaceSize / 10, mFaceSize / 10);
+        mMaxEyeSize = new Size(mFaceSize / 3, mFaceSize / 3);
+    }
+
+    public Options getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * Processes a whole image that is already cropped to a face with a margin, such as a data set
+     * image. The image is used as the padded square, without padding.
+     * @param face 8-bit grayscale face.
+     * @return The normalized face, valid until the next call.
+     */
+    public Mat process(Mat face) {
+        return process(face, 0, 0, face.cols(), face.rows(), 0);
+    }
+
+    /**
+     * Processes a face inside a frame.
+     * @param frame 8-bit grayscale frame.
+     * @param face Face rectangle inside frame.
+     * @return The normalized face, valid until the next call.
+     */
+    public Mat process(Mat frame, Rect face) {
+        return process(frame, face.x, face.y, face.width, face.height, mOptions.padding);
+    }
+
+    private Mat process(Mat frame, int x, int y, int width, int height, double padding) {
+        // Square box around the face's centre, padded on every side
+        int longer = Math.max(width, height);
+        int side = longer + 2 * (int) Math.round(padding * longer);
+        int boxX = x + width / 2 - side / 2;
+        int boxY = y + height / 2 - side / 2;
+        // Part of the box inside the frame
+        int left = Math.max(boxX, 0);
+        int top = Math.max(boxY, 0);
+        int right = Math.min(boxX + side, frame.cols());
+        int bottom = Math.min(boxY + side, frame.rows());
+        if (right <= left || bottom <= top) {
+            throw new IllegalArgumentException("Face " + x + "," + y + " " + width + "x" + height
+                    + " lies outside the " + frame.cols() + "x" + frame.rows() + " frame");
+        }
+        frame.assignTo(mRoi);
+        mRoi.adjustROI(-top, -(frame.rows() - bottom), -left, -(frame.cols() - right));
+
+        double scale = (double) mFaceSize / side;
+        int scaledWidth = clamp((int) Math.round((right - left) * scale), 1, mFaceSize);
+        int scaledHeight = clamp((int) Math.round((bottom - top) * scale), 1, mFaceSize);
+        int borderLeft = clamp((int) Math.round((left - boxX) * scale), 0, mFaceSize - scaledWidth);
+        int borderTop = clamp((int) Math.round((top - boxY) * scale), 0, mFaceSize - scaledHeight);
+        mScratch.assignTo(mScaled);
+        mScaled.adjustROI(0, -(mFaceSize - scaledHeight), 0, -(mFaceSize - scaledWidth));
+        mScaledSize.width = scaledWidth;
+        mScaledSize.height = scaledHeight;
+        Imgproc.resize(mRoi, mScaled, mScaledSize, 0, 0, Imgproc.INTER_AREA);
+        Core.copyMakeBorder(mScaled, mCanvas, borderTop, mFaceSize - scaledHeight - borderTop,
+                borderLeft, mFaceSize - scaledWidth - borderLeft, Core.BORDER_REPLICATE);
+
+        mClahe.apply(mCanvas, mEqualized);
+        if (mEyeDetector == null || !align(mEqualized, mAligned)) {
+            return mEqualized;
+        }
+        return mAligned;
+    }
+
+    /**
+     * Rotates face around its centre so the eyes are level.
+     * @return False if no plausible pair of eyes was found and dst was left untouched.
+     */
+    private boolean align(Mat face, Mat dst) {
+        face.assignTo(mUpperHalf);
+        mUpperHalf.adjustROI(0, -(mFaceSize - mFaceSize / 2), 0, 0);
+        mEyeDetector.detectMultiScale(mUpperHalf, mEyes, 1.1, 3, 0, mMinEyeSize, mMaxEyeSize);
+        int count = Math.min(mEyes.rows(), MAX_EYES);
+        if (count < 2) {
+            return false;
+        }
+        mEyes.get(0, 0, mEyeRects);
+        // Largest detection on each side of the face
+        int leftEye = -1;
+        int rightEye = -1;
+        int half = mFaceSize / 2;
+        for (int i = 0; i < count; i++) {
+            int centreX = mEyeRects[4 * i] + mEyeRects[4 * i + 2] / 2;
+            if (centreX < half) {
+                leftEye = larger(leftEye, i);
+            } else {
+                rightEye = larger(rightEye, i);
+            }
+        }
+        if (leftEye < 0 || rightEye < 0) {
+            return false;
+        }
+        double dx = (mEyeRects[4 * rightEye] + mEyeRects[4 * rightEye + 2] / 2.0)
+                - (mEyeRects[4 * leftEye] + mEyeRects[4 * leftEye + 2] / 2.0);
+        double dy = (mEyeRects[4 * rightEye + 1] + mEyeRects[4 * rightEye + 3] / 2.0)
+                - (mEyeRects[4 * leftEye + 1] + mEyeRects[4 * leftEye + 3] / 2.0);
+        double angle = Math.atan2(dy, dx);
+        double degrees = Math.abs(Math.toDegrees(angle));
+        if (degrees < MIN_TILT_DEGREES || degrees > MAX_TILT_DEGREES) {
+            return false;
+        }
+        // Same matrix as getRotationMatrix2D(centre, angle, 1), written in place
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double centre = mFaceSize / 2.0;
+        mRotationValues[0] = cos;
+        mRotationValues[1] = sin;
+        mRotationValues[2] = (1 - cos) * centre - sin * centre;
+        mRotationValues[3] = -sin;
+        mRotationValues[4] = cos;
+        mRotationValues[5] = sin * centre + (1 - cos) * centre;
+        mRotation.put(0, 0, mRotationValues);
+        Imgproc.warpAffine(face, dst, mRotation, mOutputSize, Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE,
+                mBorderValue);
+        return true;
+    }
+
+    private int larger(int current, int candidate) {
+        if (current < 0) {
+            return candidate;
+        }
+        return mEyeRects[4 * candidate + 2] > mEyeRects[4 * current + 2] ? candidate : current;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
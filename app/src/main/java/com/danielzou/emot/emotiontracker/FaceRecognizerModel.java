@@ -0,0 +1,82 @@
+package com.danielzou.emot.emotiontracker;
+
+import static org.bytedeco.javacpp.opencv_face.BasicFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+/**
+ * A {@link BackendModel} backed by one of OpenCV's FaceRecognizers. Subspace recognizers are
+ * classified through a {@link SubspaceModel} copied out of the recognizer on first use, the others
+ * through their own predict.
+ */
+class FaceRecognizerModel implements BackendModel {
+
+    private final FaceRecognizer mRecognizer;
+    private final int mClasses;
+    private final boolean mSubspace;
+    private SubspaceModel mModel;
+
+    /**
+     * @param recognizer Untrained recognizer, owned from now on.
+     * @param classes Number of emotion classes.
+     * @param subspace Whether the recognizer is a BasicFaceRecognizer with a subspace.
+     */
+    FaceRecognizerModel(FaceRecognizer recognizer, int classes, boolean subspace) {
+        mRecognizer = recognizer;
+        mClasses = classes;
+        mSubspace = subspace;
+    }
+
+    @Override
+    public boolean needsTrainingSet() {
+        return true;
+    }
+
+    @Override
+    public void train(TrainingSet trainingSet) {
+        mRecognizer.train(trainingSet.getImages(), trainingSet.getLabels());
+    }
+
+    @Override
+    public void save(String path) {
+        mRecognizer.save(path);
+    }
+
+    @Override
+    public void load(String path) {
+        mRecognizer.load(path);
+    }
+
+    @Override
+    public FaceRecognizer getFaceRecognizer() {
+        return mRecognizer;
+    }
+
+    @Override
+    public HogSvmClassifier getHogSvm() {
+        return null;
+    }
+
+    @Override
+    public synchronized SubspaceModel getSubspaceModel() {
+        if (mSubspace && mModel == null) {
+            mModel = SubspaceModel.from((BasicFaceRecognizer) mRecognizer, mClasses);
+        }
+        return mModel;
+    }
+
+    @Override
+    public FacePredictor newPredictor(FacePreprocessor.Options preprocessing) {
+        SubspaceModel model = getSubspaceModel();
+        return model != null ? new FacePredictor(model, preprocessing)
+                : new FacePredictor(mRecognizer, mClasses, preprocessing);
+    }
+
+    @Override
+    public synchronized void release() {
+        if (mModel != null) {
+            mModel.release();
+            mModel = null;
+        }
+        mRecognizer.deallocate();
+    }
+}
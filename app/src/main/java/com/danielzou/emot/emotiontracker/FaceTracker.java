@@ -0,0 +1,438 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+/**
+ * Finds the faces of every camera frame without running the cascade on every frame.
+ *
+ * A {@link FaceDetector} runs the cascade on the whole frame every {@link #getRedetectInterval()}
+ * frames. Corners are picked inside every detected face with Imgproc.goodFeaturesToTrack, and on
+ * the frames in between all of them are followed at once with Video.calcOpticalFlowPyrLK. Each
+ * face box moves by the median motion of its corners and scales by the median change of their
+ * distance to the centre. Detections after the first only scan the regions around the tracked
+ * faces, see {@link FaceDetector#detect(Mat, int[], int)}; the whole frame is scanned again every
+ * {@link #getFullScanInterval()} detections to pick up new faces, and as soon as a region scan
+ * loses every face.
+ * A face loses confidence as its corners are lost or drift apart; when the confidence of any face
+ * drops below {@link #MIN_CONFIDENCE} the cascade runs again on the same frame.
+ *
+ * Boxes, corners and region headers live in reused buffers that only grow with the number of
+ * faces, so tracking a frame allocates nothing once they are large enough.
+ *
+ * Counters of detection and tracking frames and the time spent in each are kept for
+ * {@link #toString()}. Not thread safe, the counters may be read from any thread.
+ */
+public class FaceTracker {
+
+    /**
+     * Frames from one cascade detection to the next unless tracking fails first.
+     */
+    public static final int DEFAULT_REDETECT_INTERVAL = 10;
+
+    /**
+     * Detections from one whole frame scan to the next unless all faces are lost first.
+     */
+    public static final int DEFAULT_FULL_SCAN_INTERVAL = 3;
+
+    /**
+     * Fraction of a face's corners that must still be tracked for the face to be trusted.
+     */
+    public static final double MIN_CONFIDENCE = 0.5;
+
+    private static final int MAX_CORNERS = 40;
+    private static final int MIN_CORNERS = 6;
+    private static final double CORNER_QUALITY = 0.01;
+    private static final double CORNER_DISTANCE = 3;
+    // Corners are only picked in the middle of the box, away from background at its border
+    private static final double CORNER_MARGIN = 0.15;
+    private static final Size FLOW_WINDOW = new Size(15, 15);
+    private static final int FLOW_LEVELS = 2;
+    private static final float MAX_FLOW_ERROR = 20;
+    // Corners further than this many pixels from the box's median motion are dropped as outliers
+    private static final double MAX_DEVIATION = 4;
+
+    private final FaceDetector mDetector;
+    private final int mRedetectInterval;
+    private final int mFullScanInterval;
+    private final Mat mPrevious = new Mat();
+    private final MatOfRect mFaces = new MatOfRect();
+    private final MatOfPoint mCorners = new MatOfPoint();
+    private final MatOfPoint2f mPrevPoints = new MatOfPoint2f();
+    private final MatOfPoint2f mNextPoints = new MatOfPoint2f();
+    private final MatOfByte mStatus = new MatOfByte();
+    private final MatOfFloat mErrors = new MatOfFloat();
+    private final TermCriteria mFlowCriteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 20, 0.03);
+    private final MatBridge mBridge = new MatBridge();
+    // Header retargeted to the middle of every face
+    private final Mat mRegion = new Mat();
+    private final int[] mCornerValues = new int[2 * MAX_CORNERS];
+
+    // Face boxes, x, y, width and height interleaved, and the buffer follow() moves them into
+    private int[] mBoxes = new int[0];
+    private int[] mMovedBoxes = new int[0];
+    private int mCount;
+    // Tracked corners of every face, x and y interleaved, face i owning mStarts[i] to mStarts[i + 1]
+    private float[] mPoints = new float[0];
+    private float[] mMoved = new float[0];
+    private byte[] mFound = new byte[0];
+    private float[] mFlowErrors = new float[0];
+    private int[] mStarts = new int[1];
+    private int[] mInitialCorners = new int[0];
+    private double[] mScratch = new double[0];
+    private double[] mScratch2 = new double[0];
+    private int mFramesSinceDetection;
+    private int mDetectionsSinceFullScan;
+    private volatile boolean mDetectNext = true;
+
+    // Written by the tracking thread only
+    private volatile long mDetectionFrames;
+    private volatile long mTrackingFrames;
+    private volatile long mFallbacks;
+    private volatile long mRegionScans;
+    private volatile double mRegionScanned;
+    private volatile long mDetectionNanos;
+    private volatile long mTrackingNanos;
+
+    /**
+     * @param detector Detector of the faces to track.
+     * @param redetectInterval Frames from one detection to the next, 1 to detect every frame.
+     */
+    public FaceTracker(FaceDetector detector, int redetectInterval) {
+        this(detector, redetectInterval, DEFAULT_FULL_SCAN_INTERVAL);
+    }
+
+    /**
+     * @param detector Detector of the faces to track.
+     * @param redetectInterval Frames from one detection to the next, 1 to detect every frame.
+     * @param fullScanInterval Detections from one whole frame scan to the next, 1 to never scan
+     *                         regions only.
+     */
+    public FaceTracker(FaceDetector detector, int redetectInterval, int fullScanInterval) {
+        if (redetectInterval < 1 || fullScanInterval < 1) {
+            throw new IllegalArgumentException("Intervals must be at least 1, got " + redetectInterval + " and "
+                    + fullScanInterval);
+        }
+        mDetector = detector;
+        mRedetectInterval = redetectInterval;
+        mFullScanInterval = fullScanInterval;
+    }
+
+    /**
+     * Finds the faces of the next frame, detecting or tracking them.
+     * @param gray 8-bit grayscale frame, the same size as the frames before.
+     * @return The faces, valid until the next call.
+     */
+    public MatOfRect track(Mat gray) {
+        long start = System.nanoTime();
+        // Known boxes are no use after a request or on a frame of another size
+        boolean fullScan = mDetectNext || mPrevious.empty() || mPrevious.cols() != gray.cols()
+                || mPrevious.rows() != gray.rows();
+        boolean detect = fullScan || mFramesSinceDetection + 1 >= mRedetectInterval;
+        if (!detect) {
+            if (follow(gray)) {
+                mFramesSinceDetection++;
+                gray.copyTo(mPrevious);
+                mTrackingFrames++;
+                mTrackingNanos += System.nanoTime() - start;
+                return mFaces;
+            }
+            mFallbacks++;
+        }
+        detect(gray, fullScan);
+        gray.copyTo(mPrevious);
+        mDetectionFrames++;
+        mDetectionNanos += System.nanoTime() - start;
+        return mFaces;
+    }
+
+    /**
+     * Makes the next {@link #track} run the cascade, for example after the camera was switched.
+     */
+    public void requestDetection() {
+        mDetectNext = true;
+    }
+
+    private void detect(Mat gray, boolean fullScan) {
+        boolean regions = !fullScan && mCount > 0 && mDetectionsSinceFullScan + 1 < mFullScanInterval;
+        MatOfRect found = regions ? mDetector.detect(gray, mBoxes, mCount) : null;
+        if (found != null && found.total() > 0) {
+            mDetectionsSinceFullScan++;
+            mRegionScans++;
+            mRegionScanned += mDetector.getScannedFraction();
+        } else {
+            found = mDetector.detect(gray);
+            mDetectionsSinceFullScan = 0;
+        }
+        int faces = (int) found.total();
+        mBoxes = FaceDetector.grow(mBoxes, faces);
+        mMovedBoxes = FaceDetector.grow(mMovedBoxes, faces);
+        if (faces > 0) {
+            found.get(0, 0, mBoxes);
+        }
+        mCount = faces;
+        FaceDetector.write(mBoxes, faces, mFaces);
+        mFramesSinceDetection = 0;
+        mDetectNext = false;
+        if (mStarts.length < faces + 1) {
+            mStarts = new int[faces + 1];
+            mInitialCorners = new int[faces];
+        }
+        ensurePoints(faces * MAX_CORNERS);
+        int count = 0;
+        for (int i = 0; i < faces; i++) {
+            mStarts[i] = count;
+            int width = mBoxes[4 * i + 2];
+            int height = mBoxes[4 * i + 3];
+            int marginX = (int) (width * CORNER_MARGIN);
+            int marginY = (int) (height * CORNER_MARGIN);
+            int innerX = mBoxes[4 * i] + marginX;
+            int innerY = mBoxes[4 * i + 1] + marginY;
+            mBridge.point(gray, innerX, innerY, width - 2 * marginX, height - 2 * marginY, mRegion);
+            Imgproc.goodFeaturesToTrack(mRegion, mCorners, MAX_CORNERS, CORNER_QUALITY, CORNER_DISTANCE);
+            int corners = (int) mCorners.total();
+            if (corners > 0) {
+                mCorners.get(0, 0, mCornerValues);
+                for (int c = 0; c < corners; c++) {
+                    mPoints[2 * count] = mCornerValues[2 * c] + innerX;
+                    mPoints[2 * count + 1] = mCornerValues[2 * c + 1] + innerY;
+                    count++;
+                }
+            }
+            mInitialCorners[i] = corners;
+        }
+        // Drop the reference to the frame's pixels
+        mRegion.release();
+        mStarts[faces] = count;
+    }
+
+    /**
+     * Moves every face box along the optical flow of its corners.
+     * @return Whether every face is still trusted, otherwise the boxes are left as they were.
+     */
+    private boolean follow(Mat gray) {
+        int faces = mCount;
+        int count = mStarts[faces];
+        if (faces == 0) {
+            // Nothing to follow, new faces only show up at the next detection
+            return true;
+        }
+        if (count == 0) {
+            return false;
+        }
+        mPrevPoints.alloc(count);
+        // put() stops at the end of the Mat, the rest of mPoints is left out
+        mPrevPoints.put(0, 0, mPoints);
+        Video.calcOpticalFlowPyrLK(mPrevious, gray, mPrevPoints, mNextPoints, mStatus, mErrors, FLOW_WINDOW,
+                FLOW_LEVELS, mFlowCriteria, 0, 1e-4);
+        mNextPoints.get(0, 0, mMoved);
+        mStatus.get(0, 0, mFound);
+        mErrors.get(0, 0, mFlowErrors);
+
+        int kept = 0;
+        for (int i = 0; i < faces; i++) {
+            int from = mStarts[i];
+            int to = mStarts[i + 1];
+            // Median motion of the corners that were found
+            int found = 0;
+            for (int p = from; p < to; p++) {
+                if (mFound[p] != 0 && mFlowErrors[p] < MAX_FLOW_ERROR) {
+                    mScratch[found] = mMoved[2 * p] - mPoints[2 * p];
+                    mScratch2[found] = mMoved[2 * p + 1] - mPoints[2 * p + 1];
+                    found++;
+                }
+            }
+            if (found < MIN_CORNERS) {
+                return false;
+            }
+            double dx = median(mScratch, found);
+            double dy = median(mScratch2, found);
+
+            // Drop corners that disagree with the median motion, they slid onto the background
+            int inliers = 0;
+            double centreX = 0;
+            double centreY = 0;
+            for (int p = from; p < to; p++) {
+                if (mFound[p] == 0 || mFlowErrors[p] >= MAX_FLOW_ERROR
+                        || Math.abs(mMoved[2 * p] - mPoints[2 * p] - dx) > MAX_DEVIATION
+                        || Math.abs(mMoved[2 * p + 1] - mPoints[2 * p + 1] - dy) > MAX_DEVIATION) {
+                    mFound[p] = 0;
+                    continue;
+                }
+                centreX += mPoints[2 * p];
+                centreY += mPoints[2 * p + 1];
+                inliers++;
+            }
+            if (inliers < MIN_CORNERS || inliers < MIN_CONFIDENCE * mInitialCorners[i]) {
+                return false;
+            }
+            centreX /= inliers;
+            centreY /= inliers;
+
+            // Median change of the distance to the centre of the corners gives the scale
+            int ratios = 0;
+            for (int p = from; p < to; p++) {
+                if (mFound[p] == 0) {
+                    continue;
+                }
+                double before = Math.hypot(mPoints[2 * p] - centreX, mPoints[2 * p + 1] - centreY);
+                if (before > 1) {
+                    double after = Math.hypot(mMoved[2 * p] - centreX - dx, mMoved[2 * p + 1] - centreY - dy);
+                    mScratch[ratios++] = after / before;
+                }
+            }
+            double scale = ratios == 0 ? 1 : median(mScratch, ratios);
+
+            int box = 4 * i;
+            double width = mBoxes[box + 2] * scale;
+            double height = mBoxes[box + 3] * scale;
+            double x = mBoxes[box] + mBoxes[box + 2] / 2.0 + dx - width / 2;
+            double y = mBoxes[box + 1] + mBoxes[box + 3] / 2.0 + dy - height / 2;
+            if (!clip(x, y, width, height, gray.cols(), gray.rows(), mMovedBoxes, box)) {
+                return false;
+            }
+
+            // Keep the surviving corners for the next frame
+            int start = kept;
+            for (int p = from; p < to; p++) {
+                if (mFound[p] != 0) {
+                    mPoints[2 * kept] = mMoved[2 * p];
+                    mPoints[2 * kept + 1] = mMoved[2 * p + 1];
+                    kept++;
+                }
+            }
+            mStarts[i] = start;
+        }
+        mStarts[faces] = kept;
+        int[] boxes = mBoxes;
+        mBoxes = mMovedBoxes;
+        mMovedBoxes = boxes;
+        FaceDetector.write(mBoxes, faces, mFaces);
+        return true;
+    }
+
+    private void ensurePoints(int count) {
+        if (mPoints.length < 2 * count) {
+            mPoints = new float[2 * count];
+            mMoved = new float[2 * count];
+            mFound = new byte[count];
+            mFlowErrors = new float[count];
+            mScratch = new double[count];
+            mScratch2 = new double[count];
+        }
+    }
+
+    /**
+     * Cuts a box to the frame.
+     * @param boxes Receives the box at offset, x, y, width and height interleaved.
+     * @return False if less than half of the box is inside, boxes is then left alone.
+     */
+    private static boolean clip(double x, double y, double width, double height, int cols, int rows, int[] boxes,
+                                int offset) {
+        int left = (int) Math.max(0, Math.round(x));
+        int top = (int) Math.max(0, Math.round(y));
+        int right = (int) Math.min(cols, Math.round(x + width));
+        int bottom = (int) Math.min(rows, Math.round(y + height));
+        if (right <= left || bottom <= top || (right - left) * (bottom - top) < width * height / 2) {
+            return false;
+        }
+        boxes[offset] = left;
+        boxes[offset + 1] = top;
+        boxes[offset + 2] = right - left;
+        boxes[offset + 3] = bottom - top;
+        return true;
+    }
+
+    private static double median(double[] values, int count) {
+        Arrays.sort(values, 0, count);
+        return count % 2 == 1 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+    }
+
+    public int getRedetectInterval() {
+        return mRedetectInterval;
+    }
+
+    public int getFullScanInterval() {
+        return mFullScanInterval;
+    }
+
+    /**
+     * @return Frames the cascade ran on, fallbacks included.
+     */
+    public long getDetectionFrames() {
+        return mDetectionFrames;
+    }
+
+    /**
+     * @return Frames whose faces were tracked without the cascade.
+     */
+    public long getTrackingFrames() {
+        return mTrackingFrames;
+    }
+
+    /**
+     * @return Frames the cascade ran on because tracking lost confidence.
+     */
+    public long getFallbacks() {
+        return mFallbacks;
+    }
+
+    /**
+     * @return Detections that only scanned the regions around known faces.
+     */
+    public long getRegionScans() {
+        return mRegionScans;
+    }
+
+    /**
+     * Zeroes the counters.
+     */
+    public void resetStats() {
+        mDetectionFrames = 0;
+        mTrackingFrames = 0;
+        mFallbacks = 0;
+        mRegionScans = 0;
+        mRegionScanned = 0;
+        mDetectionNanos = 0;
+        mTrackingNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        long detections = mDetectionFrames;
+        long tracked = mTrackingFrames;
+        long regionScans = mRegionScans;
+        return String.format(Locale.US, "%d detection frames (%d fallbacks, %d region scans over %.1f%% of the frame,"
+                        + " %.1f ms each), %d tracking frames (%.1f ms each)", detections, mFallbacks, regionScans,
+                regionScans == 0 ? 0 : 100 * mRegionScanned / regionScans,
+                detections == 0 ? 0 : mDetectionNanos / 1e6 / detections, tracked,
+                tracked == 0 ? 0 : mTrackingNanos / 1e6 / tracked);
+    }
+
+    /**
+     * Frees the frame and point buffers. The tracker cannot be used afterwards, the detector is
+     * left alone.
+     */
+    public void release() {
+        mPrevious.release();
+        mFaces.release();
+        mCorners.release();
+        mPrevPoints.release();
+        mNextPoints.release();
+        mStatus.release();
+        mErrors.release();
+        mRegion.release();
+        mBridge.release();
+    }
+}
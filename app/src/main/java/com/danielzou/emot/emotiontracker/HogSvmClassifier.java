@@ -0,0 +1,448 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.ml.Ml;
+import org.opencv.ml.SVM;
+import org.opencv.objdetect.HOGDescriptor;
+
+/**
+ * Classifies faces by the shape of their edges instead of their raw pixels: a HOG (histogram of
+ * oriented gradients) descriptor of the normalized face is fed to a linear SVM.
+ *
+ * OpenCV's multi-class SVM is one-vs-one, one linear decision function per pair of classes, each
+ * voting for one class of its pair. With a linear kernel every function is a single weight vector
+ * and an offset, so after training they are copied out of the SVM into one matrix. A {@link Batch}
+ * then scores all faces of a frame against all pairs with a single gemm and counts the votes in
+ * Java; the SVM itself is not needed to predict and is released.
+ *
+ * The distance of a class is the number of votes it missed, so the predicted class is at 0 and
+ * {@link EmotionPrediction#getMargin()} counts the votes between the best and the runner-up.
+ *
+ * The model is saved in its own small binary format through {@link ModelCache}. An instance is
+ * trained or loaded once and can then be shared by any number of threads, each with its own
+ * {@link Batch}.
+ */
+public class HogSvmClassifier implements BackendModel {
+
+    private static final String TAG = HogSvmClassifier.class.getName();
+
+    /**
+     * Width and height faces are resized to before computing the descriptor.
+     */
+    public static final int WINDOW = 64;
+    private static final int BLOCK = 16;
+    private static final int STRIDE = 8;
+    private static final int CELL = 8;
+    private static final int BINS = 9;
+    private static final double C = 0.1;
+    private static final int MAX_ITERATIONS = 1000;
+
+    private static final int MAGIC = 0x484f4753;
+    private static final int VERSION = 1;
+
+    private final int mClasses;
+    private final int mFaceSize;
+    private final int mDimensions;
+    // Labels that had training samples, ascending; decision functions are ordered by pairs of them
+    private int[] mLabels = new int[0];
+    private int mPairs;
+    // mPairs x mDimensions, one weight vector per decision function
+    private Mat mWeights;
+    private float[] mRho;
+
+    /**
+     * @param classes Number of emotion classes, labels must be below it.
+     * @param faceSize Width and height of the normalized faces.
+     */
+    public HogSvmClassifier(int classes, int faceSize) {
+        mClasses = classes;
+        mFaceSize = faceSize;
+        mDimensions = (int) newDescriptor().getDescriptorSize();
+    }
+
+    /**
+     * Per-thread buffers classifying a batch of faces.
+     */
+    public class Batch {
+        private final HOGDescriptor mHog = newDescriptor();
+        private final Mat mFace = new Mat(mFaceSize, mFaceSize, CvType.CV_8UC1);
+        private final Mat mWindow = new Mat(WINDOW, WINDOW, CvType.CV_8UC1);
+        private final Size mWindowSize = new Size(WINDOW, WINDOW);
+        private final MatOfFloat mDescriptor = new MatOfFloat();
+        private final float[] mValues = new float[mDimensions];
+        private final Mat mNoMat = new Mat();
+        private final int[] mVotes = new int[mLabels.length];
+
+        private int mCapacity;
+        private Mat mBatch;
+        private Mat[] mBatchViews;
+        private Mat mOutput;
+        private Mat[] mOutputViews;
+        private float[] mScores;
+
+        Batch() {
+            ensureCapacity(1);
+        }
+
+        /**
+         * Grows the batch to hold at least count faces.
+         * @param count Number of faces.
+         */
+        public void ensureCapacity(int count) {
+            if (count <= mCapacity) {
+                return;
+            }
+            int capacity = Math.max(count, mCapacity * 2);
+            releaseBatch();
+            mBatch = new Mat(capacity, mDimensions, CvType.CV_32FC1);
+            mOutput = new Mat(capacity, Math.max(1, mPairs), CvType.CV_32FC1);
+            mBatchViews = new Mat[capacity + 1];
+            mOutputViews = new Mat[capacity + 1];
+            for (int i = 0; i < capacity; i++) {
+                mBatchViews[i + 1] = mBatch.rowRange(0, i + 1);
+                mOutputViews[i + 1] = mOutput.rowRange(0, i + 1);
+            }
+            mScores = new float[capacity * Math.max(1, mPairs)];
+            mCapacity = capacity;
+        }
+
+        /**
+         * Computes the descriptor of a face into a batch row.
+         * @param pixels Normalized face, row-major, faceSize x faceSize.
+         * @param index Batch row, below the capacity.
+         */
+        public void load(byte[] pixels, int index) {
+            mFace.put(0, 0, pixels);
+            Imgproc.resize(mFace, mWindow, mWindowSize, 0, 0, Imgproc.INTER_AREA);
+            mHog.compute(mWindow, mDescriptor);
+            mDescriptor.get(0, 0, mValues);
+            mBatch.put(index, 0, mValues);
+        }
+
+        /**
+         * Scores the first count rows against every decision function with one matrix product.
+         * @param count Number of loaded faces.
+         */
+        public void score(int count) {
+            if (count == 0 || mPairs == 0) {
+                return;
+            }
+            Core.gemm(mBatchViews[count], mWeights, 1.0, mNoMat, 0.0, mOutputViews[count], Core.GEMM_2_T);
+            mOutput.get(0, 0, mScores);
+        }
+
+        /**
+         * Counts the votes of a scored face.
+         * @param index Batch row.
+         * @param prediction Receives the label with the most votes and the votes every class missed.
+         */
+        public void result(int index, EmotionPrediction prediction) {
+            Arrays.fill(mVotes, 0);
+            int function = 0;
+            for (int i = 0; i < mLabels.length; i++) {
+                for (int j = i + 1; j < mLabels.length; j++, function++) {
+                    // Same rule as SVM.predict: a positive decision votes for the first class of the pair
+                    if (mScores[index * mPairs + function] - mRho[function] > 0) {
+                        mVotes[i]++;
+                    } else {
+                        mVotes[j]++;
+                    }
+                }
+            }
+            prediction.reset(mClasses);
+            for (int i = 0; i < mLabels.length; i++) {
+                double missed = mLabels.length - 1 - mVotes[i];
+                prediction.offerSquared(mLabels[i], missed * missed);
+            }
+            prediction.rank();
+        }
+
+        /**
+         * Frees the buffers. The batch cannot be used afterwards.
+         */
+        public void release() {
+            releaseBatch();
+            mFace.release();
+            mWindow.release();
+            mDescriptor.release();
+            mNoMat.release();
+        }
+
+        private void releaseBatch() {
+            for (int i = 1; i <= mCapacity; i++) {
+                mBatchViews[i].release();
+                mOutputViews[i].release();
+            }
+            if (mBatch != null) {
+                mBatch.release();
+                mOutput.release();
+            }
+            mCapacity = 0;
+        }
+    }
+
+    /**
+     * @return New buffers for classifying on the calling thread. Call after the model is trained
+     * or loaded.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    @Override
+    public boolean needsTrainingSet() {
+        return true;
+    }
+
+    @Override
+    public void train(TrainingSet trainingSet) {
+        train(trainingSet.getImages(), trainingSet.getLabels());
+    }
+
+    /**
+     * Trains the SVM and keeps its decision functions.
+     * @param images Normalized faces, faceSize x faceSize 8-bit grayscale.
+     * @param labels Label of each face, CV_32SC1.
+     */
+    public void train(MatVector images, org.bytedeco.javacpp.opencv_core.Mat labels) {
+        int count = (int) images.size();
+        HOGDescriptor hog = newDescriptor();
+        Mat face = new Mat(mFaceSize, mFaceSize, CvType.CV_8UC1);
+        Mat window = new Mat(WINDOW, WINDOW, CvType.CV_8UC1);
+        Size windowSize = new Size(WINDOW, WINDOW);
+        MatOfFloat descriptor = new MatOfFloat();
+        byte[] pixels = new byte[mFaceSize * mFaceSize];
+        float[] values = new float[mDimensions];
+        Mat samples = new Mat(count, mDimensions, CvType.CV_32FC1);
+        Mat responses = new Mat(count, 1, CvType.CV_32SC1);
+        IntBuffer labelsBuf = labels.createBuffer();
+        boolean[] present = new boolean[mClasses];
+        SVM svm = SVM.create();
+        try {
+            for (int i = 0; i < count; i++) {
+                images.get(i).data().get(pixels);
+                face.put(0, 0, pixels);
+                Imgproc.resize(face, window, windowSize, 0, 0, Imgproc.INTER_AREA);
+                hog.compute(window, descriptor);
+                descriptor.get(0, 0, values);
+                samples.put(i, 0, values);
+                int label = labelsBuf.get(i);
+                responses.put(i, 0, label);
+                present[label] = true;
+            }
+
+            svm.setType(SVM.C_SVC);
+            svm.setKernel(SVM.LINEAR);
+            svm.setC(C);
+            svm.setTermCriteria(new TermCriteria(TermCriteria.MAX_ITER + TermCriteria.EPS, MAX_ITERATIONS, 1e-6));
+            svm.train(samples, Ml.ROW_SAMPLE, responses);
+            extract(svm, present);
+        } finally {
+            svm.clear();
+            face.release();
+            window.release();
+            descriptor.release();
+            samples.release();
+            responses.release();
+        }
+    }
+
+    /**
+     * Copies the decision functions out of a trained linear SVM. With a linear kernel OpenCV
+     * compresses the support vectors of each function into one, scaled by its single alpha.
+     */
+    private void extract(SVM svm, boolean[] present) {
+        int labelCount = 0;
+        for (boolean p : present) {
+            if (p) {
+                labelCount++;
+            }
+        }
+        int[] labels = new int[labelCount];
+        for (int k = 0, i = 0; k < present.length; k++) {
+            if (present[k]) {
+                labels[i++] = k;
+            }
+        }
+        int pairs = labelCount * (labelCount - 1) / 2;
+        Mat supportVectors = svm.getSupportVectors();
+        Mat alpha = new Mat();
+        Mat index = new Mat();
+        float[] vector = new float[mDimensions];
+        double[] alphaValue = new double[1];
+        int[] indexValue = new int[1];
+        Mat weights = new Mat(Math.max(1, pairs), mDimensions, CvType.CV_32FC1, Scalar.all(0));
+        float[] rho = new float[pairs];
+        try {
+            for (int f = 0; f < pairs; f++) {
+                rho[f] = (float) svm.getDecisionFunction(f, alpha, index);
+                alpha.get(0, 0, alphaValue);
+                index.get(0, 0, indexValue);
+                supportVectors.get(indexValue[0], 0, vector);
+                for (int d = 0; d < mDimensions; d++) {
+                    vector[d] *= alphaValue[0];
+                }
+                weights.put(f, 0, vector);
+            }
+        } finally {
+            supportVectors.release();
+            alpha.release();
+            index.release();
+        }
+        set(labels, weights, rho);
+        Log.i(TAG, "Trained " + pairs + " decision functions over " + mDimensions + " HOG features");
+    }
+
+    private void set(int[] labels, Mat weights, float[] rho) {
+        if (mWeights != null) {
+            mWeights.release();
+        }
+        mLabels = labels;
+        mPairs = rho.length;
+        mWeights = weights;
+        mRho = rho;
+    }
+
+    @Override
+    public void save(String path) throws IOException {
+        if (mWeights == null) {
+            throw new IllegalStateException("Classifier is not trained");
+        }
+        float[] vector = new float[mDimensions];
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mFaceSize);
+            out.writeInt(mDimensions);
+            out.writeInt(mLabels.length);
+            for (int label : mLabels) {
+                out.writeInt(label);
+            }
+            for (int f = 0; f < mPairs; f++) {
+                out.writeFloat(mRho[f]);
+                mWeights.get(f, 0, vector);
+                for (float value : vector) {
+                    out.writeFloat(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void load(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a HOG+SVM model of version " + VERSION);
+            }
+            int faceSize = in.readInt();
+            int dimensions = in.readInt();
+            if (faceSize != mFaceSize || dimensions != mDimensions) {
+                throw new IOException(path + " was saved for " + faceSize + "px faces with " + dimensions
+                        + " features");
+            }
+            int[] labels = new int[in.readInt()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readInt();
+                if (labels[i] < 0 || labels[i] >= mClasses) {
+                    throw new IOException(path + " has label " + labels[i] + " outside of " + mClasses + " classes");
+                }
+            }
+            int pairs = labels.length * (labels.length - 1) / 2;
+            Mat weights = new Mat(Math.max(1, pairs), mDimensions, CvType.CV_32FC1, Scalar.all(0));
+            float[] rho = new float[pairs];
+            float[] vector = new float[mDimensions];
+            try {
+                for (int f = 0; f < pairs; f++) {
+                    rho[f] = in.readFloat();
+                    for (int d = 0; d < mDimensions; d++) {
+                        vector[d] = in.readFloat();
+                    }
+                    weights.put(f, 0, vector);
+                }
+            } catch (IOException e) {
+                weights.release();
+                throw e;
+            }
+            set(labels, weights, rho);
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getClasses() {
+        return mClasses;
+    }
+
+    public int getFaceSize() {
+        return mFaceSize;
+    }
+
+    /**
+     * @return Length of the HOG descriptor of one face.
+     */
+    public int getDimensions() {
+        return mDimensions;
+    }
+
+    @Override
+    public FaceRecognizer getFaceRecognizer() {
+        return null;
+    }
+
+    @Override
+    public HogSvmClassifier getHogSvm() {
+        return this;
+    }
+
+    @Override
+    public SubspaceModel getSubspaceModel() {
+        return null;
+    }
+
+    @Override
+    public FacePredictor newPredictor(FacePreprocessor.Options preprocessing) {
+        return new FacePredictor(this, preprocessing);
+    }
+
+    /**
+     * Frees the weights. The classifier cannot be used afterwards.
+     */
+    @Override
+    public void release() {
+        if (mWeights != null) {
+            mWeights.release();
+            mWeights = null;
+        }
+    }
+
+    private static HOGDescriptor newDescriptor() {
+        return new HOGDescriptor(new Size(WINDOW, WINDOW), new Size(BLOCK, BLOCK), new Size(STRIDE, STRIDE),
+                new Size(CELL, CELL), BINS);
+    }
+}
@@ -0,0 +1,159 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A {@link SubspaceModel} exported to flat float arrays so faces can be projected and classified in
+ * plain Java, without crossing into native code.
+ *
+ * The projection matrix is stored pixel-major (all components of pixel 0, then pixel 1, ...), so a
+ * face is streamed through once in memory order while a handful of accumulators stay in registers.
+ * Faces are matched against the centroid of each class in the projected space rather than against
+ * every training sample, which makes classification independent of the training set size.
+ *
+ * Instances are immutable. Callers provide the scratch arrays, so one instance can be shared by
+ * any number of threads.
+ */
+public class JavaProjection {
+
+    private final int mDimensions;
+    private final int mComponents;
+    private final int mClasses;
+    private final float[] mWeights;
+    private final float[] mMeanProjection;
+    private final float[] mCentroids;
+
+    /**
+     * Exports the given model.
+     * @param model Model to export.
+     */
+    public JavaProjection(SubspaceModel model) {
+        this(model.getDimensions(), model.getComponents(), model.getClasses(),
+                (DoubleBuffer) model.getEigenvectors().createBuffer(), (DoubleBuffer) model.getMean().createBuffer(),
+                model.getLabels(), model.getProjections());
+    }
+
+    /**
+     * Exports a model given as arrays.
+     * @param dimensions Pixels per face.
+     * @param components Components of the projected space.
+     * @param classes Number of classes, each label is below it.
+     * @param eigenvectors Projection matrix, pixel-major with components values per pixel.
+     * @param mean Mean face, dimensions values.
+     * @param labels Label of every training sample.
+     * @param projections Projection of every training sample, components values each.
+     */
+    JavaProjection(int dimensions, int components, int classes, DoubleBuffer eigenvectors, DoubleBuffer mean,
+                   int[] labels, double[] projections) {
+        mDimensions = dimensions;
+        mComponents = components;
+
+        mWeights = new float[mDimensions * mComponents];
+        double[] meanProjection = new double[mComponents];
+        for (int p = 0; p < mDimensions; p++) {
+            double meanValue = mean.get(p);
+            for (int c = 0; c < mComponents; c++) {
+                double weight = eigenvectors.get(p * mComponents + c);
+                mWeights[p * mComponents + c] = (float) weight;
+                meanProjection[c] += meanValue * weight;
+            }
+        }
+        mMeanProjection = new float[mComponents];
+        for (int c = 0; c < mComponents; c++) {
+            mMeanProjection[c] = (float) meanProjection[c];
+        }
+
+        mClasses = classes;
+        double[] sums = new double[mClasses * mComponents];
+        int[] counts = new int[mClasses];
+        for (int i = 0; i < labels.length; i++) {
+            counts[labels[i]]++;
+            for (int c = 0; c < mComponents; c++) {
+                sums[labels[i] * mComponents + c] += projections[i * mComponents + c];
+            }
+        }
+        mCentroids = new float[mClasses * mComponents];
+        for (int k = 0; k < mClasses; k++) {
+            for (int c = 0; c < mComponents; c++) {
+                mCentroids[k * mComponents + c] = counts[k] == 0 ? Float.NaN : (float) (sums[k * mComponents + c] / counts[k]);
+            }
+        }
+    }
+
+    public int getDimensions() {
+        return mDimensions;
+    }
+
+    public int getComponents() {
+        return mComponents;
+    }
+
+    public int getClasses() {
+        return mClasses;
+    }
+
+    /**
+     * @param label Class.
+     * @param component Component of the projected space.
+     * @return The class centroid's value, NaN if the model has no samples of the class.
+     */
+    float getCentroid(int label, int component) {
+        return mCentroids[label * mComponents + component];
+    }
+
+    /**
+     * Projects an 8-bit face into the model's subspace.
+     * @param pixels Face pixels, row-major, {@link #getDimensions()} long.
+     * @param projection Receives {@link #getComponents()} values.
+     */
+    public void project(byte[] pixels, float[] projection) {
+        final int components = mComponents;
+        final float[] weights = mWeights;
+        for (int c = 0; c < components; c++) {
+            projection[c] = -mMeanProjection[c];
+        }
+        for (int p = 0, w = 0; p < mDimensions; p++, w += components) {
+            float x = pixels[p] & 0xff;
+            for (int c = 0; c < components; c++) {
+                projection[c] += x * weights[w + c];
+            }
+        }
+    }
+
+    /**
+     * Projects a face and measures its distance to every class centroid.
+     * @param pixels Face pixels, row-major, {@link #getDimensions()} long.
+     * @param projection Scratch array of at least {@link #getComponents()} values.
+     * @param prediction Receives the nearest class and the distance to each class.
+     */
+    public void classify(byte[] pixels, float[] projection, EmotionPrediction prediction) {
+        classify(pixels, projection, null, prediction);
+    }
+
+    /**
+     * Like {@link #classify(byte[], float[], EmotionPrediction)}, but with the centroid of class k
+     * shifted by classOffsets[k].
+     * @param pixels Face pixels, row-major, {@link #getDimensions()} long.
+     * @param projection Scratch array of at least {@link #getComponents()} values.
+     * @param classOffsets Shift of each class, row-major with {@link #getComponents()} values per
+     * class, or null for none.
+     * @param prediction Receives the nearest class and the distance to each class.
+     */
+    public void classify(byte[] pixels, float[] projection, float[] classOffsets, EmotionPrediction prediction) {
+        project(pixels, projection);
+        prediction.reset(mClasses);
+        for (int k = 0, base = 0; k < mClasses; k++, base += mComponents) {
+            float distance = 0;
+            for (int c = 0; c < mComponents; c++) {
+                float diff = projection[c] - mCentroids[base + c];
+                if (classOffsets != null) {
+                    diff -= classOffsets[base + c];
+                }
+                distance += diff * diff;
+            }
+            // Classes without samples have NaN centroids, whose distance never beats infinity
+            prediction.offerSquared(k, distance);
+        }
+        prediction.rank();
+    }
+}
@@ -36,10 +36,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.List;
 
 public class MainActivity extends Activity implements CvCameraViewListener2 {
 
     private static final String TAG = MainActivity.class.getName();
+    // Time one face may take to classify, the recognizer uses the largest face size that fits
+    private static final long FACE_BUDGET_MICROS = 5000;
+    // A face held at arm's length is a third of the preview's height or more, far above BALANCED's smallest
+    // face, so the cascade runs on a frame shrunk to 240 pixels; DetectionBenchmark compares it to FULL on such frames
+    private static final FaceDetector.Preset FACE_DETECTION = FaceDetector.Preset.BALANCED;
 
     // Loads camera view of OpenCV for us to use. This lets us see using OpenCV
     private CameraBridgeViewBase mOpenCvCameraView;
@@ -52,17 +58,21 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
     Mat mRgbaT;
     Mat mGray;
     private CascadeClassifier faceCascade;
+    // Runs the cascade every few frames and follows the faces in between, set once the cascade is loaded
+    private volatile FaceTracker mFaceTracker;
     private File mCascadeFile;
-    EmotionRecognizer emotionRecognizer;
-
-    public MainActivity() {
+    // Loads and trains the emotion recognizer in the background, frames only show face boxes until it is ready
+    RecognizerLoader mRecognizerLoader;
+    // Follows faces across frames with stable IDs, classifies a face again only when it changes
+    final TrackManager mTrackManager = new TrackManager();
+    // Last text shown, the view is only touched when it changes
+    private String mShownText;
+
+    static {
         System.loadLibrary("opencv_java3");
+    }
 
-        File downloadsFolderPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-        String downloadFolderPathString = downloadsFolderPath + "/";
-        Log.e(TAG, "Directory for downloads: " + downloadFolderPathString);
-        emotionRecognizer = new EmotionRecognizer(downloadFolderPathString); //Downloads folder
-
+    public MainActivity() {
         Log.i(TAG, "Instantiated new " + this.getClass());
     }
 
@@ -80,6 +90,25 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 
         mOpenCvCameraView.setCvCameraViewListener(this);
 
+        File downloadsFolderPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        String downloadFolderPathString = downloadsFolderPath + "/";
+        Log.e(TAG, "Directory for downloads: " + downloadFolderPathString);
+        mRecognizerLoader = new RecognizerLoader(downloadFolderPathString, new File(getFilesDir(), "models"), //Downloads folder
+                RecognizerBackend.FISHERFACES, RecognizerVariants.DEFAULT_SIZES, FACE_BUDGET_MICROS);
+        mRecognizerLoader.addListener(new RecognizerLoader.Listener() {
+            @Override
+            public void onRecognizerReady(EmotionRecognizer recognizer) {
+                ((TextView) findViewById(R.id.textview)).setText("Emotion classifier ready");
+            }
+
+            @Override
+            public void onRecognizerFailed(Throwable error) {
+                ((TextView) findViewById(R.id.textview)).setText("Emotion classifier failed to load");
+                Toast.makeText(MainActivity.this, "Could not load emotion classifier: " + error, Toast.LENGTH_LONG).show();
+            }
+        });
+        ((TextView) findViewById(R.id.textview)).setText("Loading emotion classifier...");
+
         //Instantiate progress dialog in onCreate
         mProgressDialog = new ProgressDialog(MainActivity.this);
         mProgressDialog.setMessage("Downloading training data...");
@@ -102,6 +131,13 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 
     public void onCameraViewStopped() {
         mRgba.release();
+        FaceTracker faceTracker = mFaceTracker;
+        if (faceTracker != null) {
+            Log.i(TAG, "Face tracking: " + faceTracker);
+            faceTracker.requestDetection();
+        }
+        Log.i(TAG, "Emotion classification: " + mTrackManager);
+        mTrackManager.clear();
     }
 
     private void setText(final TextView text, final String value){
@@ -122,13 +158,30 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 
         //Convert image to grayscale to improve detection speed and accuracy
         Imgproc.cvtColor(mRgba, mGray, Imgproc.COLOR_RGBA2GRAY);
-        MatOfRect faceDetections = new MatOfRect();
-        faceCascade.detectMultiScale(mGray, faceDetections);
+        FaceTracker faceTracker = mFaceTracker;
+        if (faceTracker == null) {
+            return mGray;
+        }
+        MatOfRect faceDetections = faceTracker.track(mGray);
         Log.i(TAG, String.format("Detected %s faces", faceDetections.toArray().length));
-        for (Rect rect : faceDetections.toArray()) {
+        List<TrackManager.Track> tracks = mTrackManager.update(faceDetections);
+        EmotionRecognizer emotionRecognizer = mRecognizerLoader.getRecognizer();
+        if (emotionRecognizer != null) {
+            // Classify new, changed and outdated faces in one batch before the boxes are drawn into the frame
+            mTrackManager.classify(emotionRecognizer, mGray);
+        }
+        // One line per classified face, so the text view only changes when some face's emotion does
+        StringBuilder shown = new StringBuilder();
+        for (TrackManager.Track track : tracks) {
+            Rect rect = track.getBox();
             Imgproc.rectangle(mGray, new Point(rect.x, rect.y), new Point(rect.x + rect.width, rect.y + rect.height),
                     new Scalar(0, 255, 0), 2);
-            String emotion = emotionRecognizer.emotionsArr[emotionRecognizer.detectEmotion(mGray.submat(rect))];
+            int label = track.getLabel();
+            if (emotionRecognizer == null || label < 0) {
+                // Classifier still loading or track not classified yet, draw the face box only
+                continue;
+            }
+            String emotion = emotionRecognizer.emotionsArr[label];
             //Imgproc.putText(mGray, "Detected " + emotion, new Point(0,0), Core.FONT_HERSHEY_TRIPLEX, 2.0, new  Scalar(0,255,255));
 //            runOnUiThread(new Runnable() {
 //                @Override
@@ -139,9 +192,21 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
 //                    textView.setText("Detected" + emotion);
 //                }
 //            });
-            setText((TextView)findViewById(R.id.textview), "Detected: " + emotion);
-
-            Log.i(TAG, String.format("Detected " + emotion));
+            if (shown.length() > 0) {
+                shown.append('\n');
+            }
+            shown.append("Detected: ").append(emotion);
+            if (tracks.size() > 1) {
+                shown.append(" (face ").append(track.getId()).append(')');
+            }
+        }
+        if (shown.length() > 0) {
+            String text = shown.toString();
+            if (!text.equals(mShownText)) {
+                mShownText = text;
+                setText((TextView) findViewById(R.id.textview), text);
+                Log.i(TAG, text.replace('\n', ';'));
+            }
         }
 
         if (faceDetections.toArray().length == 1) {
@@ -188,6 +253,9 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
         super.onDestroy();
         if (mOpenCvCameraView != null)
             mOpenCvCameraView.disableView();
+        // After the camera thread stopped, so the recognizer can be released along with the loader
+        if (mRecognizerLoader != null)
+            mRecognizerLoader.cancel();
     }
 
     private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
@@ -223,6 +291,8 @@ public class MainActivity extends Activity implements CvCameraViewListener2 {
                     }
                     else {
                         System.out.println("Face classifier loaded up");
+                        mFaceTracker = new FaceTracker(new FaceDetector(faceCascade, FACE_DETECTION),
+                                FaceTracker.DEFAULT_REDETECT_INTERVAL);
                     }
                 } break;
                 default:
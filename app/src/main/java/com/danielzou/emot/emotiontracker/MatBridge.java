@@ -0,0 +1,87 @@
+package com.danielzou.emot.emotiontracker;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Lets JavaCV functions read an OpenCV (org.opencv.core) Mat without copying it.
+ *
+ * Both libraries wrap the same native cv::Mat, so a JavaCV Mat can simply point at the header
+ * owned by the OpenCV Mat (https://github.com/bytedeco/javacpp/issues/38). The bridge owns no
+ * pixels: the OpenCV Mat stays the owner and must outlive every use of the returned Mat. The
+ * returned Mats are reused by the next call, so a bridge belongs to one thread and nothing is
+ * allocated per call.
+ */
+public class MatBridge {
+
+    /**
+     * A JavaCV Mat pointing at a native header it does not own. It has no deallocator, so
+     * collecting it never frees the OpenCV Mat.
+     */
+    private static class AliasMat extends Mat {
+        AliasMat() {
+            super((Pointer) null);
+        }
+
+        void alias(long nativeObjAddr) {
+            address = nativeObjAddr;
+        }
+    }
+
+    private final AliasMat mAlias = new AliasMat();
+    // Aliases the OpenCV header retargeted by point()
+    private final AliasMat mTarget = new AliasMat();
+    // Header owned by the bridge, retargeted to a region of the aliased Mat for every crop
+    private final Mat mRegion = new Mat();
+
+    /**
+     * @param image OpenCV Mat to read.
+     * @return A JavaCV Mat sharing image's header, valid until the next call on this bridge.
+     */
+    public Mat wrap(org.opencv.core.Mat image) {
+        mAlias.alias(image.getNativeObjAddr());
+        return mAlias;
+    }
+
+    /**
+     * Points a reused JavaCV header at a region of an OpenCV Mat.
+     * @param image OpenCV Mat to read.
+     * @param rect Region inside image.
+     * @return A JavaCV Mat sharing image's pixels, valid until the next call on this bridge or
+     * {@link #release()}.
+     */
+    public Mat crop(org.opencv.core.Mat image, Rect rect) {
+        mRegion.put(wrap(image));
+        mRegion.adjustROI(-rect.y, -(image.rows() - rect.y - rect.height),
+                -rect.x, -(image.cols() - rect.x - rect.width));
+        return mRegion;
+    }
+
+    /**
+     * Points an OpenCV header at a region of another OpenCV Mat, like submat without a new header.
+     * @param image OpenCV Mat to read.
+     * @param x Left of the region.
+     * @param y Top of the region.
+     * @param width Width of the region.
+     * @param height Height of the region.
+     * @param region Header to retarget. It shares image's pixels until it is retargeted or
+     *               released.
+     */
+    public void point(org.opencv.core.Mat image, int x, int y, int width, int height, org.opencv.core.Mat region) {
+        mTarget.alias(region.getNativeObjAddr());
+        mTarget.put(wrap(image));
+        mTarget.adjustROI(-y, -(image.rows() - y - height), -x, -(image.cols() - x - width));
+        mTarget.alias(0);
+        mAlias.alias(0);
+    }
+
+    /**
+     * Drops the references to the last wrapped Mat, so the bridge no longer keeps its pixels
+     * alive.
+     */
+    public void release() {
+        mRegion.release();
+        mAlias.alias(0);
+    }
+}
@@ -0,0 +1,171 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps trained face recognizer models on disk so that the data set only has to be read and
+ * trained on when it actually changes.
+ *
+ * Models are stored as "name-v(version)-(dataset hash).yml". The YAML file is written by the
+ * recognizer itself and holds the Fisherfaces eigenvectors, mean, projections and labels. Bumping
+ * FORMAT_VERSION invalidates every model saved by an older build; version 2 models were trained on
+ * faces normalized by {@link FacePreprocessor}, version 3 models on the deduplicated, group-aware
+ * split of {@link DatasetIndex} and version 4 models on its groups of one emotion's near
+ * duplicates.
+ */
+public class ModelCache {
+
+    private static final String TAG = ModelCache.class.getName();
+
+    /**
+     * A model that can be saved to and loaded from a file.
+     */
+    public interface Storable {
+        void save(String path) throws IOException;
+
+        void load(String path) throws IOException;
+    }
+
+    static final int FORMAT_VERSION = 4;
+
+    private final File mCacheDir;
+    private final String mName;
+
+    /**
+     * @param cacheDir Directory the models are kept in, created if missing.
+     * @param name Name of the model, e.g. "fisherfaces".
+     */
+    public ModelCache(File cacheDir, String name) {
+        mCacheDir = cacheDir;
+        mName = name;
+    }
+
+    /**
+     * Hashes the {@link DatasetIndex#fingerprint} of the images together with the preprocessing the
+     * faces go through. The data set pack is left out: it is only used while it matches both, and
+     * rebuilding it must not invalidate the model.
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folders to include, in label order.
+     * @param preprocessing {@link FacePreprocessor.Options#getKey()} of the training faces.
+     * @return Hex encoded SHA-1 of the data set listing.
+     */
+    public static String hashDataset(String trainingDir, List<String> emotions, String preprocessing) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        digest.update((preprocessing + "\n").getBytes(utf8));
+        digest.update(DatasetIndex.fingerprint(trainingDir, emotions).getBytes(utf8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param datasetHash Hash returned by {@link #hashDataset(String, List, String)}.
+     * @return The file the model for the given data set is stored in.
+     */
+    public File getModelFile(String datasetHash) {
+        return new File(mCacheDir, mName + "-v" + FORMAT_VERSION + "-" + datasetHash + ".yml");
+    }
+
+    /**
+     * Loads a previously saved model.
+     * @param model Untrained model of the same type the file was saved from.
+     * @param datasetHash Hash of the current data set.
+     * @return True if a model for this data set was found and loaded.
+     */
+    public boolean load(Storable model, String datasetHash) {
+        File modelFile = getModelFile(datasetHash);
+        if (!modelFile.isFile()) {
+            Log.i(TAG, "No cached model at " + modelFile.getAbsolutePath());
+            return false;
+        }
+        try {
+            model.load(modelFile.getAbsolutePath());
+            Log.i(TAG, "Loaded cached model " + modelFile.getName());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // A truncated or corrupt file is treated like a cache miss, it is overwritten after training.
+            Log.e(TAG, "Could not load cached model " + modelFile.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Saves a trained model and removes models saved for other data sets or versions.
+     * The model is written to a temporary file first so a crash never leaves a partial model behind.
+     * @param model Trained model.
+     * @param datasetHash Hash of the data set the model was trained on.
+     */
+    public void save(Storable model, String datasetHash) {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            Log.e(TAG, "Could not create model directory " + mCacheDir.getAbsolutePath());
+            return;
+        }
+        File modelFile = getModelFile(datasetHash);
+        File tmpFile = new File(mCacheDir, modelFile.getName() + ".tmp");
+        try {
+            model.save(tmpFile.getAbsolutePath());
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not save model " + modelFile.getName(), e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(modelFile)) {
+            Log.e(TAG, "Could not move model into place at " + modelFile.getAbsolutePath());
+            tmpFile.delete();
+            return;
+        }
+        Log.i(TAG, "Saved model " + modelFile.getName());
+
+        File[] stale = mCacheDir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                if (file.getName().startsWith(mName + "-") && !file.equals(modelFile)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the models cached under name before models were kept per face size, as
+     * "name-v(version)-(dataset hash).yml". They all predate the current format version, so none
+     * of them could be loaded anyway. Only worth calling after a cache miss: once a model was saved
+     * under the current format, no unsized model is left to delete.
+     * @param cacheDir Directory the models are kept in.
+     * @param name Model name without a face size, e.g. "fisherfaces".
+     */
+    public static void deleteUnsized(File cacheDir, String name) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Pattern unsized = Pattern.compile(Pattern.quote(name) + "-v\\d+-[0-9a-f]+\\.yml(\\.tmp)?");
+        for (File file : files) {
+            if (unsized.matcher(file.getName()).matches()) {
+                if (file.delete()) {
+                    Log.i(TAG, "Deleted model of an older format " + file.getName());
+                }
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+}
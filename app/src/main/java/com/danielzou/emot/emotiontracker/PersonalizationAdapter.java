@@ -0,0 +1,124 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+
+/**
+ * Per-user correction of a {@link SubspaceModel}, kept as one offset per emotion class in the
+ * projected space.
+ *
+ * Every labeled sample of the user is projected and added to a running mean of its class. Like
+ * {@link PersonalizationStore}, a class only keeps its newest samples: the projections sit in a
+ * ring buffer per class and the oldest one is subtracted from the sum when it is overwritten, so
+ * the live offsets match what a replay of the store rebuilds. The offset of a class moves the
+ * model's samples of that class towards the user's mean, weighted by how many samples the class
+ * holds: n / (n + prior). A few corrections nudge the class, many corrections replace the lab
+ * faces with the user's own.
+ *
+ * Adding a sample is O(pixels * components) and only touches its own class. The offsets are
+ * published as an immutable snapshot, so predictors on other threads read them without locking.
+ */
+public class PersonalizationAdapter {
+
+    /**
+     * Default number of user samples at which a class moves halfway to the user's mean.
+     */
+    public static final int DEFAULT_PRIOR = 5;
+
+    private final JavaProjection mProjection;
+    private final int mComponents;
+    private final int mClasses;
+    private final int mPrior;
+    private final int mSamplesPerClass;
+    private final double[] mSums;
+    // Projections of the kept samples, samplesPerClass rows of mComponents per class
+    private final float[][] mSamples;
+    private final int[] mCounts;
+    // Row of each class the next sample is written to
+    private final int[] mNext;
+    private final float[] mScratch;
+    private volatile float[] mOffsets;
+
+    /**
+     * @param model Model to adapt.
+     * @param prior Number of user samples at which a class moves halfway to the user's mean.
+     * @param samplesPerClass Maximum number of newest samples kept per class.
+     */
+    public PersonalizationAdapter(SubspaceModel model, int prior, int samplesPerClass) {
+        mProjection = model.getJavaProjection();
+        mComponents = model.getComponents();
+        mClasses = model.getClasses();
+        mPrior = Math.max(1, prior);
+        mSamplesPerClass = Math.max(1, samplesPerClass);
+        mSums = new double[mClasses * mComponents];
+        mSamples = new float[mClasses][];
+        mCounts = new int[mClasses];
+        mNext = new int[mClasses];
+        mScratch = new float[mComponents];
+    }
+
+    /**
+     * Adds one labeled sample of the user, drops the oldest sample of its class beyond the limit
+     * and publishes the new offsets.
+     * @param label Emotion label.
+     * @param pixels Face resized to the model's face size, row-major.
+     */
+    public synchronized void add(int label, byte[] pixels) {
+        if (label < 0 || label >= mClasses) {
+            throw new IllegalArgumentException("Label " + label + " is not one of " + mClasses + " classes");
+        }
+        mProjection.project(pixels, mScratch);
+        int base = label * mComponents;
+        if (mSamples[label] == null) {
+            mSamples[label] = new float[mSamplesPerClass * mComponents];
+        }
+        float[] samples = mSamples[label];
+        int row = mNext[label] * mComponents;
+        boolean full = mCounts[label] == mSamplesPerClass;
+        for (int c = 0; c < mComponents; c++) {
+            mSums[base + c] += mScratch[c] - (full ? samples[row + c] : 0);
+            samples[row + c] = mScratch[c];
+        }
+        mNext[label] = (mNext[label] + 1) % mSamplesPerClass;
+        if (!full) {
+            mCounts[label]++;
+        }
+
+        float[] offsets = mOffsets == null ? new float[mClasses * mComponents] : mOffsets.clone();
+        int count = mCounts[label];
+        double weight = (double) count / (count + mPrior);
+        for (int c = 0; c < mComponents; c++) {
+            float centroid = mProjection.getCentroid(label, c);
+            // A class without lab samples has nothing to shift
+            offsets[base + c] = Float.isNaN(centroid) ? 0
+                    : (float) (weight * (mSums[base + c] / count - centroid));
+        }
+        mOffsets = offsets;
+    }
+
+    /**
+     * @param label Emotion label.
+     * @return Number of user samples kept for the class.
+     */
+    public synchronized int getSampleCount(int label) {
+        return mCounts[label];
+    }
+
+    /**
+     * Forgets every user sample.
+     */
+    public synchronized void clear() {
+        Arrays.fill(mSums, 0);
+        Arrays.fill(mSamples, null);
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mNext, 0);
+        mOffsets = null;
+    }
+
+    /**
+     * @return Offset of each class, row-major with one value per component, or null while there
+     * are no user samples. The array is never modified once returned.
+     */
+    float[] getOffsets() {
+        return mOffsets;
+    }
+}
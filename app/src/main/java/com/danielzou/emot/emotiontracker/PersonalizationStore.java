@@ -0,0 +1,114 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Labeled face crops of one user, stored as PNGs under directory/&lt;label&gt;/.
+ *
+ * Each class keeps at most a fixed number of samples; the oldest are deleted first, so the store
+ * stays small and follows the user as they change. Not thread safe, it is only used from the
+ * {@link Personalizer}'s worker thread.
+ */
+public class PersonalizationStore {
+
+    private static final String TAG = PersonalizationStore.class.getName();
+    private static final String EXTENSION = ".png";
+
+    private final File mDirectory;
+    private final int mSamplesPerClass;
+    private long mLastName;
+
+    /**
+     * @param directory Directory of the user, created if missing.
+     * @param samplesPerClass Maximum number of samples kept per class.
+     */
+    public PersonalizationStore(File directory, int samplesPerClass) {
+        mDirectory = directory;
+        mSamplesPerClass = Math.max(1, samplesPerClass);
+    }
+
+    /**
+     * Saves a face and deletes the oldest samples of its class beyond the limit.
+     * @param label Emotion label.
+     * @param face 8-bit grayscale face, already normalized by the model's {@link FacePreprocessor}.
+     * @return The saved file, or null if it could not be written.
+     */
+    public File add(int label, Mat face) {
+        File classDirectory = new File(mDirectory, Integer.toString(label));
+        if (!classDirectory.isDirectory() && !classDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + classDirectory);
+            return null;
+        }
+        // Names are increasing timestamps, so sorting by name sorts by age
+        long name = Math.max(System.currentTimeMillis(), mLastName + 1);
+        mLastName = name;
+        File file = new File(classDirectory, name + EXTENSION);
+        if (!Imgcodecs.imwrite(file.getAbsolutePath(), face)) {
+            Log.e(TAG, "Could not write " + file);
+            return null;
+        }
+        List<File> samples = getSamples(label);
+        for (int i = 0; i < samples.size() - mSamplesPerClass; i++) {
+            if (!samples.get(i).delete()) {
+                Log.e(TAG, "Could not delete " + samples.get(i));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @param label Emotion label.
+     * @return The stored samples of the class, oldest first.
+     */
+    public List<File> getSamples(int label) {
+        File[] files = new File(mDirectory, Integer.toString(label)).listFiles();
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<File> samples = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(EXTENSION)) {
+                samples.add(file);
+            }
+        }
+        Collections.sort(samples);
+        return samples;
+    }
+
+    /**
+     * @param file A sample returned by {@link #getSamples}.
+     * @return The sample as an 8-bit grayscale Mat, empty if it could not be read.
+     */
+    public Mat read(File file) {
+        return Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+    }
+
+    /**
+     * Deletes every stored sample.
+     */
+    public void clear() {
+        File[] classDirectories = mDirectory.listFiles();
+        if (classDirectories == null) {
+            return;
+        }
+        for (File classDirectory : classDirectories) {
+            File[] files = classDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.e(TAG, "Could not delete " + file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * Learns from a user's corrections without blocking the camera.
+ *
+ * {@link #record} only copies the face on the calling thread. Normalizing it with the model's
+ * {@link FacePreprocessor}, storing the sample and updating the {@link PersonalizationAdapter}
+ * happen on one background thread, so a correction can
+ * be recorded every few seconds from onCameraFrame. If samples arrive faster than they are
+ * processed the oldest pending ones are dropped rather than queued without bound. Samples stored
+ * by earlier sessions are replayed into the adapter when the personalizer starts. Only samples
+ * are ever dropped: the replay and {@link #clear()} always run, in the order they were asked for.
+ */
+public class Personalizer {
+
+    private static final String TAG = Personalizer.class.getName();
+    private static final int SAMPLES_PER_CLASS = 20;
+    private static final int MAX_PENDING = 8;
+
+    private final PersonalizationAdapter mAdapter;
+    private final PersonalizationStore mStore;
+    private final int mClasses;
+    private final int mFaceSize;
+    // Only touched by the worker thread
+    private final FacePreprocessor mPreprocessor;
+    private final byte[] mPixels;
+    // Samples waiting for the worker, at most MAX_PENDING; only the tasks draining them are queued
+    private final ArrayDeque<Sample> mPending = new ArrayDeque<>();
+    private final AtomicBoolean mDrainQueued = new AtomicBoolean();
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                    // Only happens after shutdown(), the samples would never be processed
+                    dropPending();
+                }
+            });
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainQueued.set(false);
+            Sample sample;
+            while ((sample = nextPending()) != null) {
+                try {
+                    Mat normalized = sample.mBox == null ? mPreprocessor.process(sample.mFace)
+                            : mPreprocessor.process(sample.mFace, sample.mBox);
+                    mStore.add(sample.mLabel, normalized);
+                    learn(sample.mLabel, normalized);
+                } finally {
+                    sample.mFace.release();
+                }
+            }
+        }
+    };
+
+    private static class Sample {
+        final Mat mFace;
+        // Face inside mFace, null if mFace is a whole crop
+        final Rect mBox;
+        final int mLabel;
+
+        Sample(Mat face, Rect box, int label) {
+            mFace = face;
+            mBox = box;
+            mLabel = label;
+        }
+    }
+
+    /**
+     * Starts replaying the stored samples of the user in the background.
+     * @param model Model to adapt.
+     * @param preprocessing Options the model's training faces were normalized with.
+     * @param userDirectory Directory the user's samples are stored in.
+     */
+    public Personalizer(SubspaceModel model, FacePreprocessor.Options preprocessing, File userDirectory) {
+        mAdapter = new PersonalizationAdapter(model, PersonalizationAdapter.DEFAULT_PRIOR, SAMPLES_PER_CLASS);
+        mStore = new PersonalizationStore(userDirectory, SAMPLES_PER_CLASS);
+        mClasses = model.getClasses();
+        mFaceSize = preprocessing.faceSize;
+        mPreprocessor = new FacePreprocessor(preprocessing);
+        mPixels = new byte[mFaceSize * mFaceSize];
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        });
+    }
+
+    /**
+     * Records a labeled face found in a camera frame. Returns right away, the adapter picks the
+     * sample up shortly after. The face is padded with its surroundings like every camera face.
+     * @param frame 8-bit grayscale frame. The face and its surroundings are copied, so the caller
+     * may reuse it as soon as this returns.
+     * @param face Face rectangle inside frame.
+     * @param label Correct emotion label of the face.
+     */
+    public void record(Mat frame, Rect face, int label) {
+        // Enough context for the square padded box of any face shape
+        int longer = Math.max(face.width, face.height);
+        int margin = (int) Math.ceil((mPreprocessor.getOptions().padding + 0.5) * longer) + 1;
+        int left = Math.max(0, face.x - margin);
+        int top = Math.max(0, face.y - margin);
+        int right = Math.min(frame.cols(), face.x + face.width + margin);
+        int bottom = Math.min(frame.rows(), face.y + face.height + margin);
+        if (right <= left || bottom <= top) {
+            throw new IllegalArgumentException("Face " + face + " lies outside the frame");
+        }
+        Mat region = frame.submat(top, bottom, left, right);
+        try {
+            record(new Sample(region.clone(), new Rect(face.x - left, face.y - top, face.width, face.height),
+                    label));
+        } finally {
+            region.release();
+        }
+    }
+
+    /**
+     * Records a labeled face that is already cropped with a margin, like the data set images.
+     * Returns right away, the adapter picks the sample up shortly after.
+     * @param face 8-bit grayscale face of any size. It is copied, so the caller may reuse it as
+     * soon as this returns.
+     * @param label Correct emotion label of the face.
+     */
+    public void record(Mat face, int label) {
+        record(new Sample(face.clone(), null, label));
+    }
+
+    private void record(Sample sample) {
+        int label = sample.mLabel;
+        if (label < 0 || label >= mClasses) {
+            sample.mFace.release();
+            throw new IllegalArgumentException("Label " + label + " is not one of " + mClasses + " classes");
+        }
+        Sample dropped = null;
+        synchronized (mPending) {
+            if (mPending.size() >= MAX_PENDING) {
+                dropped = mPending.pollFirst();
+            }
+            mPending.addLast(sample);
+        }
+        if (dropped != null) {
+            dropped.mFace.release();
+        }
+        if (mDrainQueued.compareAndSet(false, true)) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    /**
+     * Forgets every sample of the user, in memory and on disk, including those recorded but not
+     * processed yet.
+     */
+    public void clear() {
+        dropPending();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStore.clear();
+                mAdapter.clear();
+            }
+        });
+    }
+
+    /**
+     * @return The adapter to classify with, see {@link FacePredictor#setAdapter}.
+     */
+    public PersonalizationAdapter getAdapter() {
+        return mAdapter;
+    }
+
+    /**
+     * Stops the background thread. Samples still pending are dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        dropPending();
+    }
+
+    private Sample nextPending() {
+        synchronized (mPending) {
+            return mPending.pollFirst();
+        }
+    }
+
+    private void dropPending() {
+        Sample sample;
+        while ((sample = nextPending()) != null) {
+            sample.mFace.release();
+        }
+    }
+
+    private void replay() {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (int label = 0; label < mClasses; label++) {
+            List<File> samples = mStore.getSamples(label);
+            for (File sample : samples) {
+                Mat face = mStore.read(sample);
+                try {
+                    // Samples are stored normalized, only their size can tell they belong to other options
+                    if (face.rows() != mFaceSize || face.cols() != mFaceSize) {
+                        Log.e(TAG, "Skipping " + sample + ", it was saved for another face size");
+                        continue;
+                    }
+                    learn(label, face);
+                    count++;
+                } finally {
+                    face.release();
+                }
+            }
+        }
+        Log.i(TAG, "Replayed " + count + " personal samples in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void learn(int label, Mat face) {
+        face.get(0, 0, mPixels);
+        mAdapter.add(label, mPixels);
+    }
+}
@@ -0,0 +1,136 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Measures the per-face latency of each prediction path on a set of cropped faces.
+ *
+ * Every path gets one untimed warm-up pass so the JIT has compiled the Java engine before it is
+ * measured.
+ */
+public class PredictionBenchmark {
+
+    private PredictionBenchmark() {
+    }
+
+    /**
+     * Times FaceRecognizer.predict and every {@link FacePredictor.Engine}. The predictor's engine is
+     * restored afterwards.
+     * @param recognizer Trained recognizer.
+     * @param predictor Predictor for the same model.
+     * @param faces Faces to classify.
+     * @param rounds Timed passes over faces per path.
+     * @return One line per path with the mean latency per face.
+     */
+    public static String run(FaceRecognizer recognizer, FacePredictor predictor, List<Mat> faces, int rounds) {
+        if (faces.isEmpty()) {
+            return "No faces to benchmark";
+        }
+        StringBuilder report = new StringBuilder();
+
+        for (Mat face : faces) {
+            recognizer.predict(face);
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (Mat face : faces) {
+                recognizer.predict(face);
+            }
+        }
+        appendLine(report, "FaceRecognizer.predict", System.nanoTime() - start, rounds * faces.size());
+
+        FacePredictor.Engine previous = predictor.getEngine();
+        EmotionPrediction prediction = new EmotionPrediction();
+        try {
+            for (FacePredictor.Engine engine : FacePredictor.Engine.values()) {
+                predictor.setEngine(engine);
+                for (Mat face : faces) {
+                    predictor.detectEmotion(face, prediction);
+                }
+                start = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    for (Mat face : faces) {
+                        predictor.detectEmotion(face, prediction);
+                    }
+                }
+                appendLine(report, engine.name(), System.nanoTime() - start, rounds * faces.size());
+            }
+        } finally {
+            predictor.setEngine(previous);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Times the whole camera path of a predictor, preprocessing included, on one face.
+     * @param predictor Predictor to time, with the engine it will run with.
+     * @param face 8-bit grayscale face crop, see {@link #syntheticFace(int)}.
+     * @param rounds Timed classifications.
+     * @return Mean latency per face in microseconds.
+     */
+    public static long cameraLatencyMicros(FacePredictor predictor, org.opencv.core.Mat face, int rounds) {
+        EmotionPrediction prediction = new EmotionPrediction();
+        predictor.detectEmotion(face, prediction);
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            predictor.detectEmotion(face, prediction);
+        }
+        return (System.nanoTime() - start) / 1000 / Math.max(1, rounds);
+    }
+
+    /**
+     * @param size Width and height of the crop.
+     * @return A noise image standing in for a camera face crop. Latency does not depend on the
+     * content, so no real face is needed to time a model.
+     */
+    public static org.opencv.core.Mat syntheticFace(int size) {
+        org.opencv.core.Mat face = new org.opencv.core.Mat(size, size, CvType.CV_8UC1);
+        Core.randu(face, 0, 256);
+        return face;
+    }
+
+    /**
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folder names.
+     * @param size Width and height of the crop.
+     * @return The first readable face of the data set shrunk to a camera crop, or a
+     * {@link #syntheticFace(int)} if there is none. Preprocessing such as eye alignment takes
+     * another path on noise than on a face, so a real face times the camera path more faithfully.
+     */
+    public static org.opencv.core.Mat sampleFace(String trainingDir, List<String> emotions, int size) {
+        for (String emotion : emotions) {
+            File[] files = new File(trainingDir + "dataset/" + emotion + "/").listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                org.opencv.core.Mat gray = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+                if (gray.empty()) {
+                    gray.release();
+                    continue;
+                }
+                org.opencv.core.Mat face = new org.opencv.core.Mat();
+                Imgproc.resize(gray, face, new Size(size, size), 0, 0, Imgproc.INTER_AREA);
+                gray.release();
+                return face;
+            }
+        }
+        return syntheticFace(size);
+    }
+
+    private static void appendLine(StringBuilder report, String name, long nanos, int faces) {
+        report.append(name).append(": ").append(nanos / 1000 / faces).append(" us/face\n");
+    }
+}
@@ -0,0 +1,315 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+import java.util.Locale;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * A {@link SubspaceModel} quantized to integers, classifying 8-bit faces with integer dot
+ * products.
+ *
+ * Every component of the projection matrix gets its own scale and is rounded to int8, the mean
+ * face is stored as int16 fixed point with {@link #MEAN_FRACTION_BITS} fractional bits. A face is
+ * projected as scale * (sum(x * q) - sum(mean * q)): the first sum runs over the raw pixels in int
+ * arithmetic, the second is a per-component constant computed once. Only the handful of projected
+ * values are converted to float to be matched against the class centroids, like
+ * {@link JavaProjection} does.
+ *
+ * With at most six discriminant components the int8 weights keep well over the precision the
+ * nearest-centroid decision needs; {@link #calibrate} measures the actual loss on held-out faces.
+ * Instances are immutable and can be shared by any number of threads, each with its own
+ * {@link Scratch}.
+ */
+public class QuantizedProjection {
+
+    /**
+     * Fractional bits of the int16 mean face.
+     */
+    public static final int MEAN_FRACTION_BITS = 7;
+
+    // 255 * 127 * 65536 still fits an int, so accumulators are widened once per chunk of pixels
+    private static final int CHUNK = 65536;
+
+    /**
+     * Per-thread accumulators for {@link #classify}.
+     */
+    public static class Scratch {
+        final int[] mAccumulators;
+        final long[] mSums;
+        final float[] mProjection;
+
+        Scratch(int components) {
+            mAccumulators = new int[components];
+            mSums = new long[components];
+            mProjection = new float[components];
+        }
+    }
+
+    /**
+     * Outcome of comparing the quantized projection with the float one on labeled faces.
+     */
+    public static class Calibration {
+        private final int mFaces;
+        private final int mFloatCorrect;
+        private final int mQuantizedCorrect;
+        private final int mAgreements;
+        private final float mMaxError;
+
+        Calibration(int faces, int floatCorrect, int quantizedCorrect, int agreements, float maxError) {
+            mFaces = faces;
+            mFloatCorrect = floatCorrect;
+            mQuantizedCorrect = quantizedCorrect;
+            mAgreements = agreements;
+            mMaxError = maxError;
+        }
+
+        public int getFaces() {
+            return mFaces;
+        }
+
+        /**
+         * @return Accuracy of the float projection minus accuracy of the quantized one, in percent.
+         */
+        public double getAccuracyLoss() {
+            return mFaces == 0 ? 0 : 100.0 * (mFloatCorrect - mQuantizedCorrect) / mFaces;
+        }
+
+        /**
+         * @return Fraction of faces both projections gave the same label.
+         */
+        public double getAgreement() {
+            return mFaces == 0 ? 1 : (double) mAgreements / mFaces;
+        }
+
+        /**
+         * @return Largest difference of a projected component, relative to its float value range.
+         */
+        public float getMaxError() {
+            return mMaxError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d faces, float %.1f%%, int8 %.1f%%, agreement %.1f%%, max error %.4f",
+                    mFaces, mFaces == 0 ? 0 : 100.0 * mFloatCorrect / mFaces,
+                    mFaces == 0 ? 0 : 100.0 * mQuantizedCorrect / mFaces, 100 * getAgreement(), mMaxError);
+        }
+    }
+
+    private final JavaProjection mReference;
+    private final int mDimensions;
+    private final int mComponents;
+    private final int mClasses;
+    private final byte[] mWeights;
+    private final short[] mMean;
+    private final float[] mScales;
+    private final long[] mMeanSums;
+
+    /**
+     * Quantizes the given model.
+     * @param model Model to quantize.
+     */
+    public QuantizedProjection(SubspaceModel model) {
+        this(model.getJavaProjection(), (DoubleBuffer) model.getEigenvectors().createBuffer(),
+                (DoubleBuffer) model.getMean().createBuffer());
+    }
+
+    /**
+     * Quantizes a model given as arrays.
+     * @param reference The model's float projection, which provides the sizes and class centroids.
+     * @param eigenvectors Projection matrix, pixel-major with one value per component per pixel.
+     * @param mean Mean face, one value per pixel.
+     */
+    QuantizedProjection(JavaProjection reference, DoubleBuffer eigenvectors, DoubleBuffer mean) {
+        mReference = reference;
+        mDimensions = reference.getDimensions();
+        mComponents = reference.getComponents();
+        mClasses = reference.getClasses();
+
+        double[] maxAbs = new double[mComponents];
+        for (int p = 0; p < mDimensions; p++) {
+            for (int c = 0; c < mComponents; c++) {
+                maxAbs[c] = Math.max(maxAbs[c], Math.abs(eigenvectors.get(p * mComponents + c)));
+            }
+        }
+        mScales = new float[mComponents];
+        for (int c = 0; c < mComponents; c++) {
+            mScales[c] = maxAbs[c] == 0 ? 1 : (float) (maxAbs[c] / 127);
+        }
+        // Pixel-major, like JavaProjection, so a face is streamed through once
+        mWeights = new byte[mDimensions * mComponents];
+        for (int p = 0; p < mDimensions; p++) {
+            for (int c = 0; c < mComponents; c++) {
+                long q = Math.round(eigenvectors.get(p * mComponents + c) / mScales[c]);
+                mWeights[p * mComponents + c] = (byte) Math.max(-127, Math.min(127, q));
+            }
+        }
+
+        mMean = new short[mDimensions];
+        mMeanSums = new long[mComponents];
+        for (int p = 0; p < mDimensions; p++) {
+            long fixed = Math.round(mean.get(p) * (1 << MEAN_FRACTION_BITS));
+            mMean[p] = (short) Math.max(0, Math.min(255 << MEAN_FRACTION_BITS, fixed));
+            for (int c = 0; c < mComponents; c++) {
+                mMeanSums[c] += (long) mMean[p] * mWeights[p * mComponents + c];
+            }
+        }
+    }
+
+    /**
+     * @return Scratch arrays sized for this projection.
+     */
+    public Scratch newScratch() {
+        return new Scratch(mComponents);
+    }
+
+    public int getDimensions() {
+        return mDimensions;
+    }
+
+    /**
+     * @return int8 projection matrix, pixel-major with {@link #getComponents()} values per pixel.
+     */
+    public byte[] getWeights() {
+        return mWeights;
+    }
+
+    /**
+     * @return Mean face, int16 with {@link #MEAN_FRACTION_BITS} fractional bits.
+     */
+    public short[] getMean() {
+        return mMean;
+    }
+
+    /**
+     * @param component Component of the projected space.
+     * @return Float value of one step of the component's int8 weights.
+     */
+    public float getScale(int component) {
+        return mScales[component];
+    }
+
+    public int getComponents() {
+        return mComponents;
+    }
+
+    /**
+     * Projects an 8-bit face into the model's subspace with integer arithmetic.
+     * @param pixels Face pixels, row-major, {@link #getDimensions()} long.
+     * @param scratch Scratch of the calling thread, receives the projection.
+     * @return scratch's projection, {@link #getComponents()} values.
+     */
+    public float[] project(byte[] pixels, Scratch scratch) {
+        final int components = mComponents;
+        final byte[] weights = mWeights;
+        final int[] accumulators = scratch.mAccumulators;
+        final long[] sums = scratch.mSums;
+        for (int c = 0; c < components; c++) {
+            sums[c] = 0;
+        }
+        for (int from = 0; from < mDimensions; from += CHUNK) {
+            int to = Math.min(mDimensions, from + CHUNK);
+            for (int c = 0; c < components; c++) {
+                accumulators[c] = 0;
+            }
+            for (int p = from, w = from * components; p < to; p++, w += components) {
+                int x = pixels[p] & 0xff;
+                for (int c = 0; c < components; c++) {
+                    accumulators[c] += x * weights[w + c];
+                }
+            }
+            for (int c = 0; c < components; c++) {
+                sums[c] += accumulators[c];
+            }
+        }
+        float[] projection = scratch.mProjection;
+        for (int c = 0; c < components; c++) {
+            // Pixels are integers, the mean carries MEAN_FRACTION_BITS, so scale the pixel sum up to match
+            long fixed = (sums[c] << MEAN_FRACTION_BITS) - mMeanSums[c];
+            projection[c] = mScales[c] * fixed / (1 << MEAN_FRACTION_BITS);
+        }
+        return projection;
+    }
+
+    /**
+     * Projects a face and measures its distance to every class centroid.
+     * @param pixels Face pixels, row-major, {@link #getDimensions()} long.
+     * @param scratch Scratch of the calling thread.
+     * @param classOffsets Shift of each class centroid, see {@link PersonalizationAdapter}, or null.
+     * @param prediction Receives the nearest class and the distance to each class.
+     */
+    public void classify(byte[] pixels, Scratch scratch, float[] classOffsets, EmotionPrediction prediction) {
+        float[] projection = project(pixels, scratch);
+        prediction.reset(mClasses);
+        for (int k = 0, base = 0; k < mClasses; k++, base += mComponents) {
+            float distance = 0;
+            for (int c = 0; c < mComponents; c++) {
+                float diff = projection[c] - mReference.getCentroid(k, c);
+                if (classOffsets != null) {
+                    diff -= classOffsets[base + c];
+                }
+                distance += diff * diff;
+            }
+            prediction.offerSquared(k, distance);
+        }
+        prediction.rank();
+    }
+
+    /**
+     * Classifies labeled faces with both this and the float {@link JavaProjection} and compares
+     * the results. Faces that are not exactly {@link #getDimensions()} continuous pixels are
+     * skipped.
+     * @param faces Normalized faces, such as the prediction images of a {@link TrainingSet}.
+     * @param labels Label of each face.
+     * @return The comparison.
+     */
+    public Calibration calibrate(List<Mat> faces, int[] labels) {
+        byte[] pixels = new byte[mDimensions];
+        float[] reference = new float[mComponents];
+        Scratch scratch = newScratch();
+        EmotionPrediction floatPrediction = new EmotionPrediction();
+        EmotionPrediction quantizedPrediction = new EmotionPrediction();
+        float[] min = new float[mComponents];
+        float[] max = new float[mComponents];
+        float[] maxDiff = new float[mComponents];
+        int count = 0;
+        int floatCorrect = 0;
+        int quantizedCorrect = 0;
+        int agreements = 0;
+        for (int i = 0; i < faces.size(); i++) {
+            Mat face = faces.get(i);
+            if (face.total() != mDimensions || !face.isContinuous()) {
+                continue;
+            }
+            face.data().get(pixels);
+            mReference.classify(pixels, reference, floatPrediction);
+            classify(pixels, scratch, null, quantizedPrediction);
+            float[] quantized = scratch.mProjection;
+            for (int c = 0; c < mComponents; c++) {
+                min[c] = count == 0 ? reference[c] : Math.min(min[c], reference[c]);
+                max[c] = count == 0 ? reference[c] : Math.max(max[c], reference[c]);
+                maxDiff[c] = Math.max(maxDiff[c], Math.abs(quantized[c] - reference[c]));
+            }
+            count++;
+            if (floatPrediction.getLabel() == labels[i]) {
+                floatCorrect++;
+            }
+            if (quantizedPrediction.getLabel() == labels[i]) {
+                quantizedCorrect++;
+            }
+            if (floatPrediction.getLabel() == quantizedPrediction.getLabel()) {
+                agreements++;
+            }
+        }
+        float maxError = 0;
+        for (int c = 0; c < mComponents; c++) {
+            float range = max[c] - min[c];
+            if (range > 0) {
+                maxError = Math.max(maxError, maxDiff[c] / range);
+            }
+        }
+        return new Calibration(count, floatCorrect, quantizedCorrect, agreements, maxError);
+    }
+}
@@ -0,0 +1,92 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.List;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+import static org.bytedeco.javacpp.opencv_face.createEigenFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_face.createFisherFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_face.createLBPHFaceRecognizer;
+
+/**
+ * The face recognition algorithms an {@link EmotionRecognizer} can be built on.
+ *
+ * Fisherfaces and Eigenfaces are subspace models: they are classified through a
+ * {@link SubspaceModel} and must be retrained from scratch to learn new samples. LBPH keeps one
+ * histogram per sample, so new samples can be added with {@link FaceRecognizer#update} in
+ * milliseconds, at the price of a model that grows with every sample. HOG+SVM is not a
+ * FaceRecognizer at all but a {@link HogSvmClassifier}, trained on edge histograms instead of
+ * raw pixels. Streaming Fisherfaces is the Fisherfaces model trained by a
+ * {@link StreamingFisherTrainer} straight from disk, for data sets that do not fit in memory.
+ * Whatever the algorithm, {@link #newModel} returns it as a {@link BackendModel}.
+ */
+public enum RecognizerBackend {
+    FISHERFACES("fisherfaces"),
+    EIGENFACES("eigenfaces"),
+    LBPH("lbph"),
+    HOG_SVM("hogsvm"),
+    FISHERFACES_STREAMING("fisherfaces-streaming");
+
+    private final String mModelName;
+
+    RecognizerBackend(String modelName) {
+        mModelName = modelName;
+    }
+
+    /**
+     * @param trainingDir Directory containing the dataset folder, read by streaming backends.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param preprocessing Options the training faces are normalized with.
+     * @return A new, untrained model. The caller owns it and must release it.
+     */
+    public BackendModel newModel(String trainingDir, List<String> emotions, FacePreprocessor.Options preprocessing) {
+        switch (this) {
+            case HOG_SVM:
+                return new HogSvmClassifier(emotions.size(), preprocessing.faceSize);
+            case FISHERFACES_STREAMING:
+                return new StreamingFisherTrainer(trainingDir, emotions, preprocessing, DatasetLoader.DEFAULT_SEED,
+                        Runtime.getRuntime().availableProcessors(), StreamingFisherTrainer.DEFAULT_CHUNK_SIZE);
+            default:
+                return new FaceRecognizerModel(newFaceRecognizer(), emotions.size(), isSubspace());
+        }
+    }
+
+    private FaceRecognizer newFaceRecognizer() {
+        switch (this) {
+            case EIGENFACES:
+                return createEigenFaceRecognizer();
+            case LBPH:
+                return createLBPHFaceRecognizer();
+            default:
+                return createFisherFaceRecognizer();
+        }
+    }
+
+    /**
+     * @return Whether a trained recognizer can learn new samples without retraining.
+     */
+    public boolean supportsUpdate() {
+        return this == LBPH;
+    }
+
+    /**
+     * @return Whether the trained model is a {@link SubspaceModel}.
+     */
+    public boolean isSubspace() {
+        return this == FISHERFACES || this == EIGENFACES || this == FISHERFACES_STREAMING;
+    }
+
+    /**
+     * @return Whether the model is trained from disk in chunks instead of from a loaded
+     * {@link TrainingSet}.
+     */
+    public boolean isStreaming() {
+        return this == FISHERFACES_STREAMING;
+    }
+
+    /**
+     * @return Name the trained model is cached under by {@link ModelCache}.
+     */
+    public String getModelName() {
+        return mModelName;
+    }
+}
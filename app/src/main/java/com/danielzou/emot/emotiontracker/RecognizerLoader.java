@@ -0,0 +1,221 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds an {@link EmotionRecognizer} on a background thread so loading and training the model
+ * never blocks the UI or the camera.
+ *
+ * The loader starts in {@link State#LOADING} and moves to {@link State#READY} or
+ * {@link State#FAILED} exactly once. Until it is ready, {@link #getRecognizer()} returns null and
+ * callers are expected to skip classification.
+ */
+public class RecognizerLoader {
+
+    private static final String TAG = RecognizerLoader.class.getName();
+
+    public enum State {
+        LOADING,
+        READY,
+        FAILED
+    }
+
+    /**
+     * Callbacks are delivered on the main thread.
+     */
+    public interface Listener {
+        void onRecognizerReady(EmotionRecognizer recognizer);
+
+        void onRecognizerFailed(Throwable error);
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+    private final Future<EmotionRecognizer> mFuture;
+
+    private volatile State mState = State.LOADING;
+    private volatile EmotionRecognizer mRecognizer;
+    private volatile Throwable mError;
+    // Guarded by mListeners
+    private boolean mCancelled;
+
+    /**
+     * Starts loading the recognizer right away.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     */
+    public RecognizerLoader(String trainingDirectoryPath, File modelDirectory) {
+        this(trainingDirectoryPath, modelDirectory, RecognizerBackend.FISHERFACES);
+    }
+
+    /**
+     * Starts loading the recognizer right away.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     * @param backend Face recognition algorithm to use.
+     */
+    public RecognizerLoader(String trainingDirectoryPath, File modelDirectory, RecognizerBackend backend) {
+        this(trainingDirectoryPath, modelDirectory, backend, null, 0);
+    }
+
+    /**
+     * Starts loading the backend right away at the largest face size whose camera latency fits the
+     * budget. The size is chosen before training, so only that size is loaded or trained, see
+     * {@link RecognizerVariants#load}.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     * @param backend Face recognition algorithm to use.
+     * @param sizes Face sizes to choose from.
+     * @param budgetMicros Time one face may take, preprocessing included.
+     */
+    public RecognizerLoader(final String trainingDirectoryPath, final File modelDirectory,
+                            final RecognizerBackend backend, final int[] sizes, final long budgetMicros) {
+        mFuture = mExecutor.submit(new Callable<EmotionRecognizer>() {
+            @Override
+            public EmotionRecognizer call() throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    EmotionRecognizer recognizer = sizes == null
+                            ? new EmotionRecognizer(trainingDirectoryPath, modelDirectory, backend)
+                            : RecognizerVariants.load(trainingDirectoryPath, modelDirectory, backend,
+                                    FacePreprocessor.Options.DEFAULT, sizes, budgetMicros);
+                    Log.i(TAG, "Emotion recognizer ready after " + (System.currentTimeMillis() - start) + " ms");
+                    publish(recognizer, null);
+                    return recognizer;
+                } catch (Throwable t) {
+                    Log.e(TAG, "Emotion recognizer failed to load", t);
+                    publish(null, t);
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    throw t instanceof Exception ? (Exception) t : new Exception(t);
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return The recognizer once it is ready, null while loading or after a failure.
+     */
+    public EmotionRecognizer getRecognizer() {
+        return mRecognizer;
+    }
+
+    /**
+     * @return The error that made loading fail, null otherwise.
+     */
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * @return A future completing with the recognizer, for callers that would rather block.
+     */
+    public Future<EmotionRecognizer> getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * Registers a listener. If loading has already finished the listener is notified right away
+     * (posted to the main thread).
+     * @param listener Listener to notify.
+     */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (mState == State.LOADING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Stops a load still in progress, or releases the recognizer if it was already published.
+     * Training itself is native and finishes in the background, but its result is released instead
+     * of published. Either way the loader ends up {@link State#FAILED} with a
+     * CancellationException. Call it once nothing uses the recognizer anymore, such as after the
+     * camera stopped.
+     */
+    public void cancel() {
+        mFuture.cancel(true);
+        EmotionRecognizer published;
+        synchronized (mListeners) {
+            mCancelled = true;
+            mListeners.clear();
+            published = mRecognizer;
+            mRecognizer = null;
+            if (mState == State.READY) {
+                mError = new CancellationException("Recognizer loading was cancelled");
+                mState = State.FAILED;
+            }
+        }
+        if (published != null) {
+            published.release();
+        }
+    }
+
+    private void publish(EmotionRecognizer recognizer, Throwable error) {
+        List<Listener> listeners;
+        boolean cancelled;
+        synchronized (mListeners) {
+            cancelled = mCancelled;
+            if (cancelled) {
+                mError = new CancellationException("Recognizer loading was cancelled");
+                mState = State.FAILED;
+            } else {
+                mRecognizer = recognizer;
+                mError = error;
+                mState = recognizer != null ? State.READY : State.FAILED;
+            }
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        if (cancelled) {
+            // Nobody will ever get it, the loader was cancelled while it was built
+            if (recognizer != null) {
+                recognizer.release();
+            }
+            return;
+        }
+        for (Listener listener : listeners) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(final Listener listener) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.READY) {
+                    listener.onRecognizerReady(mRecognizer);
+                } else {
+                    listener.onRecognizerFailed(mError);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,160 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+/**
+ * One trained model of an {@link EmotionRecognizer} together with the predictor classifying
+ * against it, so the whole can be replaced with a single reference swap.
+ *
+ * Instances are reference counted. The recognizer holds one reference while the model is active
+ * and every call classifying with it holds another until it returns; the native memory is freed
+ * as soon as the last reference is dropped, on the thread dropping it. An ensemble attached to
+ * the model is counted the same way, so replacing it never frees predictors still classifying.
+ */
+class RecognizerModel {
+
+    /**
+     * An ensemble together with the reference it holds to its cheap predictor's model.
+     */
+    static class Ensemble {
+
+        final EnsemblePredictor mPredictor;
+        private final RecognizerModel mCheap;
+        private final AtomicInteger mReferences = new AtomicInteger(1);
+
+        /**
+         * @param predictor Ensemble whose predictors are owned from now on.
+         * @param cheap Model of the cheap predictor, whose reference is handed over.
+         */
+        Ensemble(EnsemblePredictor predictor, RecognizerModel cheap) {
+            mPredictor = predictor;
+            mCheap = cheap;
+        }
+
+        private boolean acquire() {
+            while (true) {
+                int references = mReferences.get();
+                if (references <= 0) {
+                    return false;
+                }
+                if (mReferences.compareAndSet(references, references + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Drops a reference, freeing the predictors and the cheap model's reference when it was
+         * the last.
+         */
+        void release() {
+            if (mReferences.decrementAndGet() == 0) {
+                mPredictor.release();
+                mCheap.release();
+            }
+        }
+    }
+
+    final RecognizerBackend mBackend;
+    final FacePreprocessor.Options mPreprocessing;
+    final BackendModel mTrained;
+    // At most one of these is set, neither for streaming backends
+    final FaceRecognizer mFaceRecognizer;
+    final HogSvmClassifier mHogSvm;
+    // Null for backends without a subspace
+    final SubspaceModel mModel;
+    final FacePredictor mPredictor;
+    // Set while classifying in ensemble mode, see EmotionRecognizer.setEnsemble()
+    private volatile Ensemble mEnsemble;
+    private final AtomicInteger mReferences = new AtomicInteger(1);
+
+    /**
+     * Takes ownership of a trained model, holding the caller's reference.
+     * @param backend Backend the model was trained with.
+     * @param preprocessing Options the training faces were normalized with.
+     * @param trained Trained or loaded model of the backend.
+     */
+    RecognizerModel(RecognizerBackend backend, FacePreprocessor.Options preprocessing, BackendModel trained) {
+        mBackend = backend;
+        mPreprocessing = preprocessing;
+        mTrained = trained;
+        mFaceRecognizer = trained.getFaceRecognizer();
+        mHogSvm = trained.getHogSvm();
+        mModel = trained.getSubspaceModel();
+        mPredictor = newPredictor();
+    }
+
+    /**
+     * @return A new predictor on this model, on the default engine.
+     */
+    FacePredictor newPredictor() {
+        return mTrained.newPredictor(mPreprocessing);
+    }
+
+    /**
+     * @return The attached ensemble, only to read its statistics from, or null.
+     */
+    EnsemblePredictor getEnsemble() {
+        Ensemble ensemble = mEnsemble;
+        return ensemble == null ? null : ensemble.mPredictor;
+    }
+
+    /**
+     * Takes a reference to the attached ensemble to classify with.
+     * @return The ensemble, to be released by the caller, or null if there is none.
+     */
+    Ensemble acquireEnsemble() {
+        while (true) {
+            Ensemble ensemble = mEnsemble;
+            // Fails only if the ensemble was replaced and freed since it was read
+            if (ensemble == null || ensemble.acquire()) {
+                return ensemble;
+            }
+        }
+    }
+
+    /**
+     * Attaches an ensemble, dropping the one attached before.
+     * @param ensemble Ensemble whose expensive predictor is on this model, holding the caller's
+     *                 reference, or null to leave ensemble mode.
+     */
+    void setEnsemble(Ensemble ensemble) {
+        Ensemble old;
+        synchronized (this) {
+            old = mEnsemble;
+            mEnsemble = ensemble;
+        }
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    /**
+     * Takes a reference, unless the model has already been freed.
+     * @return Whether the reference was taken.
+     */
+    boolean acquire() {
+        while (true) {
+            int references = mReferences.get();
+            if (references <= 0) {
+                return false;
+            }
+            if (mReferences.compareAndSet(references, references + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference, freeing the model when it was the last.
+     */
+    void release() {
+        if (mReferences.decrementAndGet() == 0) {
+            setEnsemble(null);
+            mPredictor.release();
+            mTrained.release();
+        }
+    }
+}
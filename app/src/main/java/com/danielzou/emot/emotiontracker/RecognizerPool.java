@@ -0,0 +1,210 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+import org.opencv.core.Mat;
+
+/**
+ * Thread-safe front end for classifying many faces at once.
+ *
+ * Every thread gets its own {@link FacePredictor} with its own scratch buffers, while all of them
+ * share one immutable {@link SubspaceModel}. {@link #classifyAll} spreads a list of faces over a
+ * fixed number of worker threads, so throughput scales with cores without oversubscribing them.
+ * Backends without a subspace share the trained recognizer instead, which serializes its predict
+ * calls. A {@link HogSvmClassifier} is shared like a model, every predictor scoring its own batch.
+ */
+public class RecognizerPool {
+
+    private final SubspaceModel mModel;
+    private final FaceRecognizer mRecognizer;
+    private final HogSvmClassifier mHogSvm;
+    private final int mClasses;
+    private final FacePreprocessor.Options mPreprocessing;
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+    private volatile FacePredictor.Engine mEngine = FacePredictor.Engine.NATIVE;
+    private volatile PersonalizationAdapter mAdapter;
+    // Run by shutdown(), such as dropping the pool's reference to a hot-swappable model
+    private Runnable mOnShutdown;
+    // Every predictor handed out, so shutdown() can free their buffers
+    private final List<FacePredictor> mCreated = new ArrayList<>();
+
+    private final ThreadLocal<FacePredictor> mPredictors = new ThreadLocal<FacePredictor>() {
+        @Override
+        protected FacePredictor initialValue() {
+            FacePredictor predictor;
+            if (mHogSvm != null) {
+                predictor = new FacePredictor(mHogSvm, mPreprocessing);
+            } else if (mModel != null) {
+                predictor = new FacePredictor(mModel, mPreprocessing);
+            } else {
+                predictor = new FacePredictor(mRecognizer, mClasses, mPreprocessing);
+            }
+            synchronized (mCreated) {
+                mCreated.add(predictor);
+            }
+            return predictor;
+        }
+    };
+
+    /**
+     * @param model Trained model shared by all predictors.
+     * @param preprocessing Options the model's training faces were normalized with.
+     * @param threads Maximum number of faces classified at the same time.
+     */
+    public RecognizerPool(SubspaceModel model, FacePreprocessor.Options preprocessing, int threads) {
+        this(model, null, null, model.getClasses(), preprocessing, threads);
+    }
+
+    /**
+     * @param recognizer Trained recognizer without a subspace, shared by all predictors.
+     * @param classes Number of emotion classes.
+     * @param preprocessing Options the recognizer's training faces were normalized with.
+     * @param threads Maximum number of faces classified at the same time.
+     */
+    public RecognizerPool(FaceRecognizer recognizer, int classes, FacePreprocessor.Options preprocessing,
+                          int threads) {
+        this(null, recognizer, null, classes, preprocessing, threads);
+    }
+
+    /**
+     * @param classifier Trained HOG+SVM classifier shared by all predictors.
+     * @param preprocessing Options the classifier's training faces were normalized with.
+     * @param threads Maximum number of faces classified at the same time.
+     */
+    public RecognizerPool(HogSvmClassifier classifier, FacePreprocessor.Options preprocessing, int threads) {
+        this(null, null, classifier, classifier.getClasses(), preprocessing, threads);
+    }
+
+    private RecognizerPool(SubspaceModel model, FaceRecognizer recognizer, HogSvmClassifier hogSvm, int classes,
+                           FacePreprocessor.Options preprocessing, int threads) {
+        mModel = model;
+        mRecognizer = recognizer;
+        mHogSvm = hogSvm;
+        mClasses = classes;
+        mPreprocessing = preprocessing;
+        mThreads = Math.max(1, threads);
+        mExecutor = Executors.newFixedThreadPool(mThreads);
+    }
+
+    /**
+     * @return The calling thread's predictor, created on first use. It must not be handed to
+     * other threads.
+     */
+    public FacePredictor getPredictor() {
+        FacePredictor predictor = mPredictors.get();
+        predictor.setEngine(mEngine);
+        predictor.setAdapter(mAdapter);
+        return predictor;
+    }
+
+    /**
+     * Selects the engine of every predictor handed out from now on.
+     * @param engine Engine to use.
+     */
+    public void setEngine(FacePredictor.Engine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Attaches a per-user adapter to every predictor handed out from now on.
+     * @param adapter Adapter of the pool's model, or null to detach it.
+     */
+    public void setAdapter(PersonalizationAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * Classifies a list of cropped faces in parallel, blocking until all are done.
+     * @param faces 8-bit grayscale faces of any size. They are only read.
+     * @param predictions Receives one prediction per face, must be at least as long as faces.
+     * @throws InterruptedException If interrupted while waiting for the workers.
+     */
+    public void classifyAll(final List<Mat> faces, final EmotionPrediction[] predictions) throws InterruptedException {
+        int count = faces.size();
+        if (count == 0) {
+            return;
+        }
+        // One contiguous chunk per worker keeps the task overhead independent of the face count
+        int chunks = Math.min(mThreads, count);
+        List<Callable<Void>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = c * count / chunks;
+            final int to = (c + 1) * count / chunks;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    FacePredictor predictor = getPredictor();
+                    for (int i = from; i < to; i++) {
+                        predictor.detectEmotion(faces.get(i), predictions[i]);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Classification failed", e.getCause());
+        }
+    }
+
+    /**
+     * Stops the worker threads, blocking until the classifications in progress have finished,
+     * and frees the buffers of every predictor handed out. The pool and its predictors cannot be
+     * used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        // Workers may still be projecting with the model, which onShutdown may free
+        awaitWorkers();
+        synchronized (mCreated) {
+            for (FacePredictor predictor : mCreated) {
+                predictor.release();
+            }
+            mCreated.clear();
+        }
+        Runnable onShutdown;
+        synchronized (this) {
+            onShutdown = mOnShutdown;
+            mOnShutdown = null;
+        }
+        if (onShutdown != null) {
+            onShutdown.run();
+        }
+    }
+
+    private void awaitWorkers() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param onShutdown Action run once by the first {@link #shutdown()}.
+     */
+    synchronized void setOnShutdown(Runnable onShutdown) {
+        mOnShutdown = onShutdown;
+    }
+}
@@ -0,0 +1,255 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.bytedeco.javacpp.opencv_core.CV_64FC1;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * The same backend trained at several face sizes, with the camera latency of each.
+ *
+ * Smaller faces make every projection a smaller dot product, at some cost in accuracy. A variant
+ * is picked against a latency budget: the largest face size whose measured latency fits, or the
+ * smallest one if none does. Every variant is cached by {@link ModelCache} under its own name, so
+ * only sizes that were never trained before cost a training run.
+ *
+ * To settle on one size without training the others, {@link #load} picks the size first with
+ * {@link #chooseSize}, which times the camera path against an untrained model of each size, and
+ * then loads or trains that size alone. The constructor trains every size, for comparing them or
+ * building an ensemble; {@link #releaseOthers} frees the ones not kept.
+ */
+public class RecognizerVariants {
+
+    private static final String TAG = RecognizerVariants.class.getName();
+
+    /**
+     * Face sizes trained unless others are given.
+     */
+    public static final int[] DEFAULT_SIZES = {48, 64, 96, DatasetLoader.IMAGE_SIZE};
+
+    private static final int LATENCY_ROUNDS = 20;
+    // Projected training samples per class of the untrained models chooseSize() times
+    private static final int SAMPLES_PER_CLASS = 50;
+
+    private final int[] mSizes;
+    private final EmotionRecognizer[] mRecognizers;
+    private final long[] mLatencyMicros;
+
+    /**
+     * Loads or trains every variant and measures its latency on this thread.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     * @param backend Face recognition algorithm to use.
+     * @param preprocessing Options of every variant apart from the face size.
+     * @param sizes Face sizes to train.
+     */
+    public RecognizerVariants(String trainingDirectoryPath, File modelDirectory, RecognizerBackend backend,
+                              FacePreprocessor.Options preprocessing, int[] sizes) {
+        mSizes = sizes.clone();
+        Arrays.sort(mSizes);
+        mRecognizers = new EmotionRecognizer[mSizes.length];
+        mLatencyMicros = new long[mSizes.length];
+        org.opencv.core.Mat face = PredictionBenchmark.sampleFace(trainingDirectoryPath, EmotionRecognizer.EMOTIONS,
+                ResolutionBenchmark.CROP_SIZE);
+        try {
+            for (int i = 0; i < mSizes.length; i++) {
+                mRecognizers[i] = new EmotionRecognizer(trainingDirectoryPath, modelDirectory, backend,
+                        preprocessing.withFaceSize(mSizes[i]));
+                mLatencyMicros[i] = mRecognizers[i].measureLatencyMicros(face, LATENCY_ROUNDS);
+                Log.i(TAG, mSizes[i] + "x" + mSizes[i] + " faces: " + mLatencyMicros[i] + " us/face");
+            }
+        } catch (RuntimeException e) {
+            releaseOthers(null);
+            throw e;
+        } finally {
+            face.release();
+        }
+    }
+
+    /**
+     * Picks the face size for a latency budget, then loads or trains the backend at that size
+     * only.
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param modelDirectory Directory trained models are cached in.
+     * @param backend Face recognition algorithm to use.
+     * @param preprocessing Options of the recognizer apart from the face size.
+     * @param sizes Face sizes to choose from.
+     * @param budgetMicros Time one face may take, preprocessing included.
+     * @return The recognizer at the chosen size.
+     */
+    public static EmotionRecognizer load(String trainingDirectoryPath, File modelDirectory, RecognizerBackend backend,
+                                         FacePreprocessor.Options preprocessing, int[] sizes, long budgetMicros) {
+        int size;
+        org.opencv.core.Mat face = PredictionBenchmark.sampleFace(trainingDirectoryPath, EmotionRecognizer.EMOTIONS,
+                ResolutionBenchmark.CROP_SIZE);
+        try {
+            size = chooseSize(backend, preprocessing, EmotionRecognizer.EMOTIONS.size(), sizes, budgetMicros, face);
+        } finally {
+            face.release();
+        }
+        return new EmotionRecognizer(trainingDirectoryPath, modelDirectory, backend,
+                preprocessing.withFaceSize(size));
+    }
+
+    /**
+     * Picks a face size without training anything. The camera path, preprocessing included, is
+     * timed on a random Fisherfaces-shaped model of every size, with one component less than
+     * there are classes; only the shape of a model decides how long its projection takes.
+     * Eigenfaces keeps more components, so its real cost is higher than timed. Backends without a
+     * subspace get the largest size: LBPH histograms a fixed grid and HOG+SVM a fixed window, so
+     * the face size barely changes their cost.
+     * @param backend Face recognition algorithm to use.
+     * @param preprocessing Options of the recognizer apart from the face size.
+     * @param classes Number of emotion classes.
+     * @param sizes Face sizes to choose from.
+     * @param budgetMicros Time one face may take, preprocessing included.
+     * @param face 8-bit grayscale face crop to time on, see {@link PredictionBenchmark#sampleFace}.
+     * @return The largest size within budget, or the fastest one if none is.
+     */
+    public static int chooseSize(RecognizerBackend backend, FacePreprocessor.Options preprocessing, int classes,
+                                 int[] sizes, long budgetMicros, org.opencv.core.Mat face) {
+        int[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        if (!backend.isSubspace()) {
+            Log.i(TAG, backend + " has no projection to shrink, using " + sorted[sorted.length - 1] + "px faces");
+            return sorted[sorted.length - 1];
+        }
+        long[] latencyMicros = new long[sorted.length];
+        Random random = new Random(DatasetLoader.DEFAULT_SEED);
+        for (int i = 0; i < sorted.length; i++) {
+            SubspaceModel model = randomModel(sorted[i] * sorted[i], Math.max(1, classes - 1), classes, random);
+            FacePredictor predictor = new FacePredictor(model, preprocessing.withFaceSize(sorted[i]));
+            try {
+                latencyMicros[i] = PredictionBenchmark.cameraLatencyMicros(predictor, face, LATENCY_ROUNDS);
+            } finally {
+                predictor.release();
+                model.release();
+            }
+            Log.i(TAG, sorted[i] + "x" + sorted[i] + " faces: " + latencyMicros[i] + " us/face untrained");
+        }
+        int best = pick(latencyMicros, budgetMicros);
+        Log.i(TAG, "Chose " + sorted[best] + "x" + sorted[best] + " faces for a budget of " + budgetMicros
+                + " us/face");
+        return sorted[best];
+    }
+
+    private static SubspaceModel randomModel(int dimensions, int components, int classes, Random random) {
+        Mat eigenvectors = new Mat(dimensions, components, CV_64FC1);
+        fill((DoubleBuffer) eigenvectors.createBuffer(), random);
+        Mat mean = new Mat(1, dimensions, CV_64FC1);
+        fill((DoubleBuffer) mean.createBuffer(), random);
+        int samples = classes * SAMPLES_PER_CLASS;
+        double[] projections = new double[samples * components];
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = random.nextGaussian();
+        }
+        int[] labels = new int[samples];
+        for (int i = 0; i < samples; i++) {
+            labels[i] = i % classes;
+        }
+        return SubspaceModel.of(eigenvectors, mean, projections, labels, classes);
+    }
+
+    private static void fill(DoubleBuffer buffer, Random random) {
+        while (buffer.hasRemaining()) {
+            buffer.put(random.nextGaussian());
+        }
+    }
+
+    /**
+     * @param latencyMicros Latency of every size, in increasing size.
+     * @param budgetMicros Time one face may take.
+     * @return Index of the largest size within budget, or of the fastest one if none is.
+     */
+    private static int pick(long[] latencyMicros, long budgetMicros) {
+        int best = -1;
+        int fastest = 0;
+        for (int i = 0; i < latencyMicros.length; i++) {
+            // Sizes are ascending, so the last fit is the largest
+            if (latencyMicros[i] <= budgetMicros) {
+                best = i;
+            }
+            if (latencyMicros[i] < latencyMicros[fastest]) {
+                fastest = i;
+            }
+        }
+        return best < 0 ? fastest : best;
+    }
+
+    /**
+     * @param budgetMicros Time one face may take, preprocessing included.
+     * @return The largest variant within budget, or the fastest one if none is. The others stay
+     * loaded until {@link #releaseOthers} is called.
+     */
+    public EmotionRecognizer select(long budgetMicros) {
+        int best = pick(mLatencyMicros, budgetMicros);
+        Log.i(TAG, "Selected " + mSizes[best] + "x" + mSizes[best] + " faces for a budget of " + budgetMicros
+                + " us/face");
+        return mRecognizers[best];
+    }
+
+    /**
+     * Frees every variant but one. Ensembles keep the models they classify with alive, so the
+     * recognizer returned by {@link #ensemble} can be kept alone.
+     * @param kept Variant to keep, or null to free all of them.
+     */
+    public void releaseOthers(EmotionRecognizer kept) {
+        for (EmotionRecognizer recognizer : mRecognizers) {
+            if (recognizer != null && recognizer != kept) {
+                recognizer.release();
+            }
+        }
+    }
+
+    /**
+     * Pairs the smallest variant with the largest one in ensemble mode, see
+     * {@link EmotionRecognizer#setEnsemble}. The ensemble classifies with the smallest variant on
+     * the Java engine, subspace backends permitting; the variant itself keeps its engine.
+     * @param trainingDirectoryPath Directory containing the dataset folder, to calibrate on.
+     * @param maxAccuracyLoss Percentage points of held-out accuracy the ensemble may lose against
+     *                        the largest variant alone.
+     * @return The largest variant, classifying in ensemble mode.
+     */
+    public EmotionRecognizer ensemble(String trainingDirectoryPath, double maxAccuracyLoss) {
+        EmotionRecognizer cheap = mRecognizers[0];
+        EmotionRecognizer full = mRecognizers[mSizes.length - 1];
+        FacePredictor.Engine cheapEngine = cheap.getBackend().isSubspace() ? FacePredictor.Engine.JAVA : null;
+        full.setEnsemble(cheap, cheapEngine,
+                full.calibrateEnsemble(trainingDirectoryPath, cheap, cheapEngine, maxAccuracyLoss));
+        return full;
+    }
+
+    public int size() {
+        return mSizes.length;
+    }
+
+    /**
+     * @param index Variant, in increasing face size.
+     * @return Width and height of the variant's faces.
+     */
+    public int getFaceSize(int index) {
+        return mSizes[index];
+    }
+
+    /**
+     * @param index Variant, in increasing face size.
+     * @return The variant's recognizer.
+     */
+    public EmotionRecognizer get(int index) {
+        return mRecognizers[index];
+    }
+
+    /**
+     * @param index Variant, in increasing face size.
+     * @return Camera latency measured when the variant was loaded.
+     */
+    public long getLatencyMicros(int index) {
+        return mLatencyMicros[index];
+    }
+}
@@ -0,0 +1,129 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Shows the accuracy/latency tradeoff of training one backend at several face sizes.
+ *
+ * Every size loads the data set normalized to that size, trains on the usual split and measures
+ * the accuracy on the held-out faces and the latency of the whole camera path, preprocessing
+ * included, for each engine. Streaming backends read the data set from disk instead of loading it
+ * and skip sizes above {@link StreamingFisherTrainer#MAX_FACE_SIZE}.
+ */
+public class ResolutionBenchmark {
+
+    /**
+     * Side of the synthetic camera crop latency is measured on, a typical face at 640x480.
+     */
+    static final int CROP_SIZE = 160;
+    private static final int ROUNDS = 50;
+
+    private ResolutionBenchmark() {
+    }
+
+    /**
+     * @param trainingDirectoryPath Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param backend Backend to train.
+     * @param preprocessing Options of every size apart from the face size.
+     * @param sizes Face sizes to compare.
+     * @return One line per size and engine.
+     */
+    public static String run(String trainingDirectoryPath, List<String> emotions, RecognizerBackend backend,
+                             FacePreprocessor.Options preprocessing, int[] sizes) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-8s%-8s%10s%10s%14s\n",
+                "size", "engine", "train ms", "accuracy", "camera us"));
+        org.opencv.core.Mat crop = PredictionBenchmark.syntheticFace(CROP_SIZE);
+        try {
+            for (int size : sizes) {
+                FacePreprocessor.Options options = preprocessing.withFaceSize(size);
+                if (backend.isStreaming()) {
+                    if (size > StreamingFisherTrainer.MAX_FACE_SIZE) {
+                        report.append(String.format(Locale.US, "%-8dskipped, streaming faces are at most %d\n",
+                                size, StreamingFisherTrainer.MAX_FACE_SIZE));
+                        continue;
+                    }
+                    measureStreaming(trainingDirectoryPath, emotions, options, crop, report);
+                    continue;
+                }
+                TrainingSet trainingSet = new DatasetLoader(trainingDirectoryPath, emotions,
+                        Runtime.getRuntime().availableProcessors(), DatasetLoader.DEFAULT_SEED, options).load();
+                BackendModel model = backend.newModel(trainingDirectoryPath, emotions, options);
+                FacePredictor predictor = null;
+                try {
+                    long start = System.currentTimeMillis();
+                    model.train(trainingSet);
+                    long trainMs = System.currentTimeMillis() - start;
+                    trainingSet.releaseTrainingData();
+
+                    predictor = model.newPredictor(options);
+                    // Engines only differ for subspace backends
+                    FacePredictor.Engine[] engines = backend.isSubspace() ? FacePredictor.Engine.values()
+                            : new FacePredictor.Engine[] {FacePredictor.Engine.NATIVE};
+                    for (FacePredictor.Engine engine : engines) {
+                        predictor.setEngine(engine);
+                        report.append(String.format(Locale.US, "%-8d%-8s%10d%9.1f%%%14d\n",
+                                size, engine, trainMs, accuracy(predictor, trainingSet),
+                                PredictionBenchmark.cameraLatencyMicros(predictor, crop, ROUNDS)));
+                    }
+                } finally {
+                    if (predictor != null) {
+                        predictor.release();
+                    }
+                    model.release();
+                    trainingSet.release();
+                }
+            }
+        } finally {
+            crop.release();
+        }
+        return report.toString();
+    }
+
+    private static void measureStreaming(String trainingDirectoryPath, List<String> emotions,
+                                         FacePreprocessor.Options options, org.opencv.core.Mat crop,
+                                         StringBuilder report) {
+        StreamingFisherTrainer trainer = new StreamingFisherTrainer(trainingDirectoryPath, emotions, options,
+                DatasetLoader.DEFAULT_SEED, Runtime.getRuntime().availableProcessors(),
+                StreamingFisherTrainer.DEFAULT_CHUNK_SIZE);
+        try {
+            long start = System.currentTimeMillis();
+            trainer.train();
+            long trainMs = System.currentTimeMillis() - start;
+            FacePredictor predictor = trainer.newPredictor(options);
+            try {
+                for (FacePredictor.Engine engine : FacePredictor.Engine.values()) {
+                    predictor.setEngine(engine);
+                    report.append(String.format(Locale.US, "%-8d%-8s%10d%9.1f%%%14d\n",
+                            options.faceSize, engine, trainMs, trainer.evaluate(predictor),
+                            PredictionBenchmark.cameraLatencyMicros(predictor, crop, ROUNDS)));
+                }
+            } finally {
+                predictor.release();
+            }
+        } finally {
+            trainer.release();
+        }
+    }
+
+    private static double accuracy(FacePredictor predictor, TrainingSet trainingSet) {
+        List<Mat> faces = trainingSet.getPredictionImages();
+        int[] labels = trainingSet.getPredictionLabels();
+        if (faces.isEmpty()) {
+            return 0;
+        }
+        EmotionPrediction prediction = new EmotionPrediction();
+        int correct = 0;
+        for (int i = 0; i < faces.size(); i++) {
+            predictor.detectEmotion(faces.get(i), prediction);
+            if (prediction.getLabel() == labels[i]) {
+                correct++;
+            }
+        }
+        return 100.0 * correct / faces.size();
+    }
+}
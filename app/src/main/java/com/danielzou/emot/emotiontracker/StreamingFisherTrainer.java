@@ -0,0 +1,634 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.bytedeco.javacpp.opencv_core.CV_64FC1;
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Trains a Fisherfaces {@link SubspaceModel} without holding the data set in memory.
+ *
+ * The training images are read in chunks of a fixed number of faces. Each chunk's mean and scatter
+ * come from Core.calcCovarMatrix and are merged into the running totals with the pairwise update
+ * S = S_a + S_b + n_a n_b / (n_a + n_b) * d^T d, d being the difference of the two means; the sum of
+ * every class's faces is kept alongside. Once all chunks are in:
+ * <ol>
+ * <li>PCA: the eigenvectors of the total scatter S_T with the N - c largest eigenvalues.</li>
+ * <li>In that space S_T is diagonal, so the within-class scatter is S_W = diag(eigenvalues) - S_B,
+ * with the between-class scatter S_B built from the c class means.</li>
+ * <li>LDA: S_W is whitened and the c - 1 leading directions of the whitened S_B are found from the
+ * small c x c Gram matrix of the class means.</li>
+ * </ol>
+ * A second pass over the chunks projects every training face for nearest neighbour classification
+ * like FaceRecognizer's. The directions span the same subspace as FaceRecognizer's Fisherfaces but
+ * are scaled by the whitening, so distances and therefore some predictions differ from a model
+ * trained by FaceRecognizer on the same faces.
+ *
+ * Memory does not grow with the number of images but with the square of the face size: the
+ * accumulation holds the total and a chunk's scatter, and the eigen decomposition holds the total
+ * scatter, its eigenvectors and the working copy Core.eigen makes, three dimensions x dimensions
+ * matrices or some 384 MB for 64 pixel faces. Faces are therefore limited to {@link #MAX_FACE_SIZE}.
+ *
+ * The split comes from the {@link DatasetIndex} with the same seed {@link DatasetLoader} uses, and
+ * the trained model is saved through {@link ModelCache}.
+ */
+public class StreamingFisherTrainer implements BackendModel {
+
+    private static final String TAG = StreamingFisherTrainer.class.getName();
+
+    /**
+     * Largest face size, a 64x64 face's scatter matrix takes 128 MB.
+     */
+    public static final int MAX_FACE_SIZE = 64;
+
+    /**
+     * Faces decoded and accumulated at a time unless another chunk size is given.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    // Eigenvalues below this fraction of the largest are treated as zero
+    private static final double EPSILON = 1e-10;
+
+    private static final int MAGIC = 0x53464953; // "SFIS"
+    private static final int VERSION = 1;
+
+    private final String mTrainingDir;
+    private final List<String> mEmotions;
+    private final FacePreprocessor.Options mPreprocessing;
+    private final long mSeed;
+    private final int mThreads;
+    private final int mChunkSize;
+    private final int mDimensions;
+
+    private final ThreadLocal<FacePreprocessor> mPreprocessors = new ThreadLocal<FacePreprocessor>() {
+        @Override
+        protected FacePreprocessor initialValue() {
+            return new FacePreprocessor(mPreprocessing);
+        }
+    };
+    // Pixels of a decoded face and the same face as doubles, one per decoding thread
+    private final ThreadLocal<byte[]> mPixels = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[mDimensions];
+        }
+    };
+    private final ThreadLocal<double[]> mRows = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[mDimensions];
+        }
+    };
+
+    private SubspaceModel mModel;
+    private List<DatasetIndex.Entry> mPredictionEntries;
+
+    /**
+     * @param trainingDir Directory containing the dataset folder.
+     * @param emotions Emotion folder names, the index of each is its label.
+     * @param preprocessing Options every face is normalized with, at most {@link #MAX_FACE_SIZE}.
+     * @param seed Seed of the training/prediction split.
+     * @param threads Number of decoding threads.
+     * @param chunkSize Faces held in memory at a time.
+     */
+    public StreamingFisherTrainer(String trainingDir, List<String> emotions, FacePreprocessor.Options preprocessing,
+                                  long seed, int threads, int chunkSize) {
+        if (preprocessing.faceSize > MAX_FACE_SIZE) {
+            throw new IllegalArgumentException("Streaming training needs faces of at most " + MAX_FACE_SIZE
+                    + " pixels, got " + preprocessing.faceSize);
+        }
+        mTrainingDir = trainingDir;
+        mEmotions = emotions;
+        mPreprocessing = preprocessing;
+        mSeed = seed;
+        mThreads = Math.max(1, threads);
+        mChunkSize = Math.max(1, chunkSize);
+        mDimensions = preprocessing.faceSize * preprocessing.faceSize;
+    }
+
+    /**
+     * @return The trained or loaded model, null before either.
+     */
+    public SubspaceModel getModel() {
+        return mModel;
+    }
+
+    @Override
+    public boolean needsTrainingSet() {
+        return false;
+    }
+
+    /**
+     * Trains from disk like {@link #train()}.
+     * @param trainingSet Ignored, may be null.
+     */
+    @Override
+    public void train(TrainingSet trainingSet) {
+        train();
+    }
+
+    @Override
+    public FaceRecognizer getFaceRecognizer() {
+        return null;
+    }
+
+    @Override
+    public HogSvmClassifier getHogSvm() {
+        return null;
+    }
+
+    @Override
+    public SubspaceModel getSubspaceModel() {
+        return mModel;
+    }
+
+    @Override
+    public FacePredictor newPredictor(FacePreprocessor.Options preprocessing) {
+        return new FacePredictor(mModel, preprocessing);
+    }
+
+    @Override
+    public void release() {
+        if (mModel != null) {
+            mModel.release();
+            mModel = null;
+        }
+    }
+
+    /**
+     * Trains the model on the training part of the data set.
+     * @return The trained model.
+     */
+    public SubspaceModel train() {
+        long start = System.currentTimeMillis();
+        List<List<DatasetIndex.Entry>> sets = DatasetIndex.open(mTrainingDir, mEmotions, mThreads)
+                .split(DatasetLoader.DEFAULT_TRAINING_FRACTION, mSeed);
+        List<DatasetIndex.Entry> training = sets.get(0);
+        mPredictionEntries = sets.get(1);
+        int classes = mEmotions.size();
+        int d = mDimensions;
+
+        Mat scatter = new Mat(d, d, CvType.CV_64FC1, Scalar.all(0));
+        Mat mean = new Mat(1, d, CvType.CV_64FC1, Scalar.all(0));
+        // Row k sums the faces of class k
+        Mat classSums = new Mat(classes, d, CvType.CV_64FC1, Scalar.all(0));
+        int[] classCounts = new int[classes];
+        Mat chunk = new Mat(mChunkSize, d, CvType.CV_64FC1);
+        Mat chunkScatter = new Mat();
+        Mat chunkMean = new Mat();
+        Mat delta = new Mat();
+        Mat noMat = new Mat();
+        // One-hot labels of a chunk, so one product adds every face to its class sum
+        Mat indicator = new Mat(mChunkSize, classes, CvType.CV_64FC1);
+        double[] indicatorValues = new double[mChunkSize * classes];
+        int[] labels = new int[mChunkSize];
+        long count = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            // First pass: total scatter, mean and per-class sums
+            for (int from = 0; from < training.size(); from += mChunkSize) {
+                List<DatasetIndex.Entry> part = training.subList(from, Math.min(training.size(), from + mChunkSize));
+                int rows = decode(executor, part, chunk, labels);
+                if (rows == 0) {
+                    continue;
+                }
+                Mat faces = chunk.rowRange(0, rows);
+                Mat faceLabels = indicator.rowRange(0, rows);
+                Core.calcCovarMatrix(faces, chunkScatter, chunkMean, Core.COVAR_NORMAL | Core.COVAR_ROWS,
+                        CvType.CV_64F);
+                if (count == 0) {
+                    chunkScatter.copyTo(scatter);
+                    chunkMean.copyTo(mean);
+                } else {
+                    Core.subtract(chunkMean, mean, delta);
+                    Core.add(scatter, chunkScatter, scatter);
+                    Core.gemm(delta, delta, (double) count * rows / (count + rows), scatter, 1.0, scatter,
+                            Core.GEMM_1_T);
+                    Core.addWeighted(mean, (double) count / (count + rows), chunkMean, (double) rows / (count + rows),
+                            0, mean);
+                }
+                count += rows;
+                Arrays.fill(indicatorValues, 0);
+                for (int i = 0; i < rows; i++) {
+                    indicatorValues[i * classes + labels[i]] = 1;
+                    classCounts[labels[i]]++;
+                }
+                indicator.put(0, 0, indicatorValues);
+                Core.gemm(faceLabels, faces, 1.0, classSums, 1.0, classSums, Core.GEMM_1_T);
+                faceLabels.release();
+                faces.release();
+            }
+            // Free the chunk's scatter before the decomposition needs room for two more
+            chunkScatter.release();
+            Log.i(TAG, "Accumulated the scatter of " + count + " faces in " + (System.currentTimeMillis() - start)
+                    + " ms");
+
+            Mat eigenvectors = solve(scatter, mean, classSums, classCounts, count);
+
+            // Second pass: project every training face like FaceRecognizer.train does. The mean is
+            // subtracted after the product, (x - mean) E = x E - mean E, instead of row by row
+            int components = eigenvectors.cols();
+            List<double[]> projectionChunks = new ArrayList<>();
+            List<Integer> projectionLabels = new ArrayList<>();
+            Mat projected = new Mat();
+            Core.gemm(mean, eigenvectors, 1.0, noMat, 0.0, projected);
+            double[] meanProjection = new double[components];
+            projected.get(0, 0, meanProjection);
+            for (int from = 0; from < training.size(); from += mChunkSize) {
+                List<DatasetIndex.Entry> part = training.subList(from, Math.min(training.size(), from + mChunkSize));
+                int rows = decode(executor, part, chunk, labels);
+                if (rows == 0) {
+                    continue;
+                }
+                Mat faces = chunk.rowRange(0, rows);
+                Core.gemm(faces, eigenvectors, 1.0, noMat, 0.0, projected);
+                faces.release();
+                double[] values = new double[rows * components];
+                projected.get(0, 0, values);
+                for (int i = 0; i < rows; i++) {
+                    for (int c = 0; c < components; c++) {
+                        values[i * components + c] -= meanProjection[c];
+                    }
+                    projectionLabels.add(labels[i]);
+                }
+                projectionChunks.add(values);
+            }
+            projected.release();
+
+            double[] projections = new double[projectionLabels.size() * components];
+            int offset = 0;
+            for (double[] values : projectionChunks) {
+                System.arraycopy(values, 0, projections, offset, values.length);
+                offset += values.length;
+            }
+            int[] sampleLabels = new int[projectionLabels.size()];
+            for (int i = 0; i < sampleLabels.length; i++) {
+                sampleLabels[i] = projectionLabels.get(i);
+            }
+            mModel = SubspaceModel.of(toJavaCv(eigenvectors), toJavaCv(mean), projections, sampleLabels, classes);
+            eigenvectors.release();
+        } finally {
+            executor.shutdownNow();
+            scatter.release();
+            chunkScatter.release();
+            chunk.release();
+            chunkMean.release();
+            delta.release();
+            noMat.release();
+            indicator.release();
+            mean.release();
+            classSums.release();
+        }
+        Log.i(TAG, "Trained " + mModel.getComponents() + " Fisherfaces on " + count + " faces in chunks of "
+                + mChunkSize + " in " + (System.currentTimeMillis() - start) + " ms");
+        return mModel;
+    }
+
+    /**
+     * Finds the Fisherfaces from the accumulated statistics, releasing scatter once it is
+     * decomposed.
+     * @param classSums Sum of the faces of every class, one row per class.
+     * @return Projection matrix, dimensions x (classes - 1).
+     */
+    private Mat solve(Mat scatter, Mat mean, Mat classSums, int[] classCounts, long count) {
+        int d = mDimensions;
+        List<Integer> present = new ArrayList<>();
+        for (int k = 0; k < classCounts.length; k++) {
+            if (classCounts[k] > 0) {
+                present.add(k);
+            }
+        }
+        int c = present.size();
+        if (c < 2) {
+            throw new IllegalStateException("Need faces of at least 2 emotions, got " + c);
+        }
+
+        // PCA on the total scatter, keeping at most N - c components like Fisherfaces
+        Mat values = new Mat();
+        Mat vectors = new Mat();
+        Core.eigen(scatter, values, vectors);
+        scatter.release();
+        double[] eigenvalues = new double[d];
+        values.get(0, 0, eigenvalues);
+        values.release();
+        int p = (int) Math.min(count - c, d);
+        while (p > 0 && eigenvalues[p - 1] <= eigenvalues[0] * EPSILON) {
+            p--;
+        }
+        if (p < c - 1) {
+            vectors.release();
+            throw new IllegalStateException("Only " + p + " principal components for " + c + " emotions");
+        }
+        Mat pca = vectors.rowRange(0, p).clone();
+        vectors.release();
+
+        // Class means relative to the total mean, in PCA space and weighted by sqrt(n_k): S_B = Y^T Y
+        Mat noMat = new Mat();
+        Mat centred = new Mat(c, d, CvType.CV_64FC1);
+        for (int i = 0; i < c; i++) {
+            int k = present.get(i);
+            Mat row = centred.row(i);
+            Mat sum = classSums.row(k);
+            Core.addWeighted(sum, 1.0 / classCounts[k], mean, -1, 0, row);
+            Core.multiply(row, Scalar.all(Math.sqrt(classCounts[k])), row);
+            sum.release();
+            row.release();
+        }
+        Mat y = new Mat();
+        Core.gemm(centred, pca, 1.0, noMat, 0.0, y, Core.GEMM_2_T);
+        centred.release();
+        Mat betweenScatter = new Mat();
+        Core.gemm(y, y, 1.0, noMat, 0.0, betweenScatter, Core.GEMM_1_T);
+
+        // S_T is diagonal in its own eigenbasis, so S_W = diag(eigenvalues) - S_B
+        Mat withinScatter = new Mat();
+        Core.multiply(betweenScatter, Scalar.all(-1), withinScatter);
+        betweenScatter.release();
+        Mat diagonal = withinScatter.diag();
+        Mat principal = new Mat(p, 1, CvType.CV_64FC1);
+        // put() stops after the first p eigenvalues
+        principal.put(0, 0, eigenvalues);
+        Core.add(diagonal, principal, diagonal);
+        principal.release();
+        diagonal.release();
+
+        // Whiten S_W: W = U diag(1 / sqrt(lambda)) over the directions S_W does not vanish in
+        Mat withinValues = new Mat();
+        Mat withinVectors = new Mat();
+        Core.eigen(withinScatter, withinValues, withinVectors);
+        withinScatter.release();
+        double[] lambda = new double[p];
+        withinValues.get(0, 0, lambda);
+        withinValues.release();
+        int q = p;
+        while (q > 0 && lambda[q - 1] <= lambda[0] * EPSILON) {
+            q--;
+        }
+        // Kept transposed, q x p, so every scaled eigenvector is one contiguous row
+        Mat whiteningT = new Mat(q, p, CvType.CV_64FC1);
+        double[] vector = new double[p];
+        for (int j = 0; j < q; j++) {
+            withinVectors.get(j, 0, vector);
+            double scale = 1 / Math.sqrt(lambda[j]);
+            for (int i = 0; i < p; i++) {
+                vector[i] *= scale;
+            }
+            whiteningT.put(j, 0, vector);
+        }
+        withinVectors.release();
+
+        // Whitened S_B = Z^T Z with Z = Y W only has c rows, so take its eigenvectors from the c x c Gram matrix
+        Mat z = new Mat();
+        Core.gemm(y, whiteningT, 1.0, noMat, 0.0, z, Core.GEMM_2_T);
+        y.release();
+        Mat gram = new Mat();
+        Core.gemm(z, z, 1.0, noMat, 0.0, gram, Core.GEMM_2_T);
+        Mat gramValues = new Mat();
+        Mat gramVectors = new Mat();
+        Core.eigen(gram, gramValues, gramVectors);
+        gram.release();
+        double[] mu = new double[c];
+        gramValues.get(0, 0, mu);
+        gramValues.release();
+        int components = Math.min(c - 1, q);
+        while (components > 0 && mu[components - 1] <= mu[0] * EPSILON) {
+            components--;
+        }
+        if (components == 0) {
+            throw new IllegalStateException("The emotions cannot be told apart in the training faces");
+        }
+        // v_i = Z^T a_i / sqrt(mu_i), one LDA direction per column
+        double[] gramVectorValues = new double[c * c];
+        gramVectors.get(0, 0, gramVectorValues);
+        gramVectors.release();
+        double[] aValues = new double[c * components];
+        for (int i = 0; i < components; i++) {
+            double scale = 1 / Math.sqrt(mu[i]);
+            for (int k = 0; k < c; k++) {
+                aValues[k * components + i] = gramVectorValues[i * c + k] * scale;
+            }
+        }
+        Mat a = new Mat(c, components, CvType.CV_64FC1);
+        a.put(0, 0, aValues);
+        Mat lda = new Mat();
+        Core.gemm(z, a, 1.0, noMat, 0.0, lda, Core.GEMM_1_T);
+        z.release();
+        a.release();
+
+        // Back to pixels: eigenvectors = PCA^T * whitening * LDA
+        Mat reduced = new Mat();
+        Core.gemm(whiteningT, lda, 1.0, noMat, 0.0, reduced, Core.GEMM_1_T);
+        whiteningT.release();
+        lda.release();
+        Mat eigenvectors = new Mat();
+        Core.gemm(pca, reduced, 1.0, noMat, 0.0, eigenvectors, Core.GEMM_1_T);
+        reduced.release();
+        pca.release();
+        noMat.release();
+        return eigenvectors;
+    }
+
+    /**
+     * Decodes and normalizes a chunk of faces into the rows of chunk, skipping images that cannot
+     * be decoded.
+     * @return Number of rows filled.
+     */
+    private int decode(ExecutorService executor, final List<DatasetIndex.Entry> entries, final Mat chunk,
+                       int[] labels) {
+        final boolean[] decoded = new boolean[entries.size()];
+        List<Future<?>> futures = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            final int slot = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Mat gray = Imgcodecs.imread(entries.get(slot).file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+                    try {
+                        if (gray.empty()) {
+                            return;
+                        }
+                        Mat face = mPreprocessors.get().process(gray);
+                        byte[] pixels = mPixels.get();
+                        double[] row = mRows.get();
+                        face.get(0, 0, pixels);
+                        for (int i = 0; i < pixels.length; i++) {
+                            row[i] = pixels[i] & 0xff;
+                        }
+                        chunk.put(slot, 0, row);
+                        decoded[slot] = true;
+                    } finally {
+                        gray.release();
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading training faces", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not read training faces", e.getCause());
+        }
+        // Close the gaps left by undecodable images
+        double[] row = null;
+        int rows = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (!decoded[i]) {
+                continue;
+            }
+            if (i != rows) {
+                if (row == null) {
+                    row = new double[mDimensions];
+                }
+                chunk.get(i, 0, row);
+                chunk.put(rows, 0, row);
+            }
+            labels[rows++] = entries.get(i).label;
+        }
+        return rows;
+    }
+
+    /**
+     * Measures the accuracy of a predictor on the held-out faces of the last {@link #train()},
+     * reading them one at a time through the camera path, preprocessing included.
+     * @param predictor Predictor of the trained model.
+     * @return Accuracy in percent, 0 without held-out faces.
+     */
+    public double evaluate(FacePredictor predictor) {
+        if (mPredictionEntries == null) {
+            mPredictionEntries = DatasetIndex.open(mTrainingDir, mEmotions, mThreads)
+                    .split(DatasetLoader.DEFAULT_TRAINING_FRACTION, mSeed).get(1);
+        }
+        EmotionPrediction prediction = new EmotionPrediction();
+        int total = 0;
+        int correct = 0;
+        for (DatasetIndex.Entry entry : mPredictionEntries) {
+            Mat gray = Imgcodecs.imread(entry.file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+            try {
+                if (gray.empty()) {
+                    continue;
+                }
+                predictor.detectEmotion(gray, prediction);
+            } finally {
+                gray.release();
+            }
+            total++;
+            if (prediction.getLabel() == entry.label) {
+                correct++;
+            }
+        }
+        return total == 0 ? 0 : 100.0 * correct / total;
+    }
+
+    @Override
+    public void save(String path) throws IOException {
+        if (mModel == null) {
+            throw new IllegalStateException("Model is not trained");
+        }
+        int components = mModel.getComponents();
+        DoubleBuffer mean = mModel.getMean().createBuffer();
+        DoubleBuffer eigenvectors = mModel.getEigenvectors().createBuffer();
+        int[] labels = mModel.getLabels();
+        double[] projections = mModel.getProjections();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mDimensions);
+            out.writeInt(components);
+            out.writeInt(labels.length);
+            for (int i = 0; i < mDimensions; i++) {
+                out.writeDouble(mean.get(i));
+            }
+            for (int i = 0; i < mDimensions * components; i++) {
+                out.writeDouble(eigenvectors.get(i));
+            }
+            for (int i = 0; i < labels.length; i++) {
+                out.writeInt(labels[i]);
+                for (int c = 0; c < components; c++) {
+                    out.writeDouble(projections[i * components + c]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void load(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a streamed Fisherfaces model of version " + VERSION);
+            }
+            int dimensions = in.readInt();
+            if (dimensions != mDimensions) {
+                throw new IOException(path + " has " + dimensions + " dimensions, expected " + mDimensions);
+            }
+            int components = in.readInt();
+            int samples = in.readInt();
+            double[] mean = new double[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                mean[i] = in.readDouble();
+            }
+            double[] eigenvectors = new double[dimensions * components];
+            for (int i = 0; i < eigenvectors.length; i++) {
+                eigenvectors[i] = in.readDouble();
+            }
+            int[] labels = new int[samples];
+            double[] projections = new double[samples * components];
+            for (int i = 0; i < samples; i++) {
+                labels[i] = in.readInt();
+                if (labels[i] < 0 || labels[i] >= mEmotions.size()) {
+                    throw new IOException(path + " has label " + labels[i] + " outside of " + mEmotions.size()
+                            + " emotions");
+                }
+                for (int c = 0; c < components; c++) {
+                    projections[i * components + c] = in.readDouble();
+                }
+            }
+            mModel = SubspaceModel.of(toJavaCv(eigenvectors, dimensions, components), toJavaCv(mean, 1, dimensions),
+                    projections, labels, mEmotions.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static org.bytedeco.javacpp.opencv_core.Mat toJavaCv(Mat mat) {
+        double[] values = new double[(int) mat.total()];
+        mat.get(0, 0, values);
+        return toJavaCv(values, mat.rows(), mat.cols());
+    }
+
+    private static org.bytedeco.javacpp.opencv_core.Mat toJavaCv(double[] values, int rows, int cols) {
+        org.bytedeco.javacpp.opencv_core.Mat mat = new org.bytedeco.javacpp.opencv_core.Mat(rows, cols, CV_64FC1);
+        DoubleBuffer buffer = mat.createBuffer();
+        buffer.put(values);
+        return mat;
+    }
+}
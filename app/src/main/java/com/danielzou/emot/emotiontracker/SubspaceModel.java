@@ -0,0 +1,226 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+import static org.bytedeco.javacpp.opencv_face.BasicFaceRecognizer;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+/**
+ * The parts of a trained Fisherfaces (or Eigenfaces) recognizer needed to classify a face:
+ * the projection matrix, the mean face and the projected training samples.
+ *
+ * A face x is classified by projecting it to (x - mean) * eigenvectors and picking the label of the
+ * nearest projected training sample, which is exactly what FaceRecognizer.predict does. Having the
+ * pieces here lets a batch of faces be projected with a single matrix product.
+ *
+ * The Java and int8 exports are built on first use, so a model only classified natively never
+ * pays for them. Apart from that, instances are never modified after construction, only freed by
+ * {@link #release()}.
+ */
+public class SubspaceModel {
+
+    private final Mat mEigenvectors;
+    private final Mat mMean;
+    private final double[] mProjections;
+    private final int[] mLabels;
+    private final int mComponents;
+    private final int mDimensions;
+    private final int mClasses;
+    private volatile JavaProjection mJavaProjection;
+    private volatile QuantizedProjection mQuantizedProjection;
+    private volatile boolean mQuantizationRejected;
+
+    private SubspaceModel(Mat eigenvectors, Mat mean, double[] projections, int[] labels, int classes) {
+        mEigenvectors = eigenvectors;
+        mMean = mean;
+        mProjections = projections;
+        mLabels = labels;
+        mComponents = eigenvectors.cols();
+        mDimensions = eigenvectors.rows();
+        for (int label : labels) {
+            if (label < 0 || label >= classes) {
+                throw new IllegalArgumentException("Label " + label + " outside of " + classes + " classes");
+            }
+        }
+        mClasses = classes;
+    }
+
+    /**
+     * Copies the model out of a trained or loaded recognizer.
+     * @param recognizer Trained recognizer.
+     * @param classes Number of emotions, including any the recognizer saw no faces of.
+     * @return The recognizer's model.
+     */
+    public static SubspaceModel from(BasicFaceRecognizer recognizer, int classes) {
+        Mat eigenvectors = recognizer.getEigenVectors();
+        Mat mean = recognizer.getMean();
+        MatVector projectionMats = recognizer.getProjections();
+        Mat labelMat = recognizer.getLabels();
+
+        int components = eigenvectors.cols();
+        int samples = (int) projectionMats.size();
+        double[] projections = new double[samples * components];
+        int[] labels = new int[samples];
+        IntBuffer labelsBuf = labelMat.createBuffer();
+        for (int i = 0; i < samples; i++) {
+            DoubleBuffer projection = projectionMats.get(i).createBuffer();
+            projection.get(projections, i * components, components);
+            labels[i] = labelsBuf.get(i);
+        }
+        return new SubspaceModel(eigenvectors, mean, projections, labels, classes);
+    }
+
+    /**
+     * Builds a model from pieces trained elsewhere, such as by {@link StreamingFisherTrainer}.
+     * @param eigenvectors Projection matrix, dimensions x components CV_64F.
+     * @param mean Mean face, 1 x dimensions CV_64F.
+     * @param projections Projected training samples, row-major.
+     * @param labels Label of each projected sample.
+     * @param classes Number of emotions, including any without samples.
+     * @return The model, owning all arguments.
+     */
+    static SubspaceModel of(Mat eigenvectors, Mat mean, double[] projections, int[] labels, int classes) {
+        return new SubspaceModel(eigenvectors, mean, projections, labels, classes);
+    }
+
+    /**
+     * Frees the projection matrix and the mean face. Nothing may classify with the model
+     * afterwards; Java and int8 exports built before stay valid.
+     */
+    void release() {
+        mEigenvectors.deallocate();
+        mMean.deallocate();
+    }
+
+    /**
+     * @return Projection matrix, one CV_64F column per component.
+     */
+    public Mat getEigenvectors() {
+        return mEigenvectors;
+    }
+
+    /**
+     * @return Mean face as a 1 x dimensions CV_64F row.
+     */
+    public Mat getMean() {
+        return mMean;
+    }
+
+    /**
+     * @return This model exported for the pure Java engine, built on the first call.
+     */
+    public JavaProjection getJavaProjection() {
+        JavaProjection projection = mJavaProjection;
+        if (projection == null) {
+            synchronized (this) {
+                projection = mJavaProjection;
+                if (projection == null) {
+                    projection = new JavaProjection(this);
+                    mJavaProjection = projection;
+                }
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * @return This model quantized for the int8 engine, built on the first call.
+     */
+    public QuantizedProjection getQuantizedProjection() {
+        QuantizedProjection projection = mQuantizedProjection;
+        if (projection == null) {
+            synchronized (this) {
+                projection = mQuantizedProjection;
+                if (projection == null) {
+                    projection = new QuantizedProjection(this);
+                    mQuantizedProjection = projection;
+                }
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Marks the int8 export as too inaccurate, predictors of this model then classify with the
+     * Java engine when asked for {@link FacePredictor.Engine#INT8}.
+     */
+    void rejectQuantization() {
+        mQuantizationRejected = true;
+    }
+
+    /**
+     * @return Whether calibration rejected the int8 export.
+     */
+    boolean isQuantizationRejected() {
+        return mQuantizationRejected;
+    }
+
+    public int getComponents() {
+        return mComponents;
+    }
+
+    public int getDimensions() {
+        return mDimensions;
+    }
+
+    /**
+     * @return Number of classes, the emotion count the model was built with.
+     */
+    public int getClasses() {
+        return mClasses;
+    }
+
+    /**
+     * @return Projected training samples, row-major with {@link #getComponents()} values per sample.
+     */
+    double[] getProjections() {
+        return mProjections;
+    }
+
+    /**
+     * @return Label of each projected training sample.
+     */
+    int[] getLabels() {
+        return mLabels;
+    }
+
+    /**
+     * Finds the training sample of every class nearest to a projected face. The predicted label is
+     * the class of the nearest sample overall.
+     * @param projection Projected faces, row-major.
+     * @param offset Start of the face to classify in projection.
+     * @param prediction Receives the label and the distance to each class.
+     */
+    void nearest(DoubleBuffer projection, int offset, EmotionPrediction prediction) {
+        nearest(projection, offset, null, prediction);
+    }
+
+    /**
+     * Like {@link #nearest(DoubleBuffer, int, EmotionPrediction)}, but with every training sample
+     * of class k shifted by classOffsets[k].
+     * @param projection Projected faces, row-major.
+     * @param offset Start of the face to classify in projection.
+     * @param classOffsets Shift of each class, row-major with {@link #getComponents()} values per
+     * class, or null for none.
+     * @param prediction Receives the label and the distance to each class.
+     */
+    void nearest(DoubleBuffer projection, int offset, float[] classOffsets, EmotionPrediction prediction) {
+        prediction.reset(mClasses);
+        for (int sample = 0, base = 0; sample < mLabels.length; sample++, base += mComponents) {
+            int shift = mLabels[sample] * mComponents;
+            double distance = 0;
+            for (int c = 0; c < mComponents; c++) {
+                double diff = projection.get(offset + c) - mProjections[base + c];
+                if (classOffsets != null) {
+                    diff -= classOffsets[shift + c];
+                }
+                distance += diff * diff;
+            }
+            prediction.offerSquared(mLabels[sample], distance);
+        }
+        prediction.rank();
+    }
+}
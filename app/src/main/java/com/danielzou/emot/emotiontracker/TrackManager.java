@@ -0,0 +1,604 @@
+package com.danielzou.emot.emotiontracker;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.KalmanFilter;
+
+/**
+ * Turns the face boxes of consecutive frames into face tracks with stable IDs.
+ *
+ * Every track has its own KalmanFilter over the box centre, size and their velocities, so boxes
+ * move smoothly and coast through a few frames without a detection. Each frame the tracks are
+ * predicted forward and matched to the new boxes greedily by intersection over union, best pairs
+ * first. A box matching no track starts a tentative track that is only reported once it has been
+ * matched {@link #MIN_HITS} times in a row; a track missing for more than {@link #MAX_MISSES}
+ * frames ends. IDs are never reused.
+ *
+ * Tracks also cache their emotion, so {@link #classify} only runs the recognizer on a face that
+ * is new, whose appearance changed, or whose last classification is older than the maximum age.
+ * The appearance is a {@link #THUMBNAIL_SIZE} pixel thumbnail of the face; it changed once its
+ * mean absolute difference to the thumbnail of the last classification exceeds the change
+ * threshold. Every classification is a vote into the track's {@link EmotionSmoother}, whose
+ * label is the one to show. Not thread safe, the counters may be read from any thread.
+ */
+public class TrackManager {
+
+    /**
+     * Smallest intersection over union of a box and a predicted track to match them.
+     */
+    public static final double MIN_IOU = 0.3;
+
+    /**
+     * Consecutive matches before a new track is reported.
+     */
+    public static final int MIN_HITS = 2;
+
+    /**
+     * Frames a track may go without a match before it ends.
+     */
+    public static final int MAX_MISSES = 5;
+
+    /**
+     * Age after which a face is classified again even if it looks the same, unless another
+     * maximum age is given.
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 1000;
+
+    /**
+     * Mean absolute difference in gray levels from which a face counts as changed, unless another
+     * threshold is given.
+     */
+    public static final double DEFAULT_CHANGE_THRESHOLD = 6;
+
+    /**
+     * Side of the thumbnails faces are compared on.
+     */
+    public static final int THUMBNAIL_SIZE = 16;
+
+    // A face is not classified again sooner than this, however much it changed
+    private static final long MIN_INTERVAL_MILLIS = 100;
+
+    // State: centre x, centre y, width, height and their velocities per frame
+    private static final int STATE = 8;
+    private static final int MEASUREMENT = 4;
+    private static final double PROCESS_NOISE = 1e-2;
+    private static final double MEASUREMENT_NOISE = 1e-1;
+
+    /**
+     * One face followed across frames.
+     */
+    public static class Track {
+        private final int mId;
+        private final KalmanFilter mFilter;
+        private final Mat mMeasurement = new Mat(MEASUREMENT, 1, CvType.CV_32FC1);
+        private final float[] mMeasured = new float[MEASUREMENT];
+        private final float[] mState = new float[STATE];
+        private final EmotionPrediction mPrediction = new EmotionPrediction();
+        private final EmotionSmoother mSmoother = new EmotionSmoother();
+        // Appearance at the last classification
+        private final Mat mThumbnail = new Mat(THUMBNAIL_SIZE, THUMBNAIL_SIZE, CvType.CV_8UC1);
+        private final Rect mBox;
+        private int mHits = 1;
+        private int mMisses;
+        private boolean mConfirmed;
+        private long mClassifiedMillis = -1;
+
+        /**
+         * @param filter Filter of {@link #newFilter()}, fresh or recycled from an ended track.
+         */
+        Track(int id, Rect box, KalmanFilter filter) {
+            mId = id;
+            mBox = box.clone();
+            mFilter = filter;
+            // Scale the noise to the box, a large face moves more pixels per frame than a small one
+            double size = Math.max(box.width, box.height);
+            Mat processNoise = filter.get_processNoiseCov();
+            Mat measurementNoise = filter.get_measurementNoiseCov();
+            Mat errorCov = filter.get_errorCovPost();
+            processNoise.setTo(Scalar.all(0));
+            measurementNoise.setTo(Scalar.all(0));
+            errorCov.setTo(Scalar.all(0));
+            for (int i = 0; i < STATE; i++) {
+                processNoise.put(i, i, PROCESS_NOISE * size);
+                errorCov.put(i, i, i < MEASUREMENT ? size : 10 * size);
+            }
+            for (int i = 0; i < MEASUREMENT; i++) {
+                measurementNoise.put(i, i, MEASUREMENT_NOISE * size);
+            }
+            processNoise.release();
+            measurementNoise.release();
+            errorCov.release();
+            Mat state = filter.get_statePost();
+            state.setTo(Scalar.all(0));
+            state.put(0, 0, measure(box));
+            state.release();
+        }
+
+        /**
+         * @return A constant velocity filter, its noise and state still to be set by a track.
+         */
+        static KalmanFilter newFilter() {
+            KalmanFilter filter = new KalmanFilter(STATE, MEASUREMENT, 0, CvType.CV_32F);
+            // The filter keeps its own references to the matrices, so the Java headers are released right away
+            Mat transition = filter.get_transitionMatrix();
+            for (int i = 0; i < MEASUREMENT; i++) {
+                transition.put(i, MEASUREMENT + i, 1);
+            }
+            transition.release();
+            Mat measurement = Mat.eye(MEASUREMENT, STATE, CvType.CV_32FC1);
+            filter.set_measurementMatrix(measurement);
+            measurement.release();
+            return filter;
+        }
+
+        /**
+         * Moves the box one frame forward.
+         */
+        void predict() {
+            read(mFilter.predict());
+        }
+
+        /**
+         * Corrects the predicted box with a detection.
+         */
+        void correct(Rect box) {
+            mMeasurement.put(0, 0, measure(box));
+            read(mFilter.correct(mMeasurement));
+        }
+
+        private void read(Mat state) {
+            state.get(0, 0, mState);
+            state.release();
+            float width = Math.max(1, mState[2]);
+            float height = Math.max(1, mState[3]);
+            mBox.x = Math.round(mState[0] - width / 2);
+            mBox.y = Math.round(mState[1] - height / 2);
+            mBox.width = Math.round(width);
+            mBox.height = Math.round(height);
+        }
+
+        private float[] measure(Rect box) {
+            mMeasured[0] = box.x + box.width / 2f;
+            mMeasured[1] = box.y + box.height / 2f;
+            mMeasured[2] = box.width;
+            mMeasured[3] = box.height;
+            return mMeasured;
+        }
+
+        /**
+         * @return ID of the track, unique for the lifetime of its manager.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return Filtered box in frame coordinates, possibly partly outside the frame. Updated in
+         * place every frame.
+         */
+        public Rect getBox() {
+            return mBox;
+        }
+
+        /**
+         * @return Frames since the last matched box, 0 if matched this frame.
+         */
+        public int getMisses() {
+            return mMisses;
+        }
+
+        /**
+         * @return The latest raw prediction, label -1 until the track is first classified.
+         */
+        public EmotionPrediction getPrediction() {
+            return mPrediction;
+        }
+
+        /**
+         * @return The smoothed emotion to show, -1 until the track is first classified.
+         */
+        public int getLabel() {
+            return mSmoother.getLabel();
+        }
+
+        public EmotionSmoother getSmoother() {
+            return mSmoother;
+        }
+
+        /**
+         * @return SystemClock.elapsedRealtime() of the latest classification, -1 if never.
+         */
+        public long getClassifiedMillis() {
+            return mClassifiedMillis;
+        }
+
+        /**
+         * Frees the track's Mats.
+         * @return The track's filter, for the next new track to reuse.
+         */
+        private KalmanFilter release() {
+            mMeasurement.release();
+            mThumbnail.release();
+            return mFilter;
+        }
+    }
+
+    /**
+     * Greedy matching of track boxes to face boxes by intersection over union, best pairs first.
+     * Keeps its arrays between frames, so matching allocates nothing once they are large enough.
+     */
+    static class Association {
+        private double[] mPairIous = new double[0];
+        private int[] mPairTracks = new int[0];
+        private int[] mPairFaces = new int[0];
+        private int[] mTrackFaces = new int[0];
+        private boolean[] mFaceMatched = new boolean[0];
+
+        /**
+         * Matches every track to at most one face and every face to at most one track.
+         * @param boxes Predicted box of every track.
+         * @param faces Face boxes of the frame.
+         * @return Number of matched pairs.
+         */
+        int match(List<Rect> boxes, List<Rect> faces) {
+            int tracks = boxes.size();
+            int pairs = 0;
+            if (mPairIous.length < tracks * faces.size()) {
+                mPairIous = new double[tracks * faces.size()];
+                mPairTracks = new int[tracks * faces.size()];
+                mPairFaces = new int[tracks * faces.size()];
+            }
+            // Every pair above the threshold, best overlap first. Insertion sort, there are only a handful
+            for (int t = 0; t < tracks; t++) {
+                for (int f = 0; f < faces.size(); f++) {
+                    double iou = iou(boxes.get(t), faces.get(f));
+                    if (iou < MIN_IOU) {
+                        continue;
+                    }
+                    int j = pairs++;
+                    while (j > 0 && mPairIous[j - 1] < iou) {
+                        mPairIous[j] = mPairIous[j - 1];
+                        mPairTracks[j] = mPairTracks[j - 1];
+                        mPairFaces[j] = mPairFaces[j - 1];
+                        j--;
+                    }
+                    mPairIous[j] = iou;
+                    mPairTracks[j] = t;
+                    mPairFaces[j] = f;
+                }
+            }
+            if (mTrackFaces.length < tracks) {
+                mTrackFaces = new int[tracks];
+            }
+            if (mFaceMatched.length < faces.size()) {
+                mFaceMatched = new boolean[faces.size()];
+            }
+            Arrays.fill(mTrackFaces, 0, tracks, -1);
+            Arrays.fill(mFaceMatched, 0, faces.size(), false);
+            int matched = 0;
+            for (int i = 0; i < pairs; i++) {
+                int t = mPairTracks[i];
+                int f = mPairFaces[i];
+                if (mTrackFaces[t] >= 0 || mFaceMatched[f]) {
+                    continue;
+                }
+                mTrackFaces[t] = f;
+                mFaceMatched[f] = true;
+                matched++;
+            }
+            return matched;
+        }
+
+        /**
+         * @param track Index into the boxes of the last {@link #match}.
+         * @return Index of the face matched to the track, -1 if none.
+         */
+        int getFace(int track) {
+            return mTrackFaces[track];
+        }
+
+        /**
+         * @param face Index into the faces of the last {@link #match}.
+         * @return Whether the face was matched to a track.
+         */
+        boolean isFaceMatched(int face) {
+            return mFaceMatched[face];
+        }
+    }
+
+    private final long mMaxAgeMillis;
+    private final double mChangeThreshold;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final List<Track> mReported = new ArrayList<>();
+    // Filters of ended tracks; the OpenCV 3.2 binding only frees a filter when it is collected
+    private final List<KalmanFilter> mFreeFilters = new ArrayList<>();
+    // Reused between frames: the boxes of the last MatOfRect and the candidate pairs of update()
+    private final List<Rect> mFaces = new ArrayList<>();
+    private final List<Rect> mFreeRects = new ArrayList<>();
+    private int[] mFaceValues = new int[0];
+    private final List<Rect> mBoxes = new ArrayList<>();
+    private final Association mAssociation = new Association();
+    private final List<Rect> mStale = new ArrayList<>();
+    private final List<Track> mStaleTracks = new ArrayList<>();
+    private final EmotionResults mResults = new EmotionResults();
+    private final Size mThumbnailSize = new Size(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+    private final Mat mThumbnail = new Mat(THUMBNAIL_SIZE, THUMBNAIL_SIZE, CvType.CV_8UC1);
+    private final Mat mDifference = new Mat();
+    private int mNextId;
+    private long mStartMillis = -1;
+
+    // Written by the tracking thread only
+    private volatile long mFaceFrames;
+    private volatile long mClassifications;
+    private volatile long mChanges;
+
+    public TrackManager() {
+        this(DEFAULT_MAX_AGE_MILLIS, DEFAULT_CHANGE_THRESHOLD);
+    }
+
+    /**
+     * @param maxAgeMillis Age after which a face is classified again even if it looks the same.
+     * @param changeThreshold Mean absolute difference in gray levels from which a face counts as
+     *                        changed and is classified again, 0 to classify every frame.
+     */
+    public TrackManager(long maxAgeMillis, double changeThreshold) {
+        mMaxAgeMillis = maxAgeMillis;
+        mChangeThreshold = changeThreshold;
+    }
+
+    /**
+     * Advances every track by one frame and matches them to the frame's face boxes.
+     * @param faces Faces detected or tracked in the frame.
+     * @return The confirmed tracks, valid until the next call.
+     */
+    public List<Track> update(MatOfRect faces) {
+        int count = (int) faces.total();
+        if (mFaceValues.length < 4 * count) {
+            mFaceValues = new int[4 * count];
+        }
+        if (count > 0) {
+            faces.get(0, 0, mFaceValues);
+        }
+        mFreeRects.addAll(mFaces);
+        mFaces.clear();
+        for (int i = 0; i < count; i++) {
+            Rect face = mFreeRects.isEmpty() ? new Rect() : mFreeRects.remove(mFreeRects.size() - 1);
+            face.x = mFaceValues[4 * i];
+            face.y = mFaceValues[4 * i + 1];
+            face.width = mFaceValues[4 * i + 2];
+            face.height = mFaceValues[4 * i + 3];
+            mFaces.add(face);
+        }
+        return update(mFaces);
+    }
+
+    /**
+     * Advances every track by one frame and matches them to the frame's face boxes.
+     * @param faces Faces detected or tracked in the frame.
+     * @return The confirmed tracks, valid until the next call.
+     */
+    public List<Track> update(List<Rect> faces) {
+        for (Track track : mTracks) {
+            track.predict();
+        }
+
+        mBoxes.clear();
+        for (Track track : mTracks) {
+            mBoxes.add(track.mBox);
+        }
+        mAssociation.match(mBoxes, faces);
+        int tracks = mTracks.size();
+        for (int t = 0; t < tracks; t++) {
+            int f = mAssociation.getFace(t);
+            if (f < 0) {
+                continue;
+            }
+            Track track = mTracks.get(t);
+            track.correct(faces.get(f));
+            track.mHits++;
+            track.mMisses = 0;
+            if (track.mHits >= MIN_HITS) {
+                track.mConfirmed = true;
+            }
+        }
+
+        // Deaths: unmatched tracks age, tentative ones die at their first miss. Survivors move down in place
+        int survivors = 0;
+        for (int t = 0; t < tracks; t++) {
+            Track track = mTracks.get(t);
+            if (mAssociation.getFace(t) < 0) {
+                track.mMisses++;
+                track.mHits = 0;
+                if (!track.mConfirmed || track.mMisses > MAX_MISSES) {
+                    mFreeFilters.add(track.release());
+                    continue;
+                }
+            }
+            mTracks.set(survivors++, track);
+        }
+        mTracks.subList(survivors, tracks).clear();
+        // Births
+        for (int f = 0; f < faces.size(); f++) {
+            if (!mAssociation.isFaceMatched(f)) {
+                KalmanFilter filter = mFreeFilters.isEmpty() ? Track.newFilter()
+                        : mFreeFilters.remove(mFreeFilters.size() - 1);
+                Track track = new Track(mNextId++, faces.get(f), filter);
+                track.mConfirmed = MIN_HITS <= 1;
+                mTracks.add(track);
+            }
+        }
+
+        mReported.clear();
+        for (Track track : mTracks) {
+            if (track.mConfirmed) {
+                mReported.add(track);
+            }
+        }
+        return mReported;
+    }
+
+    /**
+     * Classifies the reported tracks that are new, changed or too old, all in one batch, and
+     * votes the results into their smoothers. Tracks without a box this frame keep their emotion.
+     * @param recognizer Recognizer to classify with.
+     * @param frame Grayscale frame of the last {@link #update}.
+     * @return Number of tracks classified.
+     */
+    public int classify(EmotionRecognizer recognizer, Mat frame) {
+        long now = SystemClock.elapsedRealtime();
+        if (mStartMillis < 0) {
+            mStartMillis = now;
+        }
+        mStale.clear();
+        mStaleTracks.clear();
+        Rect bounds = new Rect(0, 0, frame.cols(), frame.rows());
+        for (Track track : mReported) {
+            if (track.mMisses > 0) {
+                continue;
+            }
+            Rect box = intersect(track.mBox, bounds);
+            if (box == null) {
+                continue;
+            }
+            mFaceFrames++;
+            long age = now - track.mClassifiedMillis;
+            if (track.mClassifiedMillis >= 0 && (age < MIN_INTERVAL_MILLIS
+                    || age < mMaxAgeMillis && !changed(track, frame, box))) {
+                continue;
+            }
+            mStale.add(box);
+            mStaleTracks.add(track);
+        }
+        if (mStale.isEmpty()) {
+            return 0;
+        }
+        recognizer.detectEmotions(mStale, frame, mResults);
+        for (int i = 0; i < mStaleTracks.size(); i++) {
+            Track track = mStaleTracks.get(i);
+            track.mPrediction.set(mResults.get(i));
+            track.mSmoother.add(track.mPrediction, now);
+            track.mClassifiedMillis = now;
+            thumbnail(frame, mStale.get(i), track.mThumbnail);
+        }
+        mClassifications += mStaleTracks.size();
+        return mStaleTracks.size();
+    }
+
+    /**
+     * @return Whether the face in box looks different from the track's last classified face.
+     */
+    private boolean changed(Track track, Mat frame, Rect box) {
+        thumbnail(frame, box, mThumbnail);
+        Core.absdiff(mThumbnail, track.mThumbnail, mDifference);
+        boolean changed = Core.mean(mDifference).val[0] > mChangeThreshold;
+        if (changed) {
+            mChanges++;
+        }
+        return changed;
+    }
+
+    private void thumbnail(Mat frame, Rect box, Mat thumbnail) {
+        Mat face = frame.submat(box);
+        try {
+            Imgproc.resize(face, thumbnail, mThumbnailSize, 0, 0, Imgproc.INTER_AREA);
+        } finally {
+            face.release();
+        }
+    }
+
+    /**
+     * @return Every live track, tentative ones included.
+     */
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(mTracks);
+    }
+
+    /**
+     * @return Faces classified by {@link #classify} so far.
+     */
+    public long getClassifications() {
+        return mClassifications;
+    }
+
+    /**
+     * @return Visible faces {@link #classify} was called for, classified or not.
+     */
+    public long getFaceFrames() {
+        return mFaceFrames;
+    }
+
+    /**
+     * @return Classifications since the first {@link #classify} per second.
+     */
+    public double getClassificationsPerSecond() {
+        long start = mStartMillis;
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        return start < 0 || elapsed <= 0 ? 0 : 1000.0 * mClassifications / elapsed;
+    }
+
+    /**
+     * Zeroes the counters.
+     */
+    public void resetStats() {
+        mFaceFrames = 0;
+        mClassifications = 0;
+        mChanges = 0;
+        mStartMillis = -1;
+    }
+
+    @Override
+    public String toString() {
+        long faceFrames = mFaceFrames;
+        return String.format(Locale.US, "%d faces seen, %d classified (%.1f%%, %d on change, %.1f/s)", faceFrames,
+                mClassifications, faceFrames == 0 ? 0 : 100.0 * mClassifications / faceFrames, mChanges,
+                getClassificationsPerSecond());
+    }
+
+    /**
+     * Ends every track, for example when the camera restarts. IDs keep counting.
+     */
+    public void clear() {
+        for (Track track : mTracks) {
+            mFreeFilters.add(track.release());
+        }
+        mTracks.clear();
+        mReported.clear();
+    }
+
+    static double iou(Rect a, Rect b) {
+        int left = Math.max(a.x, b.x);
+        int top = Math.max(a.y, b.y);
+        int right = Math.min(a.x + a.width, b.x + b.width);
+        int bottom = Math.min(a.y + a.height, b.y + b.height);
+        if (right <= left || bottom <= top) {
+            return 0;
+        }
+        double intersection = (double) (right - left) * (bottom - top);
+        return intersection / (a.area() + b.area() - intersection);
+    }
+
+    private static Rect intersect(Rect a, Rect b) {
+        int left = Math.max(a.x, b.x);
+        int top = Math.max(a.y, b.y);
+        int right = Math.min(a.x + a.width, b.x + b.width);
+        int bottom = Math.min(a.y + a.height, b.y + b.height);
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+        return new Rect(left, top, right - left, bottom - top);
+    }
+}
@@ -0,0 +1,102 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.List;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+/**
+ * Training and prediction images packed the way FaceRecognizer.train expects them.
+ *
+ * The images are native memory that is only needed while training and testing the classifier,
+ * so owners should call {@link #releaseTrainingData()} once train() returns and {@link #release()}
+ * once the prediction set has been evaluated.
+ */
+public class TrainingSet {
+
+    private MatVector mImages;
+    private Mat mLabels;
+    private final int[] mGroups;
+    private List<Mat> mPredictionImages;
+    private final int[] mPredictionLabels;
+    private final DatasetLoader.Timings mTimings;
+    // Keeps a mapped data set pack alive while Mats still point into it
+    private Object mBacking;
+
+    TrainingSet(MatVector images, Mat labels, int[] groups, List<Mat> predictionImages, int[] predictionLabels,
+                DatasetLoader.Timings timings, Object backing) {
+        mBacking = backing;
+        mImages = images;
+        mLabels = labels;
+        mGroups = groups;
+        mPredictionImages = predictionImages;
+        mPredictionLabels = predictionLabels;
+        mTimings = timings;
+    }
+
+    /**
+     * @return Training images, one 8-bit grayscale Mat per sample.
+     */
+    public MatVector getImages() {
+        return mImages;
+    }
+
+    /**
+     * @return Training labels as a CV_32SC1 column, aligned with {@link #getImages()}.
+     */
+    public Mat getLabels() {
+        return mLabels;
+    }
+
+    /**
+     * @return {@link DatasetIndex} group of every training image, aligned with
+     * {@link #getImages()}. Images of one group must stay on the same side of any further split.
+     */
+    public int[] getGroups() {
+        return mGroups;
+    }
+
+    public int size() {
+        return mImages == null ? 0 : (int) mImages.size();
+    }
+
+    public List<Mat> getPredictionImages() {
+        return mPredictionImages;
+    }
+
+    public int[] getPredictionLabels() {
+        return mPredictionLabels;
+    }
+
+    public DatasetLoader.Timings getTimings() {
+        return mTimings;
+    }
+
+    /**
+     * Frees the training images and labels. The prediction set stays available.
+     */
+    public void releaseTrainingData() {
+        if (mImages != null) {
+            mImages.deallocate();
+            mImages = null;
+        }
+        if (mLabels != null) {
+            mLabels.deallocate();
+            mLabels = null;
+        }
+    }
+
+    /**
+     * Frees all native memory held by this set.
+     */
+    public void release() {
+        releaseTrainingData();
+        if (mPredictionImages != null) {
+            for (Mat image : mPredictionImages) {
+                image.deallocate();
+            }
+            mPredictionImages = null;
+        }
+        mBacking = null;
+    }
+}
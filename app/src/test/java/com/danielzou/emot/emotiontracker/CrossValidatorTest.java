@@ -0,0 +1,74 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CrossValidatorTest {
+
+    @Test
+    public void assignFolds_isDeterministic() throws Exception {
+        int[] labels = {0, 1, 2, 0, 1, 2, 0, 1, 2, 0};
+        int[] groups = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        int[] a = new CrossValidator(3, 42).assignFolds(labels, groups, 3);
+        int[] b = new CrossValidator(3, 42).assignFolds(labels, groups, 3);
+        assertArrayEquals(a, b);
+    }
+
+    @Test
+    public void assignFolds_keepsGroupsTogether() throws Exception {
+        int[] labels = new int[40];
+        int[] groups = new int[40];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i % 4;
+            // Sparse ids, four samples each
+            groups[i] = 1000 + 7 * (i / 4);
+        }
+        for (long seed = 0; seed < 10; seed++) {
+            int[] folds = new CrossValidator(5, seed).assignFolds(labels, groups, 4);
+            for (int i = 0; i < labels.length; i++) {
+                assertTrue(folds[i] >= 0 && folds[i] < 5);
+                if (i % 4 != 0) {
+                    assertEquals("Group " + groups[i] + " split with seed " + seed, folds[i - 1], folds[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void assignFolds_balancesLabels() throws Exception {
+        // Singleton groups, 10 samples of each of 2 labels
+        int[] labels = new int[20];
+        int[] groups = new int[20];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i % 2;
+            groups[i] = i;
+        }
+        int[] folds = new CrossValidator(5, 3).assignFolds(labels, groups, 2);
+        int[][] counts = new int[5][2];
+        for (int i = 0; i < labels.length; i++) {
+            counts[folds[i]][labels[i]]++;
+        }
+        for (int[] foldCounts : counts) {
+            assertEquals(Arrays.toString(foldCounts), 2, foldCounts[0]);
+            assertEquals(Arrays.toString(foldCounts), 2, foldCounts[1]);
+        }
+    }
+
+    @Test
+    public void assignFolds_dealsGroupsByTheirMajorityLabel() throws Exception {
+        // Two groups mostly of label 0 and two of label 1, over two folds
+        int[] labels = {0, 0, 1, 0, 0, 1, 1, 1, 0, 1, 1, 0};
+        int[] groups = {0, 0, 0, 1, 1, 1, 2, 2, 2, 3, 3, 3};
+        int[] folds = new CrossValidator(2, 9).assignFolds(labels, groups, 2);
+        assertNotEquals(folds[0], folds[3]);
+        assertNotEquals(folds[6], folds[9]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsASingleFold() throws Exception {
+        new CrossValidator(1, 0);
+    }
+}
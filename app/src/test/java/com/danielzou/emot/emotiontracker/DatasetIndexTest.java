@@ -0,0 +1,93 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DatasetIndexTest {
+
+    // 30 samples in 10 groups of 3, labels 0 to 2 cycling over the groups
+    private static final int[] LABELS = new int[30];
+    private static final int[] GROUPS = new int[30];
+
+    static {
+        for (int i = 0; i < LABELS.length; i++) {
+            GROUPS[i] = i / 3;
+            LABELS[i] = GROUPS[i] % 3;
+        }
+    }
+
+    @Test
+    public void split_isDeterministic() throws Exception {
+        List<List<Integer>> a = DatasetIndex.split(LABELS, GROUPS, 10, 3, 0.8, 42);
+        List<List<Integer>> b = DatasetIndex.split(LABELS, GROUPS, 10, 3, 0.8, 42);
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void split_coversEverySampleOnce() throws Exception {
+        List<List<Integer>> sets = DatasetIndex.split(LABELS, GROUPS, 10, 3, 0.8, 7);
+        Set<Integer> seen = new HashSet<>();
+        for (List<Integer> set : sets) {
+            for (int sample : set) {
+                assertTrue("Sample " + sample + " in both sets", seen.add(sample));
+            }
+        }
+        assertEquals(LABELS.length, seen.size());
+    }
+
+    @Test
+    public void split_keepsGroupsTogether() throws Exception {
+        for (long seed = 0; seed < 20; seed++) {
+            List<List<Integer>> sets = DatasetIndex.split(LABELS, GROUPS, 10, 3, 0.5, seed);
+            Set<Integer> trainingGroups = new HashSet<>();
+            for (int sample : sets.get(0)) {
+                trainingGroups.add(GROUPS[sample]);
+            }
+            for (int sample : sets.get(1)) {
+                assertFalse("Group " + GROUPS[sample] + " split with seed " + seed,
+                        trainingGroups.contains(GROUPS[sample]));
+            }
+        }
+    }
+
+    @Test
+    public void split_trainsEveryLabel() throws Exception {
+        List<List<Integer>> sets = DatasetIndex.split(LABELS, GROUPS, 10, 3, 0.5, 3);
+        boolean[] trained = new boolean[3];
+        for (int sample : sets.get(0)) {
+            trained[LABELS[sample]] = true;
+        }
+        for (int label = 0; label < 3; label++) {
+            assertTrue("Label " + label + " not trained", trained[label]);
+        }
+    }
+
+    @Test
+    public void split_stopsAtTheFraction() throws Exception {
+        // Singleton groups, 10 samples of each of 2 labels
+        int[] labels = new int[20];
+        int[] groups = new int[20];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i % 2;
+            groups[i] = i;
+        }
+        List<List<Integer>> sets = DatasetIndex.split(labels, groups, 20, 2, 0.8, 11);
+        int[] training = new int[2];
+        for (int sample : sets.get(0)) {
+            training[labels[sample]]++;
+        }
+        assertEquals(8, training[0]);
+        assertEquals(8, training[1]);
+    }
+
+    @Test
+    public void split_skipsEmptyGroups() throws Exception {
+        List<List<Integer>> sets = DatasetIndex.split(LABELS, GROUPS, 25, 3, 0.8, 5);
+        assertEquals(LABELS.length, sets.get(0).size() + sets.get(1).size());
+    }
+}
@@ -0,0 +1,165 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class DatasetPackTest {
+
+    private static final byte[] FIRST = {1, 2, 3, 4, 5, 6};
+    private static final byte[] SECOND = {(byte) 255, 0, (byte) 128, 7, 8, 9};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Writes a 2x3 pack of two samples.
+     */
+    private File writePack() throws IOException {
+        File file = new File(mFolder.getRoot(), DatasetPack.FILE_NAME);
+        DatasetPackWriter.Output output = new DatasetPackWriter.Output(file, 2, 3,
+                Arrays.asList("anger", "joy"), 4, "size=64 align=none", "abc123");
+        try {
+            output.add(1, 3, FIRST);
+            output.add(0, 0, SECOND);
+            assertEquals(2, output.finish());
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static void patchInt(File file, long position, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void roundTrip_keepsEverything() throws Exception {
+        File file = writePack();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        DatasetPack pack = new DatasetPack(file);
+        try {
+            assertEquals(2, pack.getRows());
+            assertEquals(3, pack.getCols());
+            assertEquals(2, pack.size());
+            assertEquals(4, pack.getGroupCount());
+            assertArrayEquals(new String[]{"anger", "joy"}, pack.getLabelNames());
+            assertEquals("size=64 align=none", pack.getPreprocessing());
+            assertEquals("abc123", pack.getFingerprint());
+            assertEquals(1, pack.getLabel(0));
+            assertEquals(3, pack.getGroup(0));
+            assertEquals(0, pack.getLabel(1));
+            assertEquals(0, pack.getGroup(1));
+            byte[] pixels = new byte[6];
+            pack.getPixels(0, pixels);
+            assertArrayEquals(FIRST, pixels);
+            pack.getPixels(1, pixels);
+            assertArrayEquals(SECOND, pixels);
+        } finally {
+            pack.close();
+        }
+    }
+
+    @Test
+    public void roundTrip_ofAnEmptyPack() throws Exception {
+        File file = new File(mFolder.getRoot(), DatasetPack.FILE_NAME);
+        DatasetPackWriter.Output output = new DatasetPackWriter.Output(file, 4, 4,
+                Arrays.asList("neutral"), 0, "", "");
+        try {
+            assertEquals(0, output.finish());
+        } finally {
+            output.close();
+        }
+        DatasetPack pack = new DatasetPack(file);
+        try {
+            assertEquals(0, pack.size());
+            assertEquals("", pack.getPreprocessing());
+        } finally {
+            pack.close();
+        }
+    }
+
+    @Test
+    public void close_abandonsAnUnfinishedPack() throws Exception {
+        File file = new File(mFolder.getRoot(), DatasetPack.FILE_NAME);
+        DatasetPackWriter.Output output = new DatasetPackWriter.Output(file, 2, 3,
+                Arrays.asList("anger"), 1, "", "");
+        output.add(0, 0, FIRST);
+        output.close();
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsATruncatedPack() throws Exception {
+        File file = writePack();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        new DatasetPack(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAShortFile() throws Exception {
+        File file = writePack();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(DatasetPack.HEADER_SIZE - 1);
+        } finally {
+            raf.close();
+        }
+        new DatasetPack(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAnotherFormat() throws Exception {
+        File file = writePack();
+        patchInt(file, 0, 0x89504e47);
+        new DatasetPack(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAnotherVersion() throws Exception {
+        File file = writePack();
+        patchInt(file, 4, DatasetPack.VERSION - 1);
+        new DatasetPack(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAnOverlongName() throws Exception {
+        File file = writePack();
+        patchInt(file, DatasetPack.HEADER_SIZE, Integer.MAX_VALUE);
+        new DatasetPack(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsAnUnknownLabel() throws Exception {
+        File file = writePack();
+        patchInt(file, file.length() - 2 * DatasetPack.INDEX_ENTRY_SIZE, 2);
+        new DatasetPack(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsASampleOutsideThePixels() throws Exception {
+        File file = writePack();
+        // Low half of the last sample's offset
+        patchInt(file, file.length() - 4, (int) file.length());
+        new DatasetPack(file).close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.danielzou.emot.emotiontracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EmotionSmootherTest {
+
+    private static EmotionPrediction prediction(int label, int classes) {
+        EmotionPrediction prediction = new EmotionPrediction();
+        prediction.reset(classes);
+        for (int k = 0; k < classes; k++) {
+            prediction.offerSquared(k, k == label ? 1 : 100);
+        }
+        prediction.rank();
+        return prediction;
+    }
+
+    @Test
+    public void add_takesTheFirstLabel() throws Exception {
+        EmotionSmoother smoother = new EmotionSmoother();
+        assertEquals(-1, smoother.getLabel());
+        assertEquals(2, smoother.add(prediction(2, 7), 0));
+        assertEquals(1, smoother.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void add_ignoresASingleOutlier() throws Exception {
+        EmotionSmoother smoother = new EmotionSmoother();
+        smoother.add(prediction(2, 7), 0);
+        assertEquals(2, smoother.add(prediction(3, 7), 30));
+    }
+
+    @Test
+    public void add_followsALastingChange() throws Exception {
+        EmotionSmoother smoother = new EmotionSmoother(400, 0.15);
+        long now = 0;
+        for (; now <= 1000; now += 100) {
+            smoother.add(prediction(1, 7), now);
+        }
+        long changed = -1;
+        for (; now <= 3000; now += 100) {
+            if (smoother.add(prediction(4, 7), now) == 4) {
+                changed = now;
+                break;
+            }
+        }
+        assertTrue("Never switched", changed >= 0);
+        // Within about one half-life of the change, but not at the first vote
+        assertTrue("Switched after " + (changed - 1100) + " ms", changed > 1100 && changed <= 1100 + 500);
+    }
+
+    @Test
+    public void add_decaysWithTimeNotWithCalls() throws Exception {
+        EmotionSmoother smoother = new EmotionSmoother(400, 0.15);
+        smoother.add(prediction(1, 7), 0);
+        // After ten half-lives the old vote has all but vanished
+        assertEquals(5, smoother.add(prediction(5, 7), 4000));
+    }
+
+    @Test
+    public void add_ignoresPredictionsWithoutALabel() throws Exception {
+        EmotionSmoother smoother = new EmotionSmoother();
+        smoother.add(prediction(2, 7), 0);
+        assertEquals(2, smoother.add(new EmotionPrediction(), 10));
+        assertEquals(1, smoother.getConfidence(), 1e-9);
+    }
+
+    @Test
+    public void reset_forgetsTheLabel() throws Exception {
+        EmotionSmoother smoother = new EmotionSmoother();
+        smoother.add(prediction(2, 7), 0);
+        smoother.reset();
+        assertEquals(-1, smoother.getLabel());
+        assertEquals(0, smoother.getConfidence(), 0);
+        assertEquals(6, smoother.add(prediction(6, 7), 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsAZeroHalfLife() throws Exception {
+        new EmotionSmoother(0, 0.15);
+    }
+}
@@ -0,0 +1,53 @@
+package com.danielzou.emot.emotiontracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EnsemblePredictorTest {
+
+    @Test
+    public void chooseMinMargin_exitsEverythingWhenCheapIsAsGood() throws Exception {
+        double margin = EnsemblePredictor.chooseMinMargin(new double[]{3, 2, 1}, new int[]{0, 0, 0}, 3, 0);
+        assertEquals(1, margin, 0);
+    }
+
+    @Test
+    public void chooseMinMargin_stopsAboveALosingFace() throws Exception {
+        double margin = EnsemblePredictor.chooseMinMargin(new double[]{3, 2, 1}, new int[]{0, -1, 0}, 3, 0);
+        assertEquals(3, margin, 0);
+    }
+
+    @Test
+    public void chooseMinMargin_spendsTheAllowedLoss() throws Exception {
+        // One face out of three is 33.3 points
+        double margin = EnsemblePredictor.chooseMinMargin(new double[]{3, 2, 1}, new int[]{0, -1, 0}, 3, 34);
+        assertEquals(1, margin, 0);
+    }
+
+    @Test
+    public void chooseMinMargin_keepsGainsThatMakeUpForLosses() throws Exception {
+        double margin = EnsemblePredictor.chooseMinMargin(new double[]{3, 2, 1}, new int[]{-1, 1, 0}, 2, 0);
+        assertEquals(1, margin, 0);
+    }
+
+    @Test
+    public void chooseMinMargin_neverSplitsEqualMargins() throws Exception {
+        // A threshold of 2 lets both faces at 2 exit, and the second one loses
+        double margin = EnsemblePredictor.chooseMinMargin(new double[]{2, 2, 1}, new int[]{0, -1, 0}, 3, 0);
+        assertEquals(Double.POSITIVE_INFINITY, margin, 0);
+    }
+
+    @Test
+    public void chooseMinMargin_neverExitsFacesWithoutAPrediction() throws Exception {
+        double margin = EnsemblePredictor.chooseMinMargin(new double[]{Double.NEGATIVE_INFINITY, 1},
+                new int[]{0, 0}, 2, 0);
+        assertEquals(1, margin, 0);
+    }
+
+    @Test
+    public void chooseMinMargin_withoutFacesAlwaysAsksTheFullPredictor() throws Exception {
+        double margin = EnsemblePredictor.chooseMinMargin(new double[0], new int[0], 0, 10);
+        assertEquals(Double.POSITIVE_INFINITY, margin, 0);
+    }
+}
@@ -0,0 +1,89 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FaceDetectorTest {
+
+    @Test
+    public void scaleBox_scalesEverySide() throws Exception {
+        int[] boxes = {10, 20, 30, 40};
+        FaceDetector.scaleBox(boxes, 0, 2, 1000, 1000);
+        assertArrayEquals(new int[]{20, 40, 60, 80}, boxes);
+    }
+
+    @Test
+    public void scaleBox_roundsToTheNearestPixel() throws Exception {
+        int[] boxes = {10, 10, 10, 10};
+        FaceDetector.scaleBox(boxes, 0, 1.5, 1000, 1000);
+        assertArrayEquals(new int[]{15, 15, 15, 15}, boxes);
+    }
+
+    @Test
+    public void scaleBox_cutsToTheFrame() throws Exception {
+        int[] boxes = {100, 100, 50, 50};
+        FaceDetector.scaleBox(boxes, 0, 2, 220, 250);
+        assertArrayEquals(new int[]{200, 200, 20, 50}, boxes);
+    }
+
+    @Test
+    public void scaleBox_onlyTouchesItsBox() throws Exception {
+        int[] boxes = {1, 2, 3, 4, 10, 20, 30, 40};
+        FaceDetector.scaleBox(boxes, 4, 2, 1000, 1000);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 20, 40, 60, 80}, boxes);
+    }
+
+    @Test
+    public void regions_growEveryBox() throws Exception {
+        int[] regions = new int[4];
+        assertEquals(1, FaceDetector.regions(new int[]{100, 100, 20, 40}, 1, 640, 480, regions));
+        assertArrayEquals(new int[]{90, 80, 40, 80}, regions);
+    }
+
+    @Test
+    public void regions_stayInsideTheFrame() throws Exception {
+        int[] regions = new int[8];
+        assertEquals(2, FaceDetector.regions(new int[]{0, 0, 20, 20, 620, 460, 20, 20}, 2, 640, 480, regions));
+        assertArrayEquals(new int[]{0, 0, 30, 30, 610, 450, 30, 30}, regions);
+    }
+
+    @Test
+    public void regions_mergeOverlaps() throws Exception {
+        int[] regions = new int[8];
+        assertEquals(1, FaceDetector.regions(new int[]{100, 100, 20, 20, 125, 100, 20, 20}, 2, 640, 480, regions));
+        assertArrayEquals(new int[]{90, 90, 65, 40}, Arrays.copyOf(regions, 4));
+    }
+
+    @Test
+    public void regions_mergeChains() throws Exception {
+        // The small box only overlaps the region the other two merge into
+        int[] regions = new int[12];
+        assertEquals(1, FaceDetector.regions(new int[]{100, 100, 20, 20, 140, 95, 4, 4, 130, 130, 20, 20}, 3,
+                640, 480, regions));
+        assertArrayEquals(new int[]{90, 90, 70, 70}, Arrays.copyOf(regions, 4));
+    }
+
+    @Test
+    public void regions_keepSeparateBoxesApart() throws Exception {
+        int[] regions = new int[8];
+        assertEquals(2, FaceDetector.regions(new int[]{100, 100, 20, 20, 300, 300, 20, 20}, 2, 640, 480, regions));
+        assertArrayEquals(new int[]{90, 90, 40, 40, 290, 290, 40, 40}, regions);
+    }
+
+    @Test
+    public void regions_ofNoBoxesAreEmpty() throws Exception {
+        assertEquals(0, FaceDetector.regions(new int[0], 0, 640, 480, new int[0]));
+    }
+
+    @Test
+    public void grow_keepsTheBoxes() throws Exception {
+        int[] boxes = {1, 2, 3, 4};
+        assertSame(boxes, FaceDetector.grow(boxes, 1));
+        int[] grown = FaceDetector.grow(boxes, 3);
+        assertTrue(grown.length >= 12);
+        assertArrayEquals(boxes, Arrays.copyOf(grown, 4));
+    }
+}
@@ -0,0 +1,107 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.nio.DoubleBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QuantizedProjectionTest {
+
+    // 4 pixels, 2 components, pixel-major
+    private static final double[] EIGENVECTORS = {
+            0.5, 0.1,
+            -0.3, 0.22,
+            0.1, -0.4,
+            0, 0.3};
+    private static final double[] MEAN = {100, 50.5, 200, 10.25};
+    // One training sample per class, centroids at (-10, -10) and (10, 10)
+    private static final int[] LABELS = {0, 1};
+    private static final double[] PROJECTIONS = {-10, -10, 10, 10};
+
+    private static JavaProjection reference(double[] eigenvectors, double[] mean, int components) {
+        return new JavaProjection(mean.length, components, 2, DoubleBuffer.wrap(eigenvectors),
+                DoubleBuffer.wrap(mean), LABELS, PROJECTIONS);
+    }
+
+    private static QuantizedProjection quantize(double[] eigenvectors, double[] mean, int components) {
+        return new QuantizedProjection(reference(eigenvectors, mean, components), DoubleBuffer.wrap(eigenvectors),
+                DoubleBuffer.wrap(mean));
+    }
+
+    @Test
+    public void weights_useTheFullInt8RangePerComponent() throws Exception {
+        QuantizedProjection projection = quantize(EIGENVECTORS, MEAN, 2);
+        assertArrayEquals(new byte[]{127, 32, -76, 70, 25, -127, 0, 95}, projection.getWeights());
+        assertEquals(0.5 / 127, projection.getScale(0), 1e-7);
+        assertEquals(0.4 / 127, projection.getScale(1), 1e-7);
+    }
+
+    @Test
+    public void mean_isFixedPoint() throws Exception {
+        QuantizedProjection projection = quantize(EIGENVECTORS, MEAN, 2);
+        assertArrayEquals(new short[]{12800, 6464, 25600, 1312}, projection.getMean());
+    }
+
+    @Test
+    public void mean_isClampedToPixelValues() throws Exception {
+        QuantizedProjection projection = quantize(new double[]{1, 1}, new double[]{300, -5}, 1);
+        assertArrayEquals(new short[]{255 << QuantizedProjection.MEAN_FRACTION_BITS, 0}, projection.getMean());
+    }
+
+    @Test
+    public void project_staysCloseToTheFloatProjection() throws Exception {
+        JavaProjection reference = reference(EIGENVECTORS, MEAN, 2);
+        QuantizedProjection projection = new QuantizedProjection(reference, DoubleBuffer.wrap(EIGENVECTORS),
+                DoubleBuffer.wrap(MEAN));
+        QuantizedProjection.Scratch scratch = projection.newScratch();
+        float[] expected = new float[2];
+        byte[][] faces = {{0, 0, 0, 0}, {120, 40, (byte) 180, 30}, {(byte) 255, (byte) 255, (byte) 255, (byte) 255},
+                {(byte) 200, 10, 5, (byte) 250}};
+        for (byte[] face : faces) {
+            reference.project(face, expected);
+            float[] actual = projection.project(face, scratch);
+            for (int c = 0; c < 2; c++) {
+                // Every weight is off by at most half a step, the mean is exact
+                double tolerance = 4 * 255 * projection.getScale(c) / 2;
+                assertEquals(expected[c], actual[c], tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void project_ofTheMeanFaceIsZero() throws Exception {
+        QuantizedProjection projection = quantize(EIGENVECTORS, new double[]{100, 50, 200, 10}, 2);
+        float[] actual = projection.project(new byte[]{100, 50, (byte) 200, 10}, projection.newScratch());
+        assertEquals(0, actual[0], 0);
+        assertEquals(0, actual[1], 0);
+    }
+
+    @Test
+    public void project_ofAZeroComponentIsZero() throws Exception {
+        double[] eigenvectors = {0.5, 0, -0.3, 0, 0.1, 0, 0, 0};
+        QuantizedProjection projection = quantize(eigenvectors, MEAN, 2);
+        assertEquals(1, projection.getScale(1), 0);
+        float[] actual = projection.project(new byte[]{1, 2, 3, 4}, projection.newScratch());
+        assertEquals(0, actual[1], 0);
+    }
+
+    @Test
+    public void classify_agreesWithTheFloatProjection() throws Exception {
+        JavaProjection reference = reference(EIGENVECTORS, MEAN, 2);
+        QuantizedProjection projection = new QuantizedProjection(reference, DoubleBuffer.wrap(EIGENVECTORS),
+                DoubleBuffer.wrap(MEAN));
+        QuantizedProjection.Scratch scratch = projection.newScratch();
+        EmotionPrediction expected = new EmotionPrediction();
+        EmotionPrediction actual = new EmotionPrediction();
+        // Faces well away from the boundary between the classes, on both sides of it
+        byte[][] faces = {{120, 40, (byte) 180, 30}, {(byte) 255, (byte) 255, (byte) 255, (byte) 255},
+                {(byte) 200, 10, 5, (byte) 250}, {10, (byte) 200, (byte) 250, 5}};
+        for (byte[] face : faces) {
+            reference.classify(face, new float[2], expected);
+            projection.classify(face, scratch, null, actual);
+            assertEquals(expected.getLabel(), actual.getLabel());
+            assertEquals(2, actual.getClassCount());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.danielzou.emot.emotiontracker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import static org.junit.Assert.*;
+
+public class TrackManagerTest {
+
+    @Test
+    public void iou_ofEqualBoxesIsOne() throws Exception {
+        assertEquals(1, TrackManager.iou(new Rect(5, 5, 10, 10), new Rect(5, 5, 10, 10)), 1e-9);
+    }
+
+    @Test
+    public void iou_ofSeparateBoxesIsZero() throws Exception {
+        assertEquals(0, TrackManager.iou(new Rect(0, 0, 10, 10), new Rect(20, 0, 10, 10)), 0);
+        // Touching edges do not overlap
+        assertEquals(0, TrackManager.iou(new Rect(0, 0, 10, 10), new Rect(10, 0, 10, 10)), 0);
+    }
+
+    @Test
+    public void iou_ofHalfShiftedBoxes() throws Exception {
+        // 50 shared pixels out of 150
+        assertEquals(1 / 3.0, TrackManager.iou(new Rect(0, 0, 10, 10), new Rect(5, 0, 10, 10)), 1e-9);
+    }
+
+    @Test
+    public void iou_ofANestedBox() throws Exception {
+        assertEquals(0.25, TrackManager.iou(new Rect(0, 0, 20, 20), new Rect(5, 5, 10, 10)), 1e-9);
+    }
+
+    @Test
+    public void match_pairsCrossedOrders() throws Exception {
+        List<Rect> boxes = Arrays.asList(new Rect(0, 0, 10, 10), new Rect(100, 0, 10, 10));
+        List<Rect> faces = Arrays.asList(new Rect(101, 1, 10, 10), new Rect(1, 1, 10, 10));
+        TrackManager.Association association = new TrackManager.Association();
+        assertEquals(2, association.match(boxes, faces));
+        assertEquals(1, association.getFace(0));
+        assertEquals(0, association.getFace(1));
+        assertTrue(association.isFaceMatched(0));
+        assertTrue(association.isFaceMatched(1));
+    }
+
+    @Test
+    public void match_ignoresPairsBelowTheThreshold() throws Exception {
+        // IoU 1/3 is above MIN_IOU, the far box is not
+        List<Rect> boxes = Arrays.asList(new Rect(0, 0, 10, 10));
+        List<Rect> faces = Arrays.asList(new Rect(8, 0, 10, 10), new Rect(5, 0, 10, 10));
+        TrackManager.Association association = new TrackManager.Association();
+        assertEquals(1, association.match(boxes, faces));
+        assertEquals(1, association.getFace(0));
+        assertFalse(association.isFaceMatched(0));
+    }
+
+    @Test
+    public void match_givesAContestedFaceToTheBestTrack() throws Exception {
+        List<Rect> boxes = Arrays.asList(new Rect(3, 0, 10, 10), new Rect(0, 0, 10, 10));
+        List<Rect> faces = Arrays.asList(new Rect(0, 0, 10, 10));
+        TrackManager.Association association = new TrackManager.Association();
+        assertEquals(1, association.match(boxes, faces));
+        assertEquals(-1, association.getFace(0));
+        assertEquals(0, association.getFace(1));
+    }
+
+    @Test
+    public void match_forgetsThePreviousFrame() throws Exception {
+        TrackManager.Association association = new TrackManager.Association();
+        association.match(Arrays.asList(new Rect(0, 0, 10, 10), new Rect(50, 0, 10, 10)),
+                Arrays.asList(new Rect(0, 0, 10, 10), new Rect(50, 0, 10, 10)));
+        assertEquals(0, association.match(Arrays.asList(new Rect(0, 0, 10, 10)), Collections.<Rect>emptyList()));
+        assertEquals(-1, association.getFace(0));
+        assertEquals(0, association.match(Collections.<Rect>emptyList(), Arrays.asList(new Rect(0, 0, 10, 10))));
+        assertFalse(association.isFaceMatched(0));
+    }
+}